@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.PersistableBundle;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary encoding of carrier config bundles, used by {@link CarrierConfigLoader} to cache
+ * configs on disk. Parsing the XML written by {@link PersistableBundle#writeToStream} on every
+ * boot and SIM swap is much slower than reading this format.
+ *
+ * The file starts with a header of magic number, format version, payload length and CRC32 of
+ * the payload. Files with a different format version or a bad checksum are rejected, in which
+ * case the caller falls back to the XML file.
+ */
+final class CarrierConfigBinaryFormat {
+    private static final String LOG_TAG = "CarrierConfigBinaryFormat";
+
+    private static final int MAGIC = 0x43434647; // "CCFG"
+    private static final int FORMAT_VERSION = 1;
+    // magic, version, payload length and checksum
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_INT = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_DOUBLE = 3;
+    private static final byte TYPE_BOOLEAN = 4;
+    private static final byte TYPE_STRING = 5;
+    private static final byte TYPE_INT_ARRAY = 6;
+    private static final byte TYPE_LONG_ARRAY = 7;
+    private static final byte TYPE_DOUBLE_ARRAY = 8;
+    private static final byte TYPE_BOOLEAN_ARRAY = 9;
+    private static final byte TYPE_STRING_ARRAY = 10;
+    private static final byte TYPE_BUNDLE = 11;
+
+    private CarrierConfigBinaryFormat() {}
+
+    /**
+     * Writes the bundle to the file. The file is replaced atomically, so a crash while writing
+     * leaves the previous content in place.
+     */
+    static void writeToFile(@NonNull File file, @NonNull PersistableBundle config)
+            throws IOException {
+        byte[] data = encode(config);
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream out = atomicFile.startWrite();
+        try {
+            out.write(data);
+            atomicFile.finishWrite(out);
+        } catch (IOException e) {
+            atomicFile.failWrite(out);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a bundle written by {@link #writeToFile}.
+     *
+     * @return the bundle, or null if the file has another format version or is corrupted.
+     * @throws FileNotFoundException if there is no file.
+     */
+    @Nullable
+    static PersistableBundle readFromFile(@NonNull File file) throws IOException {
+        if (!file.exists()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        return decode(new AtomicFile(file).readFully());
+    }
+
+    /** Encodes the bundle, including the header. */
+    @NonNull
+    static byte[] encode(@NonNull PersistableBundle config) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(16 * 1024);
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        writeBundle(payload, config);
+        payload.flush();
+        byte[] payloadArray = payloadBytes.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(payloadArray);
+        ByteArrayOutputStream result = new ByteArrayOutputStream(HEADER_SIZE + payloadArray.length);
+        DataOutputStream out = new DataOutputStream(result);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(payloadArray.length);
+        out.writeLong(crc.getValue());
+        out.write(payloadArray);
+        out.flush();
+        return result.toByteArray();
+    }
+
+    /**
+     * Decodes a bundle encoded by {@link #encode}.
+     *
+     * @return the bundle, or null if the data has another format version or is corrupted.
+     */
+    @Nullable
+    static PersistableBundle decode(@NonNull byte[] data) {
+        if (data.length < HEADER_SIZE) {
+            Log.w(LOG_TAG, "Truncated header, length=" + data.length);
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != MAGIC) {
+                Log.w(LOG_TAG, "Bad magic number");
+                return null;
+            }
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                Log.w(LOG_TAG, "Unsupported format version " + version);
+                return null;
+            }
+            int length = in.readInt();
+            long checksum = in.readLong();
+            if (length != data.length - HEADER_SIZE) {
+                Log.w(LOG_TAG, "Payload length mismatch: " + length + " vs "
+                        + (data.length - HEADER_SIZE));
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, HEADER_SIZE, length);
+            if (crc.getValue() != checksum) {
+                Log.w(LOG_TAG, "Checksum mismatch");
+                return null;
+            }
+            return readBundle(in);
+        } catch (IOException | RuntimeException e) {
+            Log.w(LOG_TAG, "Failed to decode: " + e);
+            return null;
+        }
+    }
+
+    private static void writeBundle(@NonNull DataOutputStream out,
+            @NonNull PersistableBundle bundle) throws IOException {
+        out.writeInt(bundle.size());
+        for (String key : bundle.keySet()) {
+            writeString(out, key);
+            writeValue(out, key, bundle.get(key));
+        }
+    }
+
+    private static void writeValue(@NonNull DataOutputStream out, @NonNull String key,
+            @Nullable Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof int[]) {
+            int[] array = (int[]) value;
+            out.writeByte(TYPE_INT_ARRAY);
+            out.writeInt(array.length);
+            for (int element : array) {
+                out.writeInt(element);
+            }
+        } else if (value instanceof long[]) {
+            long[] array = (long[]) value;
+            out.writeByte(TYPE_LONG_ARRAY);
+            out.writeInt(array.length);
+            for (long element : array) {
+                out.writeLong(element);
+            }
+        } else if (value instanceof double[]) {
+            double[] array = (double[]) value;
+            out.writeByte(TYPE_DOUBLE_ARRAY);
+            out.writeInt(array.length);
+            for (double element : array) {
+                out.writeDouble(element);
+            }
+        } else if (value instanceof boolean[]) {
+            boolean[] array = (boolean[]) value;
+            out.writeByte(TYPE_BOOLEAN_ARRAY);
+            out.writeInt(array.length);
+            for (boolean element : array) {
+                out.writeBoolean(element);
+            }
+        } else if (value instanceof String[]) {
+            String[] array = (String[]) value;
+            out.writeByte(TYPE_STRING_ARRAY);
+            out.writeInt(array.length);
+            for (String element : array) {
+                writeString(out, element);
+            }
+        } else if (value instanceof PersistableBundle) {
+            out.writeByte(TYPE_BUNDLE);
+            writeBundle(out, (PersistableBundle) value);
+        } else {
+            // PersistableBundle only accepts the types above.
+            throw new IOException("Unsupported value type " + value.getClass() + " for " + key);
+        }
+    }
+
+    @NonNull
+    private static PersistableBundle readBundle(@NonNull DataInputStream in) throws IOException {
+        int size = in.readInt();
+        PersistableBundle bundle = new PersistableBundle(size);
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            byte type = in.readByte();
+            switch (type) {
+                case TYPE_NULL:
+                    bundle.putString(key, null);
+                    break;
+                case TYPE_INT:
+                    bundle.putInt(key, in.readInt());
+                    break;
+                case TYPE_LONG:
+                    bundle.putLong(key, in.readLong());
+                    break;
+                case TYPE_DOUBLE:
+                    bundle.putDouble(key, in.readDouble());
+                    break;
+                case TYPE_BOOLEAN:
+                    bundle.putBoolean(key, in.readBoolean());
+                    break;
+                case TYPE_STRING:
+                    bundle.putString(key, readString(in));
+                    break;
+                case TYPE_INT_ARRAY: {
+                    int[] array = new int[in.readInt()];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = in.readInt();
+                    }
+                    bundle.putIntArray(key, array);
+                    break;
+                }
+                case TYPE_LONG_ARRAY: {
+                    long[] array = new long[in.readInt()];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = in.readLong();
+                    }
+                    bundle.putLongArray(key, array);
+                    break;
+                }
+                case TYPE_DOUBLE_ARRAY: {
+                    double[] array = new double[in.readInt()];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = in.readDouble();
+                    }
+                    bundle.putDoubleArray(key, array);
+                    break;
+                }
+                case TYPE_BOOLEAN_ARRAY: {
+                    boolean[] array = new boolean[in.readInt()];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = in.readBoolean();
+                    }
+                    bundle.putBooleanArray(key, array);
+                    break;
+                }
+                case TYPE_STRING_ARRAY: {
+                    String[] array = new String[in.readInt()];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = readString(in);
+                    }
+                    bundle.putStringArray(key, array);
+                    break;
+                }
+                case TYPE_BUNDLE:
+                    bundle.putPersistableBundle(key, readBundle(in));
+                    break;
+                default:
+                    throw new IOException("Unknown value type " + type + " for " + key);
+            }
+        }
+        return bundle;
+    }
+
+    private static void writeString(@NonNull DataOutputStream out, @Nullable String value)
+            throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Nullable
+    private static String readString(@NonNull DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
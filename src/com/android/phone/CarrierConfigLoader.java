@@ -90,6 +90,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -137,6 +138,21 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     // CarrierService change monitoring
     @NonNull private CarrierServiceChangeCallback[] mCarrierServiceChangeCallbacks;
 
+    // Lock for the merged config cache states below. Binder threads read the cache while the
+    // handler thread invalidates it, so it can't be confined to the handler like other states.
+    private final Object mMergedConfigLock = new Object();
+    // Merged result of the default, carrier and override configs on top of the code default,
+    // indexed by phoneId. A null entry means the config has to be merged again.
+    @NonNull private PersistableBundle[] mMergedConfigs;
+    // Merged result of the no SIM config on top of the code default.
+    @Nullable private PersistableBundle mMergedNoSimConfig;
+    // Bumped on every invalidation, so a merge racing with an invalidation is not cached.
+    private long mMergedConfigGeneration;
+    @NonNull private final AtomicLong mMergedConfigCacheHits = new AtomicLong();
+    @NonNull private final AtomicLong mMergedConfigCacheMisses = new AtomicLong();
+    // Code default config, which never changes at runtime. Created on first use.
+    @Nullable private volatile PersistableBundle mCodeDefaultConfig;
+
     // Broadcast receiver for system events
     @NonNull
     private final BroadcastReceiver mSystemBroadcastReceiver = new ConfigLoaderBroadcastReceiver();
@@ -244,6 +260,16 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     && msg.what != EVENT_MULTI_SIM_CONFIG_CHANGED) {
                 return;
             }
+            handleConfigMessage(msg, phoneId);
+            // Any event may have replaced one of the configs the merged config is built from.
+            if (msg.what == EVENT_MULTI_SIM_CONFIG_CHANGED) {
+                invalidateAllMergedConfigs();
+            } else {
+                invalidateMergedConfig(phoneId);
+            }
+        }
+
+        private void handleConfigMessage(@NonNull Message msg, int phoneId) {
             switch (msg.what) {
                 case EVENT_CLEAR_CONFIG: {
                     clearConfigForPhone(phoneId, true);
@@ -714,6 +740,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         mServiceConnectionForNoSimConfig = new CarrierServiceConnection[mNumPhones];
         mServiceBoundForNoSimConfig = new boolean[mNumPhones];
         mCarrierServiceChangeCallbacks = new CarrierServiceChangeCallback[mNumPhones];
+        mMergedConfigs = new PersistableBundle[mNumPhones];
         for (int phoneId = 0; phoneId < mNumPhones; phoneId++) {
             mCarrierServiceChangeCallbacks[phoneId] = new CarrierServiceChangeCallback(phoneId);
             TelephonyManager.from(context).registerCarrierPrivilegesCallback(phoneId,
@@ -766,6 +793,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         mConfigFromCarrierApp[phoneId] = null;
         mServiceConnection[phoneId] = null;
         mHasSentConfigChange[phoneId] = false;
+        invalidateMergedConfig(phoneId);
 
         if (fetchNoSimConfig) {
             // To fetch no SIM config
@@ -985,7 +1013,9 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
      * carrier while iccid remains the same.
      *
      * The file can be restored later with {@link @restoreConfigFromXml}. The XML output will
-     * include the bundle and the current version of the specified package.
+     * include the bundle and the current version of the specified package. The same content is
+     * also written in {@link CarrierConfigBinaryFormat} next to the XML file, which is much
+     * faster to restore. The XML file is kept as a fallback.
      *
      * In case of errors or invalid input, no file will be written.
      *
@@ -1043,8 +1073,9 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                         + ", xml=" + getFilePathForLogging(fileName) + ", version=" + version);
 
         FileOutputStream outFile = null;
+        File xmlFile = new File(mContext.getFilesDir(), fileName);
         try {
-            outFile = new FileOutputStream(new File(mContext.getFilesDir(), fileName));
+            outFile = new FileOutputStream(xmlFile);
             config.putString(KEY_VERSION, version);
             config.writeToStream(outFile);
             outFile.flush();
@@ -1052,6 +1083,15 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         } catch (IOException e) {
             loge(e.toString());
         }
+
+        File binaryFile = getBinaryFileForConfig(xmlFile);
+        try {
+            CarrierConfigBinaryFormat.writeToFile(binaryFile, config);
+        } catch (IOException e) {
+            loge("Failed to write " + getFilePathForLogging(binaryFile.getName()) + ": " + e);
+            // Don't leave a stale binary file which would be preferred over the new XML file.
+            binaryFile.delete();
+        }
     }
 
     @VisibleForTesting
@@ -1118,6 +1158,24 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         File file = new File(mContext.getFilesDir(), fileName);
         String filePath = file.getPath();
         String savedVersion = null;
+        try {
+            restoredBundle = CarrierConfigBinaryFormat.readFromFile(getBinaryFileForConfig(file));
+        } catch (IOException e) {
+            // No binary file yet, e.g. the XML file was written by an older build.
+        }
+        if (restoredBundle != null) {
+            savedVersion = restoredBundle.getString(KEY_VERSION);
+            restoredBundle.remove(KEY_VERSION);
+            if (!version.equals(savedVersion)) {
+                loge("Saved version mismatch: " + version + " vs " + savedVersion
+                        + ", phoneId=" + phoneId);
+                return null;
+            }
+            logdWithLocalLog("Restored carrier config from binary cache. phoneId=" + phoneId
+                    + ", file=" + getFilePathForLogging(fileName) + ", version=" + savedVersion);
+            return restoredBundle;
+        }
+
         try (FileInputStream inFile = new FileInputStream(file)) {
 
             restoredBundle = PersistableBundle.readFromStream(inFile);
@@ -1230,6 +1288,16 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         return "carrierconfig-" + packageName + extraString + "-" + iccid + "-" + cid + ".xml";
     }
 
+    /** Returns the file holding the binary encoding of the given XML config file. */
+    @NonNull
+    private static File getBinaryFileForConfig(@NonNull File xmlFile) {
+        String name = xmlFile.getName();
+        if (name.endsWith(".xml")) {
+            name = name.substring(0, name.length() - ".xml".length());
+        }
+        return new File(xmlFile.getParentFile(), name + ".bin");
+    }
+
     /** Builds a canonical file name for no SIM config file. */
     @NonNull
     private String getFilenameForNoSimConfig(@NonNull String packageName) {
@@ -1298,6 +1366,10 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         mHasSentConfigChange = Arrays.copyOf(mHasSentConfigChange, mNumPhones);
         mFromSystemUnlocked = Arrays.copyOf(mFromSystemUnlocked, mNumPhones);
         mCarrierServiceChangeCallbacks = Arrays.copyOf(mCarrierServiceChangeCallbacks, mNumPhones);
+        synchronized (mMergedConfigLock) {
+            mMergedConfigs = new PersistableBundle[mNumPhones];
+            mMergedConfigGeneration++;
+        }
 
         // Load the config for all the phones and re-register callback AFTER padding the arrays.
         for (int phoneId = 0; phoneId < mNumPhones; phoneId++) {
@@ -1324,38 +1396,105 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         }
 
         int phoneId = SubscriptionManager.getPhoneId(subscriptionId);
-        PersistableBundle retConfig = CarrierConfigManager.getDefaultConfig();
+        // Callers in the phone process get the bundle without parceling, so hand out a shallow
+        // copy to keep the cached bundle from being modified.
+        PersistableBundle retConfig = new PersistableBundle(getMergedConfig(phoneId));
         if (SubscriptionManager.isValidPhoneId(phoneId)) {
+            retConfig.putBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL,
+                    areAllConfigsApplied(phoneId));
+        }
+        return retConfig;
+    }
+
+    /** Returns whether the configs of all the apps expected to provide one were loaded. */
+    private boolean areAllConfigsApplied(int phoneId) {
+        // Ignore the theoretical case of the default app not being present since that won't
+        // work in CarrierConfigLoader today.
+        return (mConfigFromCarrierApp[phoneId] != null
+                || getCarrierPackageForPhoneId(phoneId) == null)
+                && mConfigFromDefaultApp[phoneId] != null;
+    }
+
+    /**
+     * Returns the cached merged config for the phone, merging it again if it was invalidated.
+     * The returned bundle is shared and must not be modified.
+     *
+     * @param phoneId The phone to get the config for, or an invalid phone id for the no SIM
+     * config.
+     */
+    @NonNull
+    private PersistableBundle getMergedConfig(int phoneId) {
+        final boolean validPhoneId = SubscriptionManager.isValidPhoneId(phoneId);
+        final long generation;
+        synchronized (mMergedConfigLock) {
+            PersistableBundle cached = validPhoneId
+                    ? (phoneId < mMergedConfigs.length ? mMergedConfigs[phoneId] : null)
+                    : mMergedNoSimConfig;
+            if (cached != null) {
+                mMergedConfigCacheHits.incrementAndGet();
+                return cached;
+            }
+            generation = mMergedConfigGeneration;
+        }
+        mMergedConfigCacheMisses.incrementAndGet();
+
+        PersistableBundle merged = CarrierConfigManager.getDefaultConfig();
+        if (validPhoneId) {
             PersistableBundle config = mConfigFromDefaultApp[phoneId];
             if (config != null) {
-                retConfig.putAll(config);
+                merged.putAll(config);
             }
             config = mConfigFromCarrierApp[phoneId];
             if (config != null) {
-                retConfig.putAll(config);
+                merged.putAll(config);
             }
             config = mPersistentOverrideConfigs[phoneId];
             if (config != null) {
-                retConfig.putAll(config);
+                merged.putAll(config);
             }
             config = mOverrideConfigs[phoneId];
             if (config != null) {
-                retConfig.putAll(config);
+                merged.putAll(config);
             }
-            // Ignore the theoretical case of the default app not being present since that won't
-            // work in CarrierConfigLoader today.
-            final boolean allConfigsApplied =
-                    (mConfigFromCarrierApp[phoneId] != null
-                        || getCarrierPackageForPhoneId(phoneId) == null)
-                    && mConfigFromDefaultApp[phoneId] != null;
-            retConfig.putBoolean(
-                    CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL, allConfigsApplied);
         } else {
             if (mNoSimConfig != null) {
-                retConfig.putAll(mNoSimConfig);
+                merged.putAll(mNoSimConfig);
             }
         }
-        return retConfig;
+
+        synchronized (mMergedConfigLock) {
+            // Only cache the result if no config changed while merging.
+            if (generation == mMergedConfigGeneration) {
+                if (!validPhoneId) {
+                    mMergedNoSimConfig = merged;
+                } else if (phoneId < mMergedConfigs.length) {
+                    mMergedConfigs[phoneId] = merged;
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Drops the merged config of the phone, and the no SIM config which all phones fall back
+     * to, so that the next read merges them again.
+     */
+    private void invalidateMergedConfig(int phoneId) {
+        synchronized (mMergedConfigLock) {
+            if (phoneId >= 0 && phoneId < mMergedConfigs.length) {
+                mMergedConfigs[phoneId] = null;
+            }
+            mMergedNoSimConfig = null;
+            mMergedConfigGeneration++;
+        }
+    }
+
+    private void invalidateAllMergedConfigs() {
+        synchronized (mMergedConfigLock) {
+            Arrays.fill(mMergedConfigs, null);
+            mMergedNoSimConfig = null;
+            mMergedConfigGeneration++;
+        }
     }
 
     @Override
@@ -1367,22 +1506,25 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         Objects.requireNonNull(keys, "Config keys must be non-null");
         enforceCallerIsSystemOrRequestingPackage(callingPackage);
 
-        // Permission check is performed inside and an empty bundle will return on failure.
+        // An empty bundle will return on permission check failure.
         // No SecurityException thrown here since most clients expect to retrieve the overridden
         // value if present or use default one if not
-        PersistableBundle allConfigs = getConfigForSubIdWithFeature(subscriptionId, callingPackage,
-                callingFeatureId);
-        if (allConfigs.isEmpty()) {
-            return allConfigs;
+        if (!TelephonyPermissions.checkCallingOrSelfReadPhoneState(mContext, subscriptionId,
+                callingPackage, callingFeatureId, "getCarrierConfig")) {
+            return new PersistableBundle();
         }
         for (String key : keys) {
             Objects.requireNonNull(key, "Config key must be non-null");
         }
 
+        // Most callers ask for a handful of keys, so look them up in the config layers directly
+        // instead of merging all of them like getConfigForSubIdWithFeature does.
+        int phoneId = SubscriptionManager.getPhoneId(subscriptionId);
+        PersistableBundle[] configLayers = getConfigLayers(phoneId);
         PersistableBundle configSubset = new PersistableBundle(
                 keys.length + CONFIG_SUBSET_METADATA_KEYS.length);
         for (String carrierConfigKey : keys) {
-            Object value = allConfigs.get(carrierConfigKey);
+            Object value = resolveConfigValue(configLayers, carrierConfigKey);
             if (value == null) {
                 // Filter out keys without values.
                 // In history, many AOSP or OEMs/carriers private configs didn't provide default
@@ -1399,12 +1541,63 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
         // Configs in CONFIG_SUBSET_ALWAYS_INCLUDED_KEYS should always be included
         for (String generalKey : CONFIG_SUBSET_METADATA_KEYS) {
-            configSubset.putObject(generalKey, allConfigs.get(generalKey));
+            configSubset.putObject(generalKey, resolveConfigValue(configLayers, generalKey));
+        }
+        if (SubscriptionManager.isValidPhoneId(phoneId)) {
+            configSubset.putBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL,
+                    areAllConfigsApplied(phoneId));
         }
 
         return configSubset;
     }
 
+    /**
+     * Returns the config layers for the phone, highest priority first. Entries are null for
+     * layers that are not loaded.
+     *
+     * @param phoneId The phone to get the layers for, or an invalid phone id for the no SIM
+     * config.
+     */
+    @NonNull
+    private PersistableBundle[] getConfigLayers(int phoneId) {
+        if (!SubscriptionManager.isValidPhoneId(phoneId)) {
+            return new PersistableBundle[] {mNoSimConfig, getCodeDefaultConfig()};
+        }
+        return new PersistableBundle[] {
+                mOverrideConfigs[phoneId],
+                mPersistentOverrideConfigs[phoneId],
+                mConfigFromCarrierApp[phoneId],
+                mConfigFromDefaultApp[phoneId],
+                getCodeDefaultConfig()
+        };
+    }
+
+    /**
+     * Returns the value of the key from the highest priority layer which contains it. This gives
+     * the same value as merging all layers with {@link PersistableBundle#putAll}.
+     */
+    @Nullable
+    private static Object resolveConfigValue(@NonNull PersistableBundle[] configLayers,
+            @NonNull String key) {
+        for (PersistableBundle layer : configLayers) {
+            if (layer != null && layer.containsKey(key)) {
+                return layer.get(key);
+            }
+        }
+        return null;
+    }
+
+    /** Returns the shared code default config, which must not be modified. */
+    @NonNull
+    private PersistableBundle getCodeDefaultConfig() {
+        PersistableBundle config = mCodeDefaultConfig;
+        if (config == null) {
+            config = CarrierConfigManager.getDefaultConfig();
+            mCodeDefaultConfig = config;
+        }
+        return config;
+    }
+
     @android.annotation.EnforcePermission(android.Manifest.permission.MODIFY_PHONE_STATE)
     @Override
     public void overrideConfig(int subscriptionId, @Nullable PersistableBundle overrides,
@@ -1435,8 +1628,12 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                             OVERRIDE_PACKAGE_ADDITION, iccid, cid);
                     File fileToDelete = new File(mContext.getFilesDir(), fileName);
                     fileToDelete.delete();
+                    getBinaryFileForConfig(fileToDelete).delete();
                 }
             }
+            // Only once both overrides are updated, a merge racing with a read in between would
+            // otherwise be cached with the previous persistent override.
+            invalidateMergedConfig(phoneId);
             logdWithLocalLog("overrideConfig: subId=" + subscriptionId + ", persistent="
                     + persistent + ", overrides=" + overrides);
             updateSubscriptionDatabase(phoneId);
@@ -1644,6 +1841,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                 + Arrays.toString(mServiceBoundForNoSimConfig));
         indentPW.println("mHasSentConfigChange=" + Arrays.toString(mHasSentConfigChange));
         indentPW.println("mFromSystemUnlocked=" + Arrays.toString(mFromSystemUnlocked));
+        indentPW.println("Merged config cache: hits=" + mMergedConfigCacheHits.get()
+                + ", misses=" + mMergedConfigCacheMisses.get());
         indentPW.println();
         indentPW.println("CarrierConfigLoader local log=");
         indentPW.increaseIndent();
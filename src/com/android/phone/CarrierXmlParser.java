@@ -22,6 +22,7 @@ import android.support.annotation.VisibleForTesting;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -101,6 +102,16 @@ public class CarrierXmlParser {
     @VisibleForTesting(otherwise = VisibleForTesting.PRIVATE)
     static String sParserFormat = "";
 
+    // The parser format of this carrier's xml. sParserFormat is shared by all instances and
+    // belongs to whichever xml was parsed last.
+    private String mParserFormat = "";
+
+    // Parsed xml per carrier id, see getCached(). The parsed content is never modified, so
+    // instances can be shared.
+    private static final int MAX_CACHED_PARSERS = 4;
+    private static final LruCache<Integer, CarrierXmlParser> sCachedParsers =
+            new LruCache<>(MAX_CACHED_PARSERS);
+
     // TAG_ENTRY_NUMBER and TAG_ENTRY_TIME is xml's entry value.
     // This is mapping user's input value. For example: number,time ...
     // When UI makes command ,it will map the value and insert this value at position location.
@@ -272,11 +283,23 @@ public class CarrierXmlParser {
          */
         public HashMap<String, String> getResponseSet(String inputResponse,
                 HashMap<String, ArrayList<SsResultEntry>> responseDefine) {
+            return getResponseSet(inputResponse, responseDefine, sParserFormat);
+        }
+
+        /**
+         * To parse the specific key and value from response message.
+         *
+         * @param inputResponse  This is a ussd response message from network.
+         * @param responseDefine This is the definition for "command_result" in xml.
+         * @param parserFormat   This is the "regular_parser" in xml.
+         */
+        public HashMap<String, String> getResponseSet(String inputResponse,
+                HashMap<String, ArrayList<SsResultEntry>> responseDefine, String parserFormat) {
             HashMap<String, String> responseSet = new HashMap<String, String>();
-            if (TextUtils.isEmpty(sParserFormat)) {
+            if (TextUtils.isEmpty(parserFormat)) {
                 return responseSet;
             }
-            UssdParser parserResult = new UssdParser(sParserFormat);
+            UssdParser parserResult = new UssdParser(parserFormat);
             parserResult.newFromResponseString(inputResponse);
             if (parserResult == null) {
                 return responseSet;
@@ -409,7 +432,7 @@ public class CarrierXmlParser {
         public HashMap<String, String> getResponseSet(SsEntry.SSAction inputAction,
                 String inputResponse) {
             SsEntry entry = ssEntryHashMap.get(inputAction);
-            return entry.getResponseSet(inputResponse, responseCode);
+            return entry.getResponseSet(inputResponse, responseCode, mParserFormat);
         }
     }
 
@@ -439,14 +462,41 @@ public class CarrierXmlParser {
         }
     }
 
+    /**
+     * Returns the parser for the carrier id, parsing the xml only if it was not parsed recently.
+     * A carrier change leads to a different carrier id, and hence to a different parser.
+     *
+     * @param context context to get res's xml
+     * @param carrierId carrier id of the current subscription.
+     */
+    public static CarrierXmlParser getCached(Context context, int carrierId) {
+        CarrierXmlParser parser = sCachedParsers.get(carrierId);
+        if (parser == null) {
+            parser = new CarrierXmlParser(context, carrierId);
+            // Do not keep a failed parse around.
+            if (parser.mFeatureMaps != null) {
+                sCachedParsers.put(carrierId, parser);
+            }
+        }
+        return parser;
+    }
+
+    @VisibleForTesting
+    static void clearCache() {
+        sCachedParsers.evictAll();
+    }
+
     private HashMap<String, SsFeature> parseXml(XmlResourceParser parser) throws IOException {
         HashMap<String, SsFeature> features = new HashMap<String, SsFeature>();
+        // An xml without parser format uses the one parsed last, as before.
+        mParserFormat = sParserFormat;
         try {
             int eventType = parser.getEventType();
             while (eventType != XmlPullParser.END_DOCUMENT) {
                 if (eventType == XmlPullParser.START_TAG) {
                     if (TAG_REGULAR_PARSER.equals(parser.getName())) {
-                        sParserFormat = readText(parser);
+                        mParserFormat = readText(parser);
+                        sParserFormat = mParserFormat;
                         Log.d(LOG_TAG, "sParserFormat " + sParserFormat);
                     } else if (TAG_FEATURE.equals(parser.getName())) {
                         String featureName = getSpecificAttributeValue(parser, ATTR_NAME);
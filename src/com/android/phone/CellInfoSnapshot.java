@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.telephony.CellInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable aggregate of the last cell info reported by each phone of the device.
+ *
+ * Each phone replaces its cell info list when new cell info is reported, so the snapshot keeps
+ * the lists it was built from and is current as long as every phone still returns the same
+ * instance. Every new snapshot gets a higher generation, so callers can tell whether the cell
+ * info changed without comparing it.
+ */
+final class CellInfoSnapshot {
+    private final List<List<CellInfo>> mSources;
+    private final List<CellInfo> mCellInfos;
+    private final int mGeneration;
+
+    /**
+     * @param sources the cell info of each phone, entries may be null.
+     * @param generation the generation of the snapshot.
+     */
+    CellInfoSnapshot(List<List<CellInfo>> sources, int generation) {
+        mSources = new ArrayList<>(sources);
+        List<CellInfo> cellInfos = new ArrayList<>();
+        for (List<CellInfo> source : sources) {
+            if (source != null) cellInfos.addAll(source);
+        }
+        mCellInfos = Collections.unmodifiableList(cellInfos);
+        mGeneration = generation;
+    }
+
+    /** Returns whether the snapshot was built from exactly these lists of cell info. */
+    boolean isBuiltFrom(List<List<CellInfo>> sources) {
+        if (sources.size() != mSources.size()) {
+            return false;
+        }
+        for (int i = 0; i < sources.size(); i++) {
+            if (sources.get(i) != mSources.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the cell info of all phones. The list is shared and must not be modified. */
+    List<CellInfo> getCellInfos() {
+        return mCellInfos;
+    }
+
+    int getGeneration() {
+        return mGeneration;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.os.Message;
+
+import com.android.internal.telephony.uicc.IccIoResult;
+import com.android.internal.telephony.uicc.IccUtils;
+import com.android.internal.telephony.uicc.UiccPort;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An ordered list of APDUs sent on one logical channel. The APDUs are sent one after the other,
+ * each as soon as the response of the previous one arrives, until all are sent or one of them
+ * fails.
+ *
+ * An APDU fails when its status word reports an execution or checking error, i.e. SW1 is in the
+ * range 0x64 to 0x6F. Warnings (0x62, 0x63) and 0x61 (more data available) do not stop the batch.
+ *
+ * Not thread safe, the batch is only used by the handler which sends it.
+ */
+final class IccApduBatch {
+    private static final int MIN_APDU_LENGTH = 4;
+
+    private final int mChannel;
+    private final List<byte[]> mApdus = new ArrayList<>();
+    private final List<String> mResponses = new ArrayList<>();
+    private boolean mFailed;
+
+    /**
+     * @param channel the logical channel to send the APDUs on.
+     * @param apdus the command APDUs as hex strings: CLA, INS, P1 and P2, optionally followed by
+     *        P3 and the data.
+     * @throws IllegalArgumentException if an APDU is not valid hex or shorter than 4 bytes.
+     */
+    IccApduBatch(int channel, List<String> apdus) {
+        mChannel = channel;
+        for (String apdu : apdus) {
+            byte[] bytes;
+            try {
+                bytes = apdu == null ? null : IccUtils.hexStringToBytes(apdu);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid APDU: " + apdu, e);
+            }
+            if (bytes == null || bytes.length < MIN_APDU_LENGTH) {
+                throw new IllegalArgumentException("Invalid APDU: " + apdu);
+            }
+            mApdus.add(bytes);
+        }
+    }
+
+    /** Returns whether there is no APDU left to send. */
+    boolean isDone() {
+        return mFailed || mResponses.size() == mApdus.size();
+    }
+
+    /**
+     * Sends the next APDU to the port. {@code onCompleted} is sent with the response, which is
+     * then passed to {@link #onResponse}.
+     */
+    void sendNext(UiccPort port, Message onCompleted) {
+        byte[] apdu = mApdus.get(mResponses.size());
+        // A negative P3 sends a 4 byte APDU.
+        int p3 = apdu.length > MIN_APDU_LENGTH ? apdu[4] & 0xFF : -1;
+        String data = apdu.length > MIN_APDU_LENGTH + 1
+                ? IccUtils.bytesToHexString(
+                        Arrays.copyOfRange(apdu, MIN_APDU_LENGTH + 1, apdu.length))
+                : null;
+        port.iccTransmitApduLogicalChannel(mChannel, apdu[0] & 0xFF, apdu[1] & 0xFF,
+                apdu[2] & 0xFF, apdu[3] & 0xFF, p3, data, onCompleted);
+    }
+
+    /** Records the response of the APDU sent last. */
+    void onResponse(IccIoResult response) {
+        // Same format as iccTransmitApduLogicalChannel: the payload followed by the status word.
+        String s = Integer.toHexString((response.sw1 << 8) + response.sw2 + 0x10000).substring(1);
+        if (response.payload != null) {
+            s = IccUtils.bytesToHexString(response.payload) + s;
+        }
+        mResponses.add(s);
+        if (response.sw1 >= 0x64 && response.sw1 <= 0x6F) {
+            mFailed = true;
+        }
+    }
+
+    /**
+     * Returns the responses received so far, in the order of the APDUs. When an APDU failed, its
+     * response is the last one.
+     */
+    List<String> getResponses() {
+        return new ArrayList<>(mResponses);
+    }
+}
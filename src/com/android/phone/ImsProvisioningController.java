@@ -902,6 +902,7 @@ public class ImsProvisioningController {
         log("destroy");
 
         mHandler.getLooper().quit();
+        mImsProvisioningLoader.flush();
 
         mTelephonyRegistryManager.removeOnSubscriptionsChangedListener(mSubChangedListener);
 
@@ -930,9 +931,13 @@ public class ImsProvisioningController {
                 Rlog.i(TAG, "ImsProvisioningController created");
                 HandlerThread handlerThread = new HandlerThread(TAG);
                 handlerThread.start();
+                // The provisioning files are written behind on their own thread so that bursts of
+                // provisioning changes don't delay the handler or the readers.
+                HandlerThread writerThread = new HandlerThread(TAG + "Writer");
+                writerThread.start();
                 sInstance = new ImsProvisioningController(app, numSlot, handlerThread.getLooper(),
                         ImsManager::getConnector, RcsFeatureManager::getConnector,
-                        new ImsProvisioningLoader(app));
+                        new ImsProvisioningLoader(app, writerThread.getLooper()));
             }
         }
         return sInstance;
@@ -1474,6 +1479,8 @@ public class ImsProvisioningController {
     }
 
     private void onSubscriptionsChanged() {
+        // Don't leave the provisioning of a removed subscription unwritten.
+        mImsProvisioningLoader.flush();
         for (int index = 0; index < mMmTelFeatureListenersSlotMap.size(); index++) {
             MmTelFeatureListener m = mMmTelFeatureListenersSlotMap.get(index);
             m.setSubId(getSubId(index));
@@ -16,14 +16,21 @@
 
 package com.android.phone;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PersistableBundle;
 import android.preference.PreferenceManager;
 import android.telephony.ims.ProvisioningManager;
 import android.telephony.ims.feature.ImsFeature;
 import android.telephony.ims.feature.MmTelFeature;
 import android.telephony.ims.stub.ImsRegistrationImplBase;
+import android.util.ArraySet;
+import android.util.AtomicFile;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -34,9 +41,14 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Set;
 
 /**
  * Provides a function to set/get Ims feature provisioning status in storage.
+ *
+ * In write-behind mode the in-memory status is updated immediately and the file of the
+ * subscription is written on a background thread once the changes settle, so callers never wait
+ * for the disk. {@link #flush()} writes the pending changes right away.
  */
 public class ImsProvisioningLoader {
     private static final String LOG_TAG = ImsProvisioningLoader.class.getSimpleName();
@@ -53,16 +65,58 @@ public class ImsProvisioningLoader {
     private static final String PROVISIONING_FILE_NAME_PREF = "imsprovisioningstatus_";
     private static final String PREF_PROVISION_IMS_MMTEL_PREFIX = "provision_ims_mmtel_";
 
+    // In write-behind mode, the delay from the last change to the write of the files, so that a
+    // burst of changes is written once.
+    @VisibleForTesting
+    static final long WRITE_DELAY_MS = 500;
+
     private Context mContext;
     private SharedPreferences mTelephonySharedPreferences;
     // key : sub Id, value : read from sub Id's xml and it's in-memory cache
-    private SparseArray<PersistableBundle> mSubIdBundleArray = new SparseArray<>();
+    private SparseArray<ImsProvisioningTable> mSubIdTableArray = new SparseArray<>();
     private final Object mLock = new Object();
+    // Serializes the writes of the files. In write-behind mode it is taken before mLock and the
+    // files are written without holding mLock, otherwise they are written with mLock held.
+    private final Object mFileLock = new Object();
+    // Null unless in write-behind mode.
+    private final Handler mWriteHandler;
+    // The sub Ids whose status changed since their file was last written, guarded by mLock.
+    private final Set<Integer> mPendingWriteSubIds = new ArraySet<>();
+    private final Runnable mWritePendingRunnable = this::writePendingSubIdBundles;
 
     public ImsProvisioningLoader(Context context) {
+        this(context, null);
+    }
+
+    /**
+     * @param writeLooper the looper on which the files are written in write-behind mode, or null
+     *                    to write them synchronously on every change.
+     */
+    public ImsProvisioningLoader(Context context, Looper writeLooper) {
         mContext = context;
         mTelephonySharedPreferences =
                 PreferenceManager.getDefaultSharedPreferences(context);
+        mWriteHandler = writeLooper != null ? new Handler(writeLooper) : null;
+        if (mWriteHandler != null) {
+            context.registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    flush();
+                }
+            }, new IntentFilter(Intent.ACTION_SHUTDOWN));
+        }
+    }
+
+    /**
+     * Writes the pending changes of all subscriptions to storage now. Nothing is pending unless
+     * in write-behind mode.
+     */
+    public void flush() {
+        if (mWriteHandler == null) {
+            return;
+        }
+        mWriteHandler.removeCallbacks(mWritePendingRunnable);
+        writePendingSubIdBundles();
     }
 
     /**
@@ -93,11 +147,12 @@ public class ImsProvisioningLoader {
 
     private void initCache(int subId) {
         synchronized (mLock) {
-            PersistableBundle subIdBundle = mSubIdBundleArray.get(subId, null);
-            if (subIdBundle != null) {
+            if (mSubIdTableArray.get(subId, null) != null) {
                 // initCache() has already been called for the subId
                 return;
             }
+            PersistableBundle subIdBundle;
+            boolean migrated = false;
             if (isFileExist(subId)) {
                 subIdBundle = readSubIdBundleFromXml(subId);
             } else {
@@ -118,20 +173,22 @@ public class ImsProvisioningLoader {
                                 UtProvisioningStatus);
                     }
                 }
-                saveSubIdBundleToXml(subId, subIdBundle);
+                migrated = true;
+            }
+            // The XML is only the storage format, the status is read from the table.
+            mSubIdTableArray.put(subId, ImsProvisioningTable.fromBundle(subIdBundle));
+            if (migrated) {
+                persistSubIdTable(subId);
             }
-            mSubIdBundleArray.put(subId, subIdBundle);
         }
     }
 
     private int getImsProvisioningStatus(int subId, int imsFeature, int tech, int capability) {
-        PersistableBundle subIdBundle = null;
         synchronized (mLock) {
-            subIdBundle = mSubIdBundleArray.get(subId, null);
+            ImsProvisioningTable subIdTable = mSubIdTableArray.get(subId, null);
+            return subIdTable != null
+                    ? subIdTable.get(imsFeature, tech, capability) : STATUS_NOT_SET;
         }
-
-        return getProvisioningStatusFromSubIdBundle(imsFeature, tech,
-                capability, subIdBundle);
     }
 
     private boolean setImsFeatureProvisioning(int subId, int imsFeature, int tech, int capability,
@@ -145,66 +202,49 @@ public class ImsProvisioningLoader {
                 return false;
             }
 
-            PersistableBundle subIdBundle = mSubIdBundleArray.get(subId, null);
-            setProvisioningStatusToSubIdBundle(imsFeature, tech, capability, subIdBundle,
-                    newValue);
-            saveSubIdBundleToXml(subId, subIdBundle);
+            logd("set provisioning status " + newValue + " ImsFeature "
+                    + imsFeature + " tech " + tech + " capa " + capability);
+            mSubIdTableArray.get(subId).set(imsFeature, tech, capability, newValue);
+            persistSubIdTable(subId);
         }
         return true;
     }
 
-    private int getProvisioningStatusFromSubIdBundle(int imsFeature, int tech,
-            int capability, PersistableBundle subIdBundle) {
-        // If it doesn't exist in xml, return STATUS_NOT_SET
-        if (subIdBundle == null || subIdBundle.isEmpty()) {
-            logd("xml is empty");
-            return STATUS_NOT_SET;
-        }
-
-        PersistableBundle regTechBundle = subIdBundle.getPersistableBundle(
-                String.valueOf(imsFeature));
-        if (regTechBundle == null) {
-            logd("ImsFeature " + imsFeature + " is not exist in xml");
-            return STATUS_NOT_SET;
+    // Writes the table now or schedules its write in write-behind mode. Called with mLock held.
+    private void persistSubIdTable(int subId) {
+        if (mWriteHandler == null) {
+            saveSubIdBundleToXml(subId, mSubIdTableArray.get(subId).toBundle());
+            return;
         }
+        mPendingWriteSubIds.add(subId);
+        mWriteHandler.removeCallbacks(mWritePendingRunnable);
+        mWriteHandler.postDelayed(mWritePendingRunnable, WRITE_DELAY_MS);
+    }
 
-        PersistableBundle capabilityBundle = regTechBundle.getPersistableBundle(
-                String.valueOf(tech));
-        if (capabilityBundle == null) {
-            logd("RegistrationTech " + tech + " is not exist in xml");
-            return STATUS_NOT_SET;
+    private void writePendingSubIdBundles() {
+        synchronized (mFileLock) {
+            SparseArray<PersistableBundle> bundles = new SparseArray<>();
+            synchronized (mLock) {
+                for (int subId : mPendingWriteSubIds) {
+                    ImsProvisioningTable subIdTable = mSubIdTableArray.get(subId, null);
+                    if (subIdTable != null) {
+                        bundles.put(subId, subIdTable.toBundle());
+                    }
+                }
+                mPendingWriteSubIds.clear();
+            }
+            // Readers only need mLock, so they don't wait for the disk.
+            for (int i = 0; i < bundles.size(); i++) {
+                saveSubIdBundleToXml(bundles.keyAt(i), bundles.valueAt(i));
+            }
         }
-
-        return getIntValueFromBundle(String.valueOf(capability), capabilityBundle);
     }
 
     private void setProvisioningStatusToSubIdBundle(int imsFeature, int tech,
             int capability, PersistableBundle subIdBundle, int newStatus) {
         logd("set provisioning status " + newStatus + " ImsFeature "
                 + imsFeature + " tech " + tech + " capa " + capability);
-
-        PersistableBundle regTechBundle = subIdBundle.getPersistableBundle(
-                String.valueOf(imsFeature));
-        if (regTechBundle == null) {
-            regTechBundle = new PersistableBundle();
-            subIdBundle.putPersistableBundle(String.valueOf(imsFeature), regTechBundle);
-        }
-
-        PersistableBundle capabilityBundle = regTechBundle.getPersistableBundle(
-                String.valueOf(tech));
-        if (capabilityBundle == null) {
-            capabilityBundle = new PersistableBundle();
-            regTechBundle.putPersistableBundle(String.valueOf(tech), capabilityBundle);
-        }
-
-        capabilityBundle.putInt(String.valueOf(capability), newStatus);
-    }
-
-    // Default value is STATUS_NOT_SET
-    private int getIntValueFromBundle(String key, PersistableBundle bundle) {
-        int value = bundle.getInt(key, STATUS_NOT_SET);
-        logd("get value " + value);
-        return value;
+        ImsProvisioningTable.putToBundle(subIdBundle, imsFeature, tech, capability, newStatus);
     }
 
     // Return subIdBundle from imsprovisioningstatus_{subId}.xml
@@ -240,17 +280,21 @@ public class ImsProvisioningLoader {
             return;
         }
 
+        // Written to a new file which replaces the old one once complete, so that an interrupted
+        // write doesn't lose the previous status.
+        AtomicFile file = new AtomicFile(new File(mContext.getFilesDir(), fileName));
         FileOutputStream outFile = null;
-        synchronized (mLock) {
+        synchronized (mFileLock) {
             try {
-                outFile = new FileOutputStream(new File(mContext.getFilesDir(), fileName));
+                outFile = file.startWrite();
                 subIdBundle.writeToStream(outFile);
-                outFile.flush();
-                outFile.close();
+                file.finishWrite(outFile);
             } catch (IOException e) {
                 loge(e.toString());
+                file.failWrite(outFile);
             } catch (RuntimeException e) {
                 loge(e.toString());
+                file.failWrite(outFile);
             }
         }
     }
@@ -284,7 +328,11 @@ public class ImsProvisioningLoader {
     @VisibleForTesting
     void clear() {
         synchronized (mLock) {
-            mSubIdBundleArray.clear();
+            mSubIdTableArray.clear();
+            mPendingWriteSubIds.clear();
+            if (mWriteHandler != null) {
+                mWriteHandler.removeCallbacks(mWritePendingRunnable);
+            }
         }
     }
 
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.android.phone.ImsProvisioningLoader.STATUS_NOT_PROVISIONED;
+import static com.android.phone.ImsProvisioningLoader.STATUS_NOT_SET;
+import static com.android.phone.ImsProvisioningLoader.STATUS_PROVISIONED;
+
+import android.os.PersistableBundle;
+import android.util.Log;
+
+/**
+ * In-memory IMS provisioning status of a subscription.
+ *
+ * The status of a (feature, tech, capability) is kept in two int bitfields per (feature, tech),
+ * one of the capabilities which are set and one of those which are provisioned, so that reading
+ * it is a couple of array accesses. Statuses which don't fit in the table, i.e. unknown features,
+ * techs, capabilities made of several bits or values other than provisioned and not provisioned,
+ * are kept in a nested bundle instead.
+ *
+ * The table is imported from and exported to the nested {@link PersistableBundle} stored by
+ * {@link ImsProvisioningLoader}: ImsFeature -> registration tech -> capability -> status, keyed
+ * by the int values as strings.
+ *
+ * Not thread safe, {@link ImsProvisioningLoader} guards it with its lock.
+ */
+final class ImsProvisioningTable {
+    private static final String LOG_TAG = ImsProvisioningTable.class.getSimpleName();
+
+    // ImsFeature.FEATURE_EMERGENCY_MMTEL, FEATURE_MMTEL and FEATURE_RCS.
+    private static final int NUM_FEATURES = 3;
+    // Room for the ImsRegistrationImplBase.REGISTRATION_TECH_* values, which start at 0.
+    private static final int NUM_TECHS = 8;
+
+    // Indexed by feature * NUM_TECHS + tech, the bits are the capabilities.
+    private final int[] mSetCapabilities = new int[NUM_FEATURES * NUM_TECHS];
+    private final int[] mProvisionedCapabilities = new int[NUM_FEATURES * NUM_TECHS];
+    // Statuses which don't fit in the table, null when there are none.
+    private PersistableBundle mOverflow;
+
+    /** Returns a table with the statuses of the bundle. */
+    static ImsProvisioningTable fromBundle(PersistableBundle subIdBundle) {
+        ImsProvisioningTable table = new ImsProvisioningTable();
+        if (subIdBundle == null) {
+            return table;
+        }
+        for (String featureKey : subIdBundle.keySet()) {
+            PersistableBundle regTechBundle = subIdBundle.getPersistableBundle(featureKey);
+            if (regTechBundle == null) {
+                continue;
+            }
+            for (String techKey : regTechBundle.keySet()) {
+                PersistableBundle capabilityBundle = regTechBundle.getPersistableBundle(techKey);
+                if (capabilityBundle == null) {
+                    continue;
+                }
+                for (String capabilityKey : capabilityBundle.keySet()) {
+                    try {
+                        table.set(Integer.parseInt(featureKey), Integer.parseInt(techKey),
+                                Integer.parseInt(capabilityKey),
+                                capabilityBundle.getInt(capabilityKey, STATUS_NOT_SET));
+                    } catch (NumberFormatException e) {
+                        Log.e(LOG_TAG, "invalid key " + featureKey + "/" + techKey + "/"
+                                + capabilityKey);
+                    }
+                }
+            }
+        }
+        return table;
+    }
+
+    /** Returns the status or {@link ImsProvisioningLoader#STATUS_NOT_SET}. */
+    int get(int imsFeature, int tech, int capability) {
+        int index = getIndex(imsFeature, tech, capability);
+        if (index >= 0 && (mSetCapabilities[index] & capability) != 0) {
+            return (mProvisionedCapabilities[index] & capability) != 0
+                    ? STATUS_PROVISIONED : STATUS_NOT_PROVISIONED;
+        }
+        return mOverflow != null
+                ? getFromBundle(mOverflow, imsFeature, tech, capability) : STATUS_NOT_SET;
+    }
+
+    void set(int imsFeature, int tech, int capability, int status) {
+        int index = getIndex(imsFeature, tech, capability);
+        if (index >= 0 && (status == STATUS_PROVISIONED || status == STATUS_NOT_PROVISIONED)) {
+            mSetCapabilities[index] |= capability;
+            if (status == STATUS_PROVISIONED) {
+                mProvisionedCapabilities[index] |= capability;
+            } else {
+                mProvisionedCapabilities[index] &= ~capability;
+            }
+            if (mOverflow != null) {
+                removeFromBundle(mOverflow, imsFeature, tech, capability);
+            }
+            return;
+        }
+        if (index >= 0) {
+            mSetCapabilities[index] &= ~capability;
+            mProvisionedCapabilities[index] &= ~capability;
+        }
+        if (mOverflow == null) {
+            mOverflow = new PersistableBundle();
+        }
+        putToBundle(mOverflow, imsFeature, tech, capability, status);
+    }
+
+    boolean isEmpty() {
+        for (int capabilities : mSetCapabilities) {
+            if (capabilities != 0) {
+                return false;
+            }
+        }
+        return mOverflow == null || mOverflow.isEmpty();
+    }
+
+    /** Returns a new bundle with all the statuses of the table. */
+    PersistableBundle toBundle() {
+        PersistableBundle subIdBundle = mOverflow != null
+                ? mOverflow.deepCopy() : new PersistableBundle();
+        for (int index = 0; index < mSetCapabilities.length; index++) {
+            int setCapabilities = mSetCapabilities[index];
+            while (setCapabilities != 0) {
+                int capability = Integer.lowestOneBit(setCapabilities);
+                setCapabilities &= ~capability;
+                putToBundle(subIdBundle, index / NUM_TECHS, index % NUM_TECHS, capability,
+                        (mProvisionedCapabilities[index] & capability) != 0
+                                ? STATUS_PROVISIONED : STATUS_NOT_PROVISIONED);
+            }
+        }
+        return subIdBundle;
+    }
+
+    /** Returns the status in a nested bundle or {@link ImsProvisioningLoader#STATUS_NOT_SET}. */
+    static int getFromBundle(PersistableBundle subIdBundle, int imsFeature, int tech,
+            int capability) {
+        PersistableBundle regTechBundle = subIdBundle.getPersistableBundle(
+                String.valueOf(imsFeature));
+        if (regTechBundle == null) {
+            return STATUS_NOT_SET;
+        }
+        PersistableBundle capabilityBundle = regTechBundle.getPersistableBundle(
+                String.valueOf(tech));
+        if (capabilityBundle == null) {
+            return STATUS_NOT_SET;
+        }
+        return capabilityBundle.getInt(String.valueOf(capability), STATUS_NOT_SET);
+    }
+
+    /** Puts the status in a nested bundle, creating the intermediate bundles as needed. */
+    static void putToBundle(PersistableBundle subIdBundle, int imsFeature, int tech,
+            int capability, int status) {
+        PersistableBundle regTechBundle = subIdBundle.getPersistableBundle(
+                String.valueOf(imsFeature));
+        if (regTechBundle == null) {
+            regTechBundle = new PersistableBundle();
+            subIdBundle.putPersistableBundle(String.valueOf(imsFeature), regTechBundle);
+        }
+
+        PersistableBundle capabilityBundle = regTechBundle.getPersistableBundle(
+                String.valueOf(tech));
+        if (capabilityBundle == null) {
+            capabilityBundle = new PersistableBundle();
+            regTechBundle.putPersistableBundle(String.valueOf(tech), capabilityBundle);
+        }
+
+        capabilityBundle.putInt(String.valueOf(capability), status);
+    }
+
+    private static void removeFromBundle(PersistableBundle subIdBundle, int imsFeature, int tech,
+            int capability) {
+        PersistableBundle regTechBundle = subIdBundle.getPersistableBundle(
+                String.valueOf(imsFeature));
+        if (regTechBundle == null) {
+            return;
+        }
+        PersistableBundle capabilityBundle = regTechBundle.getPersistableBundle(
+                String.valueOf(tech));
+        if (capabilityBundle != null) {
+            capabilityBundle.remove(String.valueOf(capability));
+        }
+    }
+
+    // Returns the index of the (feature, tech) in the table or -1 if the status doesn't fit in it.
+    private static int getIndex(int imsFeature, int tech, int capability) {
+        if (imsFeature < 0 || imsFeature >= NUM_FEATURES || tech < 0 || tech >= NUM_TECHS
+                || Integer.bitCount(capability) != 1) {
+            return -1;
+        }
+        return imsFeature * NUM_TECHS + tech;
+    }
+}
@@ -45,6 +45,7 @@ import android.telephony.ims.aidl.ISipDelegateMessageCallback;
 import android.telephony.ims.feature.ImsFeature;
 import android.telephony.ims.feature.RcsFeature;
 import android.telephony.ims.stub.ImsRegistrationImplBase;
+import android.util.ArrayMap;
 import android.util.Log;
 
 import com.android.ims.ImsManager;
@@ -59,7 +60,9 @@ import com.android.services.telephony.rcs.SipTransportController;
 import com.android.services.telephony.rcs.TelephonyRcsService;
 import com.android.services.telephony.rcs.UceControllerManager;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -77,6 +80,28 @@ public class ImsRcsController extends IImsRcsController.Stub {
     // set by shell cmd phone src set-device-enabled true/false
     private Boolean mSingleRegistrationOverride;
 
+    /**
+     * The verified RcsFeatureController of a subscription along with its features, so the APIs do
+     * not look them up and verify the configuration again on every call.
+     */
+    private static final class RcsFeatureSnapshot {
+        final RcsFeatureController mController;
+        final UceControllerManager mUceControllerManager;
+        final SipTransportController mSipTransportController;
+
+        RcsFeatureSnapshot(RcsFeatureController controller) {
+            mController = controller;
+            mUceControllerManager = controller.getFeature(UceControllerManager.class);
+            mSipTransportController = controller.getFeature(SipTransportController.class);
+        }
+    }
+
+    private final Object mSnapshotLock = new Object();
+    // Keyed by subId. Only replaced as a whole, under mSnapshotLock, so it can be read without it.
+    private volatile Map<Integer, RcsFeatureSnapshot> mSnapshots = Collections.emptyMap();
+    // Bumped when the feature controllers change, guarded by mSnapshotLock.
+    private int mSnapshotGeneration;
+
     /**
      * For apps targeting Android T and above, support the publishing state on APIs, such as
      * {@code RcsUceAdapter#PUBLISH_STATE_PUBLISHING}
@@ -292,8 +317,8 @@ public class ImsRcsController extends IImsRcsController.Stub {
         enforceReadContactsPermission("requestCapabilities");
         final long token = Binder.clearCallingIdentity();
         try {
-            UceControllerManager uceCtrlManager = getRcsFeatureController(subId).getFeature(
-                    UceControllerManager.class);
+            UceControllerManager uceCtrlManager =
+                    getRcsFeatureSnapshot(subId).mUceControllerManager;
             if (uceCtrlManager == null) {
                 throw new ServiceSpecificException(ImsException.CODE_ERROR_UNSUPPORTED_OPERATION,
                         "This subscription does not support UCE.");
@@ -313,8 +338,8 @@ public class ImsRcsController extends IImsRcsController.Stub {
         enforceReadContactsPermission("requestAvailability");
         final long token = Binder.clearCallingIdentity();
         try {
-            UceControllerManager uceCtrlManager = getRcsFeatureController(subId).getFeature(
-                    UceControllerManager.class);
+            UceControllerManager uceCtrlManager =
+                    getRcsFeatureSnapshot(subId).mUceControllerManager;
             if (uceCtrlManager == null) {
                 throw new ServiceSpecificException(ImsException.CODE_ERROR_UNSUPPORTED_OPERATION,
                         "This subscription does not support UCE.");
@@ -334,8 +359,8 @@ public class ImsRcsController extends IImsRcsController.Stub {
         final long token = Binder.clearCallingIdentity();
         boolean isSupportPublishingState = false;
         try {
-            UceControllerManager uceCtrlManager = getRcsFeatureController(subId).getFeature(
-                    UceControllerManager.class);
+            UceControllerManager uceCtrlManager =
+                    getRcsFeatureSnapshot(subId).mUceControllerManager;
             if (uceCtrlManager == null) {
                 throw new ServiceSpecificException(ImsException.CODE_ERROR_UNSUPPORTED_OPERATION,
                         "This subscription does not support UCE.");
@@ -359,8 +384,8 @@ public class ImsRcsController extends IImsRcsController.Stub {
             Set<String> featureTags) throws ImsException {
         // Permission check happening in PhoneInterfaceManager.
         try {
-            UceControllerManager uceCtrlManager = getRcsFeatureController(subId).getFeature(
-                    UceControllerManager.class);
+            UceControllerManager uceCtrlManager =
+                    getRcsFeatureSnapshot(subId).mUceControllerManager;
             if (uceCtrlManager == null) {
                 return null;
             }
@@ -378,8 +403,8 @@ public class ImsRcsController extends IImsRcsController.Stub {
             Set<String> featureTags) throws ImsException {
         // Permission check happening in PhoneInterfaceManager.
         try {
-            UceControllerManager uceCtrlManager = getRcsFeatureController(subId).getFeature(
-                    UceControllerManager.class);
+            UceControllerManager uceCtrlManager =
+                    getRcsFeatureSnapshot(subId).mUceControllerManager;
             if (uceCtrlManager == null) {
                 return null;
             }
@@ -397,8 +422,8 @@ public class ImsRcsController extends IImsRcsController.Stub {
             throws ImsException {
         try {
             // Permission check happening in PhoneInterfaceManager.
-            UceControllerManager uceCtrlManager = getRcsFeatureController(subId).getFeature(
-                    UceControllerManager.class);
+            UceControllerManager uceCtrlManager =
+                    getRcsFeatureSnapshot(subId).mUceControllerManager;
             if (uceCtrlManager == null) {
                 return null;
             }
@@ -416,8 +441,8 @@ public class ImsRcsController extends IImsRcsController.Stub {
             throws ImsException {
         try {
             // Permission check happening in PhoneInterfaceManager.
-            UceControllerManager uceCtrlManager = getRcsFeatureController(subId).getFeature(
-                    UceControllerManager.class);
+            UceControllerManager uceCtrlManager =
+                    getRcsFeatureSnapshot(subId).mUceControllerManager;
             if (uceCtrlManager == null) {
                 return null;
             }
@@ -435,8 +460,8 @@ public class ImsRcsController extends IImsRcsController.Stub {
     public String getLastUcePidfXmlShell(int subId) throws ImsException {
         try {
             // Permission check happening in PhoneInterfaceManager.
-            UceControllerManager uceCtrlManager = getRcsFeatureController(subId).getFeature(
-                    UceControllerManager.class);
+            UceControllerManager uceCtrlManager =
+                    getRcsFeatureSnapshot(subId).mUceControllerManager;
             if (uceCtrlManager == null) {
                 return null;
             }
@@ -489,8 +514,8 @@ public class ImsRcsController extends IImsRcsController.Stub {
         final long token = Binder.clearCallingIdentity();
         boolean isSupportPublishingState = false;
         try {
-            UceControllerManager uceCtrlManager = getRcsFeatureController(subId).getFeature(
-                    UceControllerManager.class);
+            UceControllerManager uceCtrlManager =
+                    getRcsFeatureSnapshot(subId).mUceControllerManager;
             if (uceCtrlManager == null) {
                 throw new ServiceSpecificException(ImsException.CODE_ERROR_UNSUPPORTED_OPERATION,
                         "This subscription does not support UCE.");
@@ -512,8 +537,8 @@ public class ImsRcsController extends IImsRcsController.Stub {
         enforceReadPrivilegedPermission("unregisterUcePublishStateCallback");
         final long token = Binder.clearCallingIdentity();
         try {
-            UceControllerManager uceCtrlManager = getRcsFeatureController(subId).getFeature(
-                    UceControllerManager.class);
+            UceControllerManager uceCtrlManager =
+                    getRcsFeatureSnapshot(subId).mUceControllerManager;
             if (uceCtrlManager == null) {
                 throw new ServiceSpecificException(ImsException.CODE_ERROR_UNSUPPORTED_OPERATION,
                         "This subscription does not support UCE.");
@@ -566,8 +591,7 @@ public class ImsRcsController extends IImsRcsController.Stub {
         }
         final long token = Binder.clearCallingIdentity();
         try {
-            SipTransportController transport = getRcsFeatureController(subId).getFeature(
-                    SipTransportController.class);
+            SipTransportController transport = getRcsFeatureSnapshot(subId).mSipTransportController;
             if (transport == null) {
                 return false;
             }
@@ -609,8 +633,7 @@ public class ImsRcsController extends IImsRcsController.Stub {
 
         final int uid = Binder.getCallingUid();
         final long identity = Binder.clearCallingIdentity();
-        SipTransportController transport = getRcsFeatureController(subId).getFeature(
-                SipTransportController.class);
+        SipTransportController transport = getRcsFeatureSnapshot(subId).mSipTransportController;
         if (transport == null) {
             throw new ServiceSpecificException(ImsException.CODE_ERROR_UNSUPPORTED_OPERATION,
                     "This subscription does not support the creation of SIP delegates");
@@ -634,8 +657,7 @@ public class ImsRcsController extends IImsRcsController.Stub {
         }
         final long identity = Binder.clearCallingIdentity();
         try {
-            SipTransportController transport = getRcsFeatureController(subId).getFeature(
-                    SipTransportController.class);
+            SipTransportController transport = getRcsFeatureSnapshot(subId).mSipTransportController;
             if (transport == null) {
                 return;
             }
@@ -654,8 +676,7 @@ public class ImsRcsController extends IImsRcsController.Stub {
 
         final long identity = Binder.clearCallingIdentity();
         try {
-            SipTransportController transport = getRcsFeatureController(subId).getFeature(
-                    SipTransportController.class);
+            SipTransportController transport = getRcsFeatureSnapshot(subId).mSipTransportController;
             if (transport == null) {
                 return;
             }
@@ -681,8 +702,7 @@ public class ImsRcsController extends IImsRcsController.Stub {
             throw new IllegalArgumentException("Invalid Subscription ID: " + subId);
         }
         try {
-            SipTransportController transport = getRcsFeatureController(subId).getFeature(
-                    SipTransportController.class);
+            SipTransportController transport = getRcsFeatureSnapshot(subId).mSipTransportController;
             if (transport == null) {
                 throw new ServiceSpecificException(ImsException.CODE_ERROR_SERVICE_UNAVAILABLE,
                         "This transport does not support the registerSipDialogStateCallback"
@@ -708,8 +728,7 @@ public class ImsRcsController extends IImsRcsController.Stub {
             throw new IllegalArgumentException("Invalid Subscription ID: " + subId);
         }
         try {
-            SipTransportController transport = getRcsFeatureController(subId).getFeature(
-                    SipTransportController.class);
+            SipTransportController transport = getRcsFeatureSnapshot(subId).mSipTransportController;
             if (transport == null) {
                 throw new ServiceSpecificException(ImsException.CODE_ERROR_SERVICE_UNAVAILABLE,
                         "This transport does not support the unregisterSipDialogStateCallback"
@@ -813,7 +832,44 @@ public class ImsRcsController extends IImsRcsController.Stub {
      * @throws ServiceSpecificException if getting RcsFeatureManager instance failed.
      */
     private RcsFeatureController getRcsFeatureController(int subId) {
-        return getRcsFeatureController(subId, false /* skipVerifyingConfig */);
+        return getRcsFeatureSnapshot(subId).mController;
+    }
+
+    /**
+     * Retrieve the verified RcsFeatureController of the subscription along with its features.
+     * Once verified, they are reused until the feature controllers change.
+     *
+     * @param subId the subscription ID
+     * @return The RcsFeatureSnapshot instance
+     * @throws ServiceSpecificException if getting RcsFeatureManager instance failed.
+     */
+    private RcsFeatureSnapshot getRcsFeatureSnapshot(int subId) {
+        RcsFeatureSnapshot snapshot = mSnapshots.get(subId);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        int generation;
+        synchronized (mSnapshotLock) {
+            generation = mSnapshotGeneration;
+        }
+        snapshot = new RcsFeatureSnapshot(
+                getRcsFeatureController(subId, false /* skipVerifyingConfig */));
+        synchronized (mSnapshotLock) {
+            // Do not publish a snapshot of controllers which changed while it was created.
+            if (generation == mSnapshotGeneration) {
+                Map<Integer, RcsFeatureSnapshot> snapshots = new ArrayMap<>(mSnapshots);
+                snapshots.put(subId, snapshot);
+                mSnapshots = snapshots;
+            }
+        }
+        return snapshot;
+    }
+
+    private void onFeatureControllersChanged() {
+        synchronized (mSnapshotLock) {
+            mSnapshotGeneration++;
+            mSnapshots = Collections.emptyMap();
+        }
     }
 
     /**
@@ -898,7 +954,11 @@ public class ImsRcsController extends IImsRcsController.Stub {
     }
 
     void setRcsService(TelephonyRcsService rcsService) {
+        if (rcsService != null) {
+            rcsService.addFeatureControllersChangedListener(this::onFeatureControllersChanged);
+        }
         mRcsService = rcsService;
+        onFeatureControllersChanged();
     }
 
     /**
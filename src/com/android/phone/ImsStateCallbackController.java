@@ -153,7 +153,14 @@ public class ImsStateCallbackController {
     private MmTelFeatureConnectorFactory mMmTelFeatureFactory;
     private RcsFeatureConnectorFactory mRcsFeatureFactory;
 
+    // Registered callbacks by binder, used to unregister them.
     private HashMap<IBinder, CallbackWrapper> mWrappers = new HashMap<>();
+    // The same callbacks indexed by required feature and then by subId, in registration order,
+    // so that a state change only visits the callbacks interested in it.
+    private final SparseArray<SparseArray<ArrayList<CallbackWrapper>>> mWrappersByFeature =
+            new SparseArray<>();
+    // Reused by the handler to collect the callbacks which need to be removed.
+    private final ArrayList<IBinder> mInactiveCallbacks = new ArrayList<>();
 
     private final Object mDumpLock = new Object();
 
@@ -801,7 +808,7 @@ public class ImsStateCallbackController {
 
         if (mWrappers.size() == 0) return;
 
-        ArrayList<IBinder> inactiveCallbacks = new ArrayList<>();
+        ArrayList<IBinder> inactiveCallbacks = mInactiveCallbacks;
         final int[] activeSubs = mSubscriptionManager.getActiveSubscriptionIdList();
 
         if (VDBG) logv("onSubChanged activeSubs=" + Arrays.toString(activeSubs));
@@ -830,15 +837,17 @@ public class ImsStateCallbackController {
                     + ", reason=" + imsStateReasonToString(reason));
         }
 
-        ArrayList<IBinder> inactiveCallbacks = new ArrayList<>();
-        mWrappers.values().forEach(wrapper -> {
-            if (subId == wrapper.mSubId
-                    && feature == wrapper.mRequiredFeature
-                    && !wrapper.notifyState(subId, feature, state, reason)) {
+        ArrayList<CallbackWrapper> wrappers = getWrappers(subId, feature);
+        if (wrappers == null) return;
+
+        ArrayList<IBinder> inactiveCallbacks = mInactiveCallbacks;
+        for (int i = 0; i < wrappers.size(); i++) {
+            CallbackWrapper wrapper = wrappers.get(i);
+            if (!wrapper.notifyState(subId, feature, state, reason)) {
                 // callback has exception, remove it
                 inactiveCallbacks.add(wrapper.mBinder);
             }
-        });
+        }
         removeInactiveCallbacks(inactiveCallbacks, "onFeatureStateChange");
     }
 
@@ -858,14 +867,14 @@ public class ImsStateCallbackController {
         // The validity of the subId is checked PhoneInterfaceManager#registerImsStateCallback.
         // So, register the wrapper here before trying to notifyState.
         // TODO: implement the recovery for this case, notifying the current reson, in onSubChanged
-        mWrappers.put(wrapper.mBinder, wrapper);
+        addWrapper(wrapper);
 
         if (wrapper.mRequiredFeature == FEATURE_MMTEL) {
             for (int i = 0; i < mMmTelFeatureListeners.size(); i++) {
                 if (wrapper.mSubId == getSubId(i)) {
                     MmTelFeatureListener l = mMmTelFeatureListeners.valueAt(i);
                     if (!l.notifyState(wrapper)) {
-                        mWrappers.remove(wrapper.mBinder);
+                        removeWrapper(wrapper.mBinder);
                     }
                     break;
                 }
@@ -875,7 +884,7 @@ public class ImsStateCallbackController {
                 if (wrapper.mSubId == getSubId(i)) {
                     RcsFeatureListener l = mRcsFeatureListeners.valueAt(i);
                     if (!l.notifyState(wrapper)) {
-                        mWrappers.remove(wrapper.mBinder);
+                        removeWrapper(wrapper.mBinder);
                     }
                     break;
                 }
@@ -887,7 +896,48 @@ public class ImsStateCallbackController {
 
     private void onUnregisterCallback(IImsStateCallback cb) {
         if (cb == null) return;
-        mWrappers.remove(cb.asBinder());
+        removeWrapper(cb.asBinder());
+    }
+
+    private ArrayList<CallbackWrapper> getWrappers(int subId, int feature) {
+        SparseArray<ArrayList<CallbackWrapper>> wrappersBySubId = mWrappersByFeature.get(feature);
+        return wrappersBySubId != null ? wrappersBySubId.get(subId) : null;
+    }
+
+    private void addWrapper(CallbackWrapper wrapper) {
+        // A binder registered again replaces its previous registration.
+        removeWrapper(wrapper.mBinder);
+        mWrappers.put(wrapper.mBinder, wrapper);
+
+        SparseArray<ArrayList<CallbackWrapper>> wrappersBySubId =
+                mWrappersByFeature.get(wrapper.mRequiredFeature);
+        if (wrappersBySubId == null) {
+            wrappersBySubId = new SparseArray<>();
+            mWrappersByFeature.put(wrapper.mRequiredFeature, wrappersBySubId);
+        }
+        ArrayList<CallbackWrapper> wrappers = wrappersBySubId.get(wrapper.mSubId);
+        if (wrappers == null) {
+            wrappers = new ArrayList<>();
+            wrappersBySubId.put(wrapper.mSubId, wrappers);
+        }
+        wrappers.add(wrapper);
+    }
+
+    private CallbackWrapper removeWrapper(IBinder binder) {
+        CallbackWrapper wrapper = mWrappers.remove(binder);
+        if (wrapper == null) return null;
+
+        SparseArray<ArrayList<CallbackWrapper>> wrappersBySubId =
+                mWrappersByFeature.get(wrapper.mRequiredFeature);
+        ArrayList<CallbackWrapper> wrappers =
+                wrappersBySubId != null ? wrappersBySubId.get(wrapper.mSubId) : null;
+        if (wrappers != null) {
+            wrappers.remove(wrapper);
+            if (wrappers.isEmpty()) {
+                wrappersBySubId.remove(wrapper.mSubId);
+            }
+        }
+        return wrapper;
     }
 
     private void onCarrierConfigChanged(int slotId) {
@@ -1018,11 +1068,10 @@ public class ImsStateCallbackController {
         }
 
         for (IBinder binder : inactiveCallbacks) {
-            CallbackWrapper wrapper = mWrappers.get(binder);
+            CallbackWrapper wrapper = removeWrapper(binder);
             if (wrapper != null) {
                 // Send the reason REASON_SUBSCRIPTION_INACTIVE to the client
                 wrapper.notifyInactive();
-                mWrappers.remove(binder);
             }
         }
         inactiveCallbacks.clear();
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.util.SparseArray;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+/**
+ * Per command statistics of the requests {@link PhoneInterfaceManager} runs on the main thread.
+ * Queue wait is the time between posting a request and the main thread picking it up, execution
+ * time is the time from there until the request completes, including any modem round trip.
+ *
+ * Requests are also grouped into lanes, see {@link #LANE_MODEM_IO}, for which the number of
+ * requests waiting to be picked up is tracked.
+ *
+ * All methods are thread safe.
+ */
+final class MainThreadRequestStats {
+
+    /** Requests which are answered by the modem. */
+    static final int LANE_MODEM_IO = 0;
+    /** Requests which exchange APDUs with the SIM. */
+    static final int LANE_SIM_IO = 1;
+    /** Requests which are answered from local state, without a modem round trip. */
+    static final int LANE_LOCAL = 2;
+    private static final String[] LANE_NAMES = {"modem I/O", "SIM I/O", "local"};
+
+    /** Statistics of a single command. */
+    static final class CommandStats {
+        int count;
+        int timeouts;
+        int lateCompletions;
+        int coalesced;
+        long totalQueueWaitMs;
+        long maxQueueWaitMs;
+        long totalExecutionMs;
+        long maxExecutionMs;
+
+        private CommandStats copy() {
+            CommandStats copy = new CommandStats();
+            copy.count = count;
+            copy.timeouts = timeouts;
+            copy.lateCompletions = lateCompletions;
+            copy.coalesced = coalesced;
+            copy.totalQueueWaitMs = totalQueueWaitMs;
+            copy.maxQueueWaitMs = maxQueueWaitMs;
+            copy.totalExecutionMs = totalExecutionMs;
+            copy.maxExecutionMs = maxExecutionMs;
+            return copy;
+        }
+    }
+
+    private final Object mLock = new Object();
+    // Keyed by command, guarded by mLock.
+    private final SparseArray<CommandStats> mStats = new SparseArray<>();
+    // Indexed by lane, guarded by mLock.
+    private final int[] mQueueDepth = new int[LANE_NAMES.length];
+    private final int[] mMaxQueueDepth = new int[LANE_NAMES.length];
+
+    /** Records a request posted to the lane. */
+    void recordPosted(int lane) {
+        synchronized (mLock) {
+            mQueueDepth[lane]++;
+            mMaxQueueDepth[lane] = Math.max(mMaxQueueDepth[lane], mQueueDepth[lane]);
+        }
+    }
+
+    /** Records a request of the lane picked up by its handler. */
+    void recordStarted(int lane) {
+        synchronized (mLock) {
+            mQueueDepth[lane]--;
+        }
+    }
+
+    /** Returns the number of requests of the lane waiting to be picked up. */
+    int getQueueDepth(int lane) {
+        synchronized (mLock) {
+            return mQueueDepth[lane];
+        }
+    }
+
+    /**
+     * Records a completed request.
+     *
+     * @param command the CMD_ code of the request.
+     * @param queueWaitMs time the request waited for the main thread.
+     * @param executionMs time from the start of the request until its completion.
+     * @param late whether the requester had already given up waiting.
+     */
+    void recordCompletion(int command, long queueWaitMs, long executionMs, boolean late) {
+        synchronized (mLock) {
+            CommandStats stats = getOrCreateLocked(command);
+            stats.count++;
+            stats.totalQueueWaitMs += queueWaitMs;
+            stats.maxQueueWaitMs = Math.max(stats.maxQueueWaitMs, queueWaitMs);
+            stats.totalExecutionMs += executionMs;
+            stats.maxExecutionMs = Math.max(stats.maxExecutionMs, executionMs);
+            if (late) {
+                stats.lateCompletions++;
+            }
+        }
+    }
+
+    /** Records a request whose requester stopped waiting once the deadline passed. */
+    void recordTimeout(int command) {
+        synchronized (mLock) {
+            getOrCreateLocked(command).timeouts++;
+        }
+    }
+
+    /** Records a request answered by an identical request instead of its own modem query. */
+    void recordCoalesced(int command) {
+        synchronized (mLock) {
+            getOrCreateLocked(command).coalesced++;
+        }
+    }
+
+    /** Returns a copy of the statistics of the command, or null if nothing was recorded. */
+    CommandStats getStats(int command) {
+        synchronized (mLock) {
+            CommandStats stats = mStats.get(command);
+            return stats == null ? null : stats.copy();
+        }
+    }
+
+    void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Request lanes (queue depth, max queue depth):");
+            pw.increaseIndent();
+            for (int lane = 0; lane < LANE_NAMES.length; lane++) {
+                pw.println(LANE_NAMES[lane] + ": " + mQueueDepth[lane] + ", "
+                        + mMaxQueueDepth[lane]);
+            }
+            pw.decreaseIndent();
+            pw.println("Main thread requests (count, timeouts, late, avg/max queue ms,"
+                    + " avg/max execution ms, coalesced):");
+            pw.increaseIndent();
+            for (int i = 0; i < mStats.size(); i++) {
+                CommandStats stats = mStats.valueAt(i);
+                long divisor = Math.max(1, stats.count);
+                pw.println("CMD " + mStats.keyAt(i) + ": " + stats.count + ", " + stats.timeouts
+                        + ", " + stats.lateCompletions + ", "
+                        + stats.totalQueueWaitMs / divisor + "/" + stats.maxQueueWaitMs + ", "
+                        + stats.totalExecutionMs / divisor + "/" + stats.maxExecutionMs + ", "
+                        + stats.coalesced);
+            }
+            pw.decreaseIndent();
+        }
+    }
+
+    private CommandStats getOrCreateLocked(int command) {
+        CommandStats stats = mStats.get(command);
+        if (stats == null) {
+            stats = new CommandStats();
+            mStats.put(command, stats);
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.LruCache;
+
+import com.android.internal.telephony.TelephonyPermissions;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Caches the results of the package lookups {@link PhoneInterfaceManager} does on behalf of its
+ * callers: whether a uid owns a package, and the target SDK of a package. Both only change when
+ * the package is installed, updated or removed, so entries are dropped on those broadcasts, in
+ * any user, for the callers of that user, and otherwise expire after {@link #ENTRY_LIFETIME_MS}.
+ *
+ * Permission and location checks are not cached: they note app ops, and skipping those would
+ * hide the access from the user.
+ *
+ * All methods are thread safe.
+ */
+final class PackageCheckCache {
+    private static final int MAX_ENTRIES = 256;
+    private static final long ENTRY_LIFETIME_MS = 60_000;
+
+    private static final int CHECK_PACKAGE = 0;
+    private static final int TARGET_SDK = 1;
+
+    /** Identifies a cached lookup. */
+    private static final class Key {
+        final int mCheck;
+        final int mUid;
+        final String mPackageName;
+
+        Key(int check, int uid, String packageName) {
+            mCheck = check;
+            mUid = uid;
+            mPackageName = packageName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return mCheck == other.mCheck && mUid == other.mUid
+                    && Objects.equals(mPackageName, other.mPackageName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mCheck, mUid, mPackageName);
+        }
+    }
+
+    private static final class Entry {
+        final int mValue;
+        final long mExpiryTimeMs;
+
+        Entry(int value, long expiryTimeMs) {
+            mValue = value;
+            mExpiryTimeMs = expiryTimeMs;
+        }
+    }
+
+    /** Counters of the lookups of one API. */
+    private static final class ApiStats {
+        int mLookups;
+        int mHits;
+        long mMissNanos;
+    }
+
+    private final Context mContext;
+    private final LruCache<Key, Entry> mEntries = new LruCache<>(MAX_ENTRIES);
+    // Keyed by API name, guarded by itself.
+    private final Map<String, ApiStats> mApiStats = new ArrayMap<>();
+
+    private final BroadcastReceiver mPackageChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getData() == null) {
+                return;
+            }
+            String packageName = intent.getData().getSchemeSpecificPart();
+            // The uid of the package in the user it changed in. Drop the entries of all users if
+            // it is missing.
+            int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            for (Key key : mEntries.snapshot().keySet()) {
+                if (key.mPackageName.equals(packageName) && (uid == -1
+                        || UserHandle.getUserId(key.mUid) == UserHandle.getUserId(uid))) {
+                    mEntries.remove(key);
+                }
+            }
+        }
+    };
+
+    PackageCheckCache(Context context) {
+        mContext = context;
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        // The callers, and so the cached packages, may belong to any user.
+        context.registerReceiverForAllUsers(mPackageChangedReceiver, filter, null, null);
+    }
+
+    /**
+     * Same as {@link AppOpsManager#checkPackage}.
+     *
+     * @param api the calling API, for the counters in dump.
+     * @throws SecurityException if the uid does not own the package.
+     */
+    void checkPackage(String api, int uid, String packageName) {
+        if (packageName == null) {
+            // Let AppOpsManager report the failure.
+            mContext.getSystemService(AppOpsManager.class).checkPackage(uid, packageName);
+            return;
+        }
+        Key key = new Key(CHECK_PACKAGE, uid, packageName);
+        if (getCached(api, key) != null) {
+            return;
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            // Failures throw and are not cached.
+            mContext.getSystemService(AppOpsManager.class).checkPackage(uid, packageName);
+            put(key, 0);
+        } finally {
+            recordMiss(api, SystemClock.elapsedRealtimeNanos() - start);
+        }
+    }
+
+    /**
+     * Same as {@link TelephonyPermissions#getTargetSdk}.
+     *
+     * @param api the calling API, for the counters in dump.
+     * @param uid the uid of the caller, which determines the user of the package.
+     */
+    int getTargetSdk(String api, int uid, String packageName) {
+        if (packageName == null) {
+            return TelephonyPermissions.getTargetSdk(mContext, packageName);
+        }
+        Key key = new Key(TARGET_SDK, uid, packageName);
+        Entry entry = getCached(api, key);
+        if (entry != null) {
+            return entry.mValue;
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        int targetSdk = TelephonyPermissions.getTargetSdk(mContext, packageName);
+        put(key, targetSdk);
+        recordMiss(api, SystemClock.elapsedRealtimeNanos() - start);
+        return targetSdk;
+    }
+
+    void dump(IndentingPrintWriter pw) {
+        pw.println("Package check cache (lookups, hits, avg miss us):");
+        pw.increaseIndent();
+        synchronized (mApiStats) {
+            for (Map.Entry<String, ApiStats> entry : mApiStats.entrySet()) {
+                ApiStats stats = entry.getValue();
+                int misses = stats.mLookups - stats.mHits;
+                pw.println(entry.getKey() + ": " + stats.mLookups + ", " + stats.mHits + ", "
+                        + (misses == 0 ? 0 : stats.mMissNanos / misses / 1000));
+            }
+        }
+        pw.decreaseIndent();
+    }
+
+    private Entry getCached(String api, Key key) {
+        Entry entry = mEntries.get(key);
+        if (entry != null && entry.mExpiryTimeMs < SystemClock.elapsedRealtime()) {
+            mEntries.remove(key);
+            entry = null;
+        }
+        synchronized (mApiStats) {
+            ApiStats stats = mApiStats.get(api);
+            if (stats == null) {
+                stats = new ApiStats();
+                mApiStats.put(api, stats);
+            }
+            stats.mLookups++;
+            if (entry != null) {
+                stats.mHits++;
+            }
+        }
+        return entry;
+    }
+
+    private void put(Key key, int value) {
+        mEntries.put(key, new Entry(value, SystemClock.elapsedRealtime() + ENTRY_LIFETIME_MS));
+    }
+
+    private void recordMiss(String api, long nanos) {
+        synchronized (mApiStats) {
+            mApiStats.get(api).mMissNanos += nanos;
+        }
+    }
+}
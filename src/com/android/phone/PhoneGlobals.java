@@ -1375,6 +1375,14 @@ public class PhoneGlobals extends ContextWrapper {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        pw.println("PhoneInterfaceManager:");
+        pw.increaseIndent();
+        try {
+            if (phoneMgr != null) phoneMgr.dumpStats(pw);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        pw.decreaseIndent();
         pw.println("DomainSelectionResolver:");
         pw.increaseIndent();
         try {
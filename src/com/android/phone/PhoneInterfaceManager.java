@@ -55,6 +55,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.DropBoxManager;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.ICancellationSignal;
 import android.os.LocaleList;
@@ -237,6 +238,7 @@ import com.android.internal.telephony.util.TelephonyUtils;
 import com.android.internal.telephony.util.VoicemailNotificationSettingsUtil;
 import com.android.internal.util.FunctionalUtils;
 import com.android.internal.util.HexDump;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.phone.callcomposer.CallComposerPictureManager;
 import com.android.phone.callcomposer.CallComposerPictureTransfer;
 import com.android.phone.callcomposer.ImageData;
@@ -269,7 +271,14 @@ import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
@@ -300,7 +309,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private static final int EVENT_RESET_MODEM_CONFIG_DONE = 20;
     private static final int CMD_GET_ALLOWED_NETWORK_TYPES_BITMASK = 21;
     private static final int EVENT_GET_ALLOWED_NETWORK_TYPES_BITMASK_DONE = 22;
-    private static final int CMD_SEND_ENVELOPE = 25;
+    @VisibleForTesting
+    static final int CMD_SEND_ENVELOPE = 25;
     private static final int EVENT_SEND_ENVELOPE_DONE = 26;
     private static final int CMD_TRANSMIT_APDU_BASIC_CHANNEL = 29;
     private static final int EVENT_TRANSMIT_APDU_BASIC_CHANNEL_DONE = 30;
@@ -308,7 +318,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private static final int EVENT_EXCHANGE_SIM_IO_DONE = 32;
     private static final int CMD_SET_VOICEMAIL_NUMBER = 33;
     private static final int EVENT_SET_VOICEMAIL_NUMBER_DONE = 34;
-    private static final int CMD_SET_NETWORK_SELECTION_MODE_AUTOMATIC = 35;
+    @VisibleForTesting
+    static final int CMD_SET_NETWORK_SELECTION_MODE_AUTOMATIC = 35;
     private static final int EVENT_SET_NETWORK_SELECTION_MODE_AUTOMATIC_DONE = 36;
     private static final int CMD_GET_MODEM_ACTIVITY_INFO = 37;
     private static final int EVENT_GET_MODEM_ACTIVITY_INFO_DONE = 38;
@@ -325,7 +336,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private static final int EVENT_GET_FORBIDDEN_PLMNS_DONE = 49;
     private static final int CMD_SWITCH_SLOTS = 50;
     private static final int EVENT_SWITCH_SLOTS_DONE = 51;
-    private static final int CMD_GET_NETWORK_SELECTION_MODE = 52;
+    @VisibleForTesting
+    static final int CMD_GET_NETWORK_SELECTION_MODE = 52;
     private static final int EVENT_GET_NETWORK_SELECTION_MODE_DONE = 53;
     private static final int CMD_GET_CDMA_ROAMING_MODE = 54;
     private static final int EVENT_GET_CDMA_ROAMING_MODE_DONE = 55;
@@ -333,9 +345,11 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private static final int EVENT_SET_CDMA_ROAMING_MODE_DONE = 57;
     private static final int CMD_SET_CDMA_SUBSCRIPTION_MODE = 58;
     private static final int EVENT_SET_CDMA_SUBSCRIPTION_MODE_DONE = 59;
-    private static final int CMD_GET_ALL_CELL_INFO = 60;
+    @VisibleForTesting
+    static final int CMD_GET_ALL_CELL_INFO = 60;
     private static final int EVENT_GET_ALL_CELL_INFO_DONE = 61;
-    private static final int CMD_GET_CELL_LOCATION = 62;
+    @VisibleForTesting
+    static final int CMD_GET_CELL_LOCATION = 62;
     private static final int EVENT_GET_CELL_LOCATION_DONE = 63;
     private static final int CMD_MODEM_REBOOT = 64;
     private static final int EVENT_CMD_MODEM_REBOOT_DONE = 65;
@@ -392,6 +406,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private static final int EVENT_IS_VONR_ENABLED_DONE = 116;
     private static final int CMD_PURCHASE_PREMIUM_CAPABILITY = 117;
     private static final int EVENT_PURCHASE_PREMIUM_CAPABILITY_DONE = 118;
+    private static final int CMD_TRANSMIT_APDU_BATCH_LOGICAL_CHANNEL = 119;
+    private static final int EVENT_TRANSMIT_APDU_BATCH_LOGICAL_CHANNEL_DONE = 120;
 
     // Parameters of select command.
     private static final int SELECT_COMMAND = 0xA4;
@@ -417,6 +433,23 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private final UserManager mUserManager;
     private final AppOpsManager mAppOps;
     private final MainThreadHandler mMainThreadHandler;
+    // Runs the SIM I/O requests, so a slow SIM does not delay the requests on the main thread.
+    private final MainThreadHandler mSimIoHandler;
+    private final MainThreadRequestStats mRequestStats = new MainThreadRequestStats();
+    private final PackageCheckCache mPackageCheckCache;
+    private final Object mCellInfoSnapshotLock = new Object();
+    // Replaced under mCellInfoSnapshotLock, read without it.
+    private volatile CellInfoSnapshot mCellInfoSnapshot;
+    // Sends the USSD requests for call waiting. When all threads are busy and the queue is full,
+    // the request is sent from the binder thread.
+    private final ThreadPoolExecutor mUssdExecutor = new ThreadPoolExecutor(2, 2, 30,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<>(16),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    private final Object mCoalescingLock = new Object();
+    // Requests which identical requests can join, guarded by mCoalescingLock.
+    private final Map<RequestKey, MainThreadRequest> mInFlightRequests = new HashMap<>();
+    // Results which identical requests can reuse, guarded by mCoalescingLock.
+    private final Map<RequestKey, CachedResult> mCachedResults = new HashMap<>();
     private final SharedPreferences mTelephonySharedPreferences;
     private final PhoneConfigurationManager mPhoneConfigurationManager;
     private final RadioInterfaceCapabilityController mRadioInterfaceCapabilities;
@@ -457,6 +490,15 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
     private static final int SET_NETWORK_SELECTION_MODE_AUTOMATIC_TIMEOUT_MS = 2000; // 2 seconds
 
+    // A blocking request still pending after this long is logged, to diagnose a stuck main thread
+    // or modem.
+    private static final long SLOW_REQUEST_WARNING_MS = 5000;
+
+    // Deadline for collecting the cell info of all phones, the phones which did not answer by then
+    // are left out. Phone#requestCellInfoUpdate answers with an empty result after its own,
+    // shorter, modem timeout, so this only drops the results of a modem which is stuck.
+    private static final long GET_ALL_CELL_INFO_TIMEOUT_MS = 5000;
+
     private static final int MODEM_ACTIVITY_TIME_OFFSET_CORRECTION_MS = 50;
 
     /**
@@ -522,14 +564,27 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     }
 
     /**
-     * A request object for use with {@link MainThreadHandler}. Requesters should wait() on the
-     * request after sending. The main thread will notify the request when it is complete.
+     * A request object for use with {@link MainThreadHandler}. Requesters wait on {@link #future}
+     * after sending. The main thread completes the future with {@link #result} when the request
+     * is complete.
      */
-    private static final class MainThreadRequest {
+    @VisibleForTesting
+    static final class MainThreadRequest {
         /** The argument to use for the request */
         public Object argument;
         /** The result of the request that is run on the main thread */
         public Object result;
+        /** Completed with the result once the request is complete. */
+        public final CompletableFuture<Object> future = new CompletableFuture<>();
+        /** The CMD_ code of the request, used for the request statistics. */
+        public int command = -1;
+        /** When the request was posted to, and picked up by, the main thread. */
+        public long postedTimeMs;
+        public volatile long startedTimeMs;
+        /** Set once the requester stopped waiting for the result. */
+        public volatile boolean abandoned;
+        /** Set if identical requests may share this one, see {@link #postRequest}. */
+        public RequestKey coalescingKey;
         // The subscriber id that this request applies to. Defaults to
         // SubscriptionManager.INVALID_SUBSCRIPTION_ID
         public Integer subId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
@@ -560,6 +615,58 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         }
     }
 
+    /** Identifies requests which are answered by the same modem round trip. */
+    private static final class RequestKey {
+        private final int mCommand;
+        private final int mSubId;
+        private final int mPhoneId;
+        private final Object mArgument;
+        // The phone the request is run on, not part of the identity of the request.
+        private final int mTargetPhoneId;
+
+        RequestKey(int command, int subId, Phone phone, Object argument) {
+            mCommand = command;
+            mSubId = subId;
+            mPhoneId = phone != null ? phone.getPhoneId() : SubscriptionManager.INVALID_PHONE_INDEX;
+            mArgument = argument;
+            mTargetPhoneId = getTargetPhoneId(subId, phone);
+        }
+
+        /** Whether the command, run on the phone, may change the result of this request. */
+        boolean isChangedBy(int command, int phoneId) {
+            if (!changesQueryResult(command, mCommand)) return false;
+            // Requests on the default phone, or on none, may run on any phone.
+            return phoneId == SubscriptionManager.INVALID_PHONE_INDEX
+                    || mTargetPhoneId == SubscriptionManager.INVALID_PHONE_INDEX
+                    || phoneId == mTargetPhoneId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof RequestKey)) return false;
+            RequestKey other = (RequestKey) o;
+            return mCommand == other.mCommand && mSubId == other.mSubId
+                    && mPhoneId == other.mPhoneId && Objects.equals(mArgument, other.mArgument);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mCommand, mSubId, mPhoneId, mArgument);
+        }
+    }
+
+    /** A completed request whose result may be reused for a while. */
+    private static final class CachedResult {
+        final Object result;
+        final long completedTimeMs;
+
+        CachedResult(Object result, long completedTimeMs) {
+            this.result = result;
+            this.completedTimeMs = completedTimeMs;
+        }
+    }
+
     private static final class IncomingThirdPartyCallArgs {
         public final ComponentName component;
         public final String callId;
@@ -586,6 +693,14 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
      * unblock.
      */
     private final class MainThreadHandler extends Handler {
+        MainThreadHandler() {
+            super();
+        }
+
+        MainThreadHandler(Looper looper) {
+            super(looper);
+        }
+
         @Override
         public void handleMessage(Message msg) {
             MainThreadRequest request;
@@ -595,6 +710,12 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             IccAPDUArgument iccArgument;
             final Phone defaultPhone = getDefaultPhone();
 
+            if (msg.obj instanceof MainThreadRequest
+                    && ((MainThreadRequest) msg.obj).startedTimeMs == 0) {
+                ((MainThreadRequest) msg.obj).startedTimeMs = SystemClock.elapsedRealtime();
+                mRequestStats.recordStarted(getCommandLane(msg.what));
+            }
+
             switch (msg.what) {
                 case CMD_HANDLE_USSD_REQUEST: {
                     request = (MainThreadRequest) msg.obj;
@@ -675,6 +796,49 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     notifyRequester(request);
                     break;
 
+                case CMD_TRANSMIT_APDU_BATCH_LOGICAL_CHANNEL: {
+                    request = (MainThreadRequest) msg.obj;
+                    IccApduBatch batch = (IccApduBatch) request.argument;
+                    uiccPort = getUiccPortFromRequest(request);
+                    if (uiccPort == null) {
+                        loge("iccTransmitApduBatchLogicalChannel: No UICC");
+                        batch.onResponse(new IccIoResult(0x6F, 0, (byte[]) null));
+                        request.result = batch.getResponses();
+                        notifyRequester(request);
+                    } else {
+                        batch.sendNext(uiccPort, obtainMessage(
+                                EVENT_TRANSMIT_APDU_BATCH_LOGICAL_CHANNEL_DONE, request));
+                    }
+                    break;
+                }
+
+                case EVENT_TRANSMIT_APDU_BATCH_LOGICAL_CHANNEL_DONE: {
+                    ar = (AsyncResult) msg.obj;
+                    request = (MainThreadRequest) ar.userObj;
+                    IccApduBatch batch = (IccApduBatch) request.argument;
+                    if (ar.exception == null && ar.result != null) {
+                        batch.onResponse((IccIoResult) ar.result);
+                    } else {
+                        loge("iccTransmitApduBatchLogicalChannel: " + (ar.result == null
+                                ? "Empty response" : "Exception: " + ar.exception));
+                        batch.onResponse(new IccIoResult(0x6F, 0, (byte[]) null));
+                    }
+                    uiccPort = batch.isDone() ? null : getUiccPortFromRequest(request);
+                    if (uiccPort != null) {
+                        // Send the next APDU right away, without waking up the requester.
+                        batch.sendNext(uiccPort, obtainMessage(
+                                EVENT_TRANSMIT_APDU_BATCH_LOGICAL_CHANNEL_DONE, request));
+                        break;
+                    }
+                    if (!batch.isDone()) {
+                        loge("iccTransmitApduBatchLogicalChannel: No UICC");
+                        batch.onResponse(new IccIoResult(0x6F, 0, (byte[]) null));
+                    }
+                    request.result = batch.getResponses();
+                    notifyRequester(request);
+                    break;
+                }
+
                 case CMD_TRANSMIT_APDU_BASIC_CHANNEL:
                     request = (MainThreadRequest) msg.obj;
                     iccArgument = (IccAPDUArgument) request.argument;
@@ -1748,9 +1912,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     // If a timeout occurs, the response will be null
                     request.result = (ar.exception == null && ar.result != null)
                             ? ar.result : new ArrayList<CellInfo>();
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
                 case CMD_REQUEST_CELL_INFO_UPDATE:
                     request = (MainThreadRequest) msg.obj;
@@ -1797,9 +1959,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                                 ? new CellIdentityCdma() : new CellIdentityGsm();
                     }
 
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
                 }
                 case CMD_MODEM_REBOOT:
@@ -2263,9 +2423,20 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         }
 
         private void notifyRequester(MainThreadRequest request) {
-            synchronized (request) {
-                request.notifyAll();
+            if (request.future.isDone()) {
+                return;
+            }
+            if (request.coalescingKey != null) {
+                onCoalescedRequestCompleted(request);
+            }
+            if (request.command >= 0) {
+                long now = SystemClock.elapsedRealtime();
+                long startedTimeMs = request.startedTimeMs != 0 ? request.startedTimeMs : now;
+                mRequestStats.recordCompletion(request.command,
+                        startedTimeMs - request.postedTimeMs, now - startedTimeMs,
+                        request.abandoned);
             }
+            request.future.complete(request.result);
         }
 
         private void handleNullReturnEvent(Message msg, String command) {
@@ -2314,17 +2485,6 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         return sendRequest(command, argument, subId, null, null, -1 /*timeoutInMs*/);
     }
 
-    /**
-     * Posts the specified command to be executed on the main thread,
-     * waits for the request to complete for at most {@code timeoutInMs}, and returns the result
-     * if not timeout or null otherwise.
-     * @see #sendRequestAsync
-     */
-    private @Nullable Object sendRequest(int command, Object argument, Integer subId,
-            long timeoutInMs) {
-        return sendRequest(command, argument, subId, null, null, timeoutInMs);
-    }
-
     /**
      * Posts the specified command to be executed on the main thread,
      * waits for the request to complete, and returns the result.
@@ -2346,8 +2506,9 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
     /**
      * Posts the specified command to be executed on the main thread. If {@code timeoutInMs} is
-     * negative, waits for the request to complete, and returns the result. Otherwise, wait for
-     * maximum of {@code timeoutInMs} milliseconds, interrupt and return null.
+     * negative, the deadline of the command is used, see {@link #getCommandDeadlineMs}. Waits for
+     * the request to complete, and returns the result, or gives up and returns null once the
+     * deadline passed.
      * @see #sendRequestAsync
      */
     private @Nullable Object sendRequest(int command, Object argument, Integer subId, Phone phone,
@@ -2356,6 +2517,80 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             throw new RuntimeException("This method will deadlock if called from the main thread.");
         }
 
+        if (timeoutInMs < 0) {
+            timeoutInMs = getCommandDeadlineMs(command);
+        }
+        MainThreadRequest request = postRequest(command, argument, subId, phone, workSource);
+        Object result = waitForResult(request, timeoutInMs);
+        if (!request.future.isDone()) {
+            Log.wtf(LOG_TAG, "sendRequest: Blocking command " + command
+                    + " timed out. Something has gone terribly wrong.");
+        }
+        return result;
+    }
+
+    /**
+     * Returns for how long a blocking request of the command is waited for before giving up on
+     * it, or -1 to wait until it completes. Only commands whose callers can do without the result
+     * have a deadline; the callers of the others unbox the result.
+     */
+    private static long getCommandDeadlineMs(int command) {
+        switch (command) {
+            case CMD_SET_NETWORK_SELECTION_MODE_AUTOMATIC:
+                return SET_NETWORK_SELECTION_MODE_AUTOMATIC_TIMEOUT_MS;
+            case CMD_GET_ALL_CELL_INFO:
+                return GET_ALL_CELL_INFO_TIMEOUT_MS;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Posts the specified command to be executed on the main thread once for each of the phones,
+     * without waiting for one to complete before posting the next, then waits for them until the
+     * deadline of the command, see {@link #getCommandDeadlineMs}, which they all share.
+     *
+     * @return the results in the order of {@code phones}, with null for the requests which did
+     * not complete in time.
+     */
+    @VisibleForTesting
+    List<Object> sendRequestToPhones(int command, Object argument, Phone[] phones,
+            WorkSource workSource) {
+        if (Looper.myLooper() == mMainThreadHandler.getLooper()) {
+            throw new RuntimeException("This method will deadlock if called from the main thread.");
+        }
+
+        List<MainThreadRequest> requests = new ArrayList<>(phones.length);
+        for (Phone phone : phones) {
+            requests.add(postRequest(command, argument, SubscriptionManager.INVALID_SUBSCRIPTION_ID,
+                    phone, workSource));
+        }
+        final long timeoutInMs = getCommandDeadlineMs(command);
+        final long deadline = SystemClock.elapsedRealtime() + timeoutInMs;
+        List<Object> results = new ArrayList<>(phones.length);
+        for (MainThreadRequest request : requests) {
+            long remainingMs = timeoutInMs < 0
+                    ? -1 : Math.max(0, deadline - SystemClock.elapsedRealtime());
+            Object result = waitForResult(request, remainingMs);
+            if (!request.future.isDone()) {
+                Log.w(LOG_TAG, "sendRequestToPhones: command " + command + " timed out for phone "
+                        + request.phone.getPhoneId());
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Posts the request to the main thread. For queries which can be coalesced, see
+     * {@link #isCoalescingCommand}, the request is completed with the result of an identical
+     * request still in flight, or with a recent result of one, instead of being posted again.
+     * Such a request is still waited for and abandoned on its own, the modem query is made for
+     * the {@code workSource} of the request which reached the modem.
+     */
+    @VisibleForTesting
+    MainThreadRequest postRequest(int command, Object argument, Integer subId,
+            Phone phone, WorkSource workSource) {
         MainThreadRequest request = null;
         if (subId != SubscriptionManager.INVALID_SUBSCRIPTION_ID && phone != null) {
             throw new IllegalArgumentException("subId and phone cannot both be specified!");
@@ -2364,41 +2599,251 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         } else {
             request = new MainThreadRequest(argument, subId, workSource);
         }
+        if (!isCoalescingCommand(command)) {
+            dispatchRequest(command, request);
+            return request;
+        }
+
+        RequestKey key = new RequestKey(command, request.subId, phone, argument);
+        synchronized (mCoalescingLock) {
+            CachedResult cached = mCachedResults.get(key);
+            if (cached != null) {
+                if (SystemClock.elapsedRealtime() - cached.completedTimeMs
+                        <= getResultReuseWindowMs(command)) {
+                    mRequestStats.recordCoalesced(command);
+                    request.command = command;
+                    request.postedTimeMs = SystemClock.elapsedRealtime();
+                    request.result = cached.result;
+                    request.future.complete(cached.result);
+                    return request;
+                }
+                mCachedResults.remove(key);
+            }
+            MainThreadRequest inFlight = mInFlightRequests.get(key);
+            if (inFlight != null) {
+                mRequestStats.recordCoalesced(command);
+                request.command = command;
+                request.postedTimeMs = SystemClock.elapsedRealtime();
+                final MainThreadRequest joiner = request;
+                inFlight.future.thenAccept(result -> {
+                    joiner.result = result;
+                    joiner.future.complete(result);
+                });
+                return request;
+            }
+            request.coalescingKey = key;
+            mInFlightRequests.put(key, request);
+        }
+        dispatchRequest(command, request);
+        return request;
+    }
 
-        Message msg = mMainThreadHandler.obtainMessage(command, request);
-        msg.sendToTarget();
+    /**
+     * Returns whether identical requests of the command can share one modem round trip. Only
+     * queries which do not change any state and do not answer through a callback in their
+     * argument qualify.
+     */
+    private static boolean isCoalescingCommand(int command) {
+        switch (command) {
+            case CMD_GET_FORBIDDEN_PLMNS:
+            case CMD_GET_ALL_CELL_INFO:
+            case CMD_PERFORM_NETWORK_SCAN:
+            case CMD_GET_NETWORK_SELECTION_MODE:
+            case CMD_GET_ALLOWED_NETWORK_TYPES_BITMASK:
+            case CMD_GET_CDMA_ROAMING_MODE:
+            case CMD_GET_MODEM_STATUS:
+            case CMD_GET_SYSTEM_SELECTION_CHANNELS:
+                return true;
+            default:
+                return false;
+        }
+    }
 
+    /**
+     * Returns for how long the result of a coalescing command may be reused by later identical
+     * requests, 0 if only requests in flight at the same time share the result.
+     */
+    private static long getResultReuseWindowMs(int command) {
+        switch (command) {
+            case CMD_GET_FORBIDDEN_PLMNS:
+                return 1000;
+            case CMD_GET_NETWORK_SELECTION_MODE:
+            case CMD_GET_ALLOWED_NETWORK_TYPES_BITMASK:
+                return 500;
+            default:
+                return 0;
+        }
+    }
 
-        synchronized (request) {
-            if (timeoutInMs >= 0) {
-                // Wait for at least timeoutInMs before returning null request result
-                long now = SystemClock.elapsedRealtime();
-                long deadline = now + timeoutInMs;
-                while (request.result == null && now < deadline) {
-                    try {
-                        request.wait(deadline - now);
-                    } catch (InterruptedException e) {
-                        // Do nothing, go back and check if request is completed or timeout
-                    } finally {
-                        now = SystemClock.elapsedRealtime();
-                    }
+    private void onCoalescedRequestCompleted(MainThreadRequest request) {
+        synchronized (mCoalescingLock) {
+            if (mInFlightRequests.get(request.coalescingKey) == request) {
+                mInFlightRequests.remove(request.coalescingKey);
+                // Errors are signalled through exceptions as results, those are not reused.
+                if (getResultReuseWindowMs(request.command) > 0 && request.result != null
+                        && !(request.result instanceof Throwable)) {
+                    mCachedResults.put(request.coalescingKey, new CachedResult(request.result,
+                            SystemClock.elapsedRealtime()));
                 }
-            } else {
-                // Wait for the request to complete
-                while (request.result == null) {
-                    try {
-                        request.wait();
-                    } catch (InterruptedException e) {
-                        // Do nothing, go back and wait until the request is complete
+            }
+        }
+    }
+
+    /**
+     * Returns whether the command may change the result of the coalescing query, so that later
+     * queries on the same phone must not join or reuse the earlier ones.
+     */
+    private static boolean changesQueryResult(int command, int query) {
+        switch (command) {
+            case CMD_SET_FORBIDDEN_PLMNS:
+                return query == CMD_GET_FORBIDDEN_PLMNS;
+            case CMD_SET_NETWORK_SELECTION_MODE_AUTOMATIC:
+            case CMD_SET_NETWORK_SELECTION_MODE_MANUAL:
+                return query == CMD_GET_NETWORK_SELECTION_MODE;
+            case CMD_SET_ALLOWED_NETWORK_TYPES_FOR_REASON:
+                return query == CMD_GET_ALLOWED_NETWORK_TYPES_BITMASK;
+            case CMD_SET_CDMA_ROAMING_MODE:
+                return query == CMD_GET_CDMA_ROAMING_MODE;
+            case CMD_REQUEST_ENABLE_MODEM:
+                return query == CMD_GET_MODEM_STATUS;
+            case CMD_SET_SYSTEM_SELECTION_CHANNELS:
+                return query == CMD_GET_SYSTEM_SELECTION_CHANNELS;
+            case CMD_RESET_MODEM_CONFIG:
+            case CMD_ERASE_MODEM_CONFIG:
+            case CMD_MODEM_REBOOT:
+            case CMD_SET_SIM_POWER:
+            case CMD_SWITCH_SLOTS:
+                // Anything the modem or the SIM answers may change.
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the id of the phone a request for the subId or phone is run on, or
+     * {@link SubscriptionManager#INVALID_PHONE_INDEX} if that is not known up front.
+     */
+    private static int getTargetPhoneId(int subId, Phone phone) {
+        if (phone != null) return phone.getPhoneId();
+        if (subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+            return SubscriptionManager.INVALID_PHONE_INDEX;
+        }
+        return SubscriptionManager.getPhoneId(subId);
+    }
+
+    /**
+     * Keeps later identical queries from joining, or reusing the results of, the queries on the
+     * phone whose result the command may change. The queries on other phones, and those the
+     * command cannot affect, keep being shared.
+     */
+    private void invalidateCoalescedRequests(int command, MainThreadRequest request) {
+        int phoneId = getTargetPhoneId(request.subId, request.phone);
+        synchronized (mCoalescingLock) {
+            mInFlightRequests.keySet().removeIf(key -> key.isChangedBy(command, phoneId));
+            mCachedResults.keySet().removeIf(key -> key.isChangedBy(command, phoneId));
+        }
+    }
+
+    /** Posts the request to the handler of the lane of the command. */
+    private void dispatchRequest(int command, MainThreadRequest request) {
+        if (!isCoalescingCommand(command)) {
+            invalidateCoalescedRequests(command, request);
+        }
+        int lane = getCommandLane(command);
+        request.command = command;
+        request.postedTimeMs = SystemClock.elapsedRealtime();
+        mRequestStats.recordPosted(lane);
+        Handler handler = lane == MainThreadRequestStats.LANE_SIM_IO
+                ? mSimIoHandler : mMainThreadHandler;
+        handler.obtainMessage(command, request).sendToTarget();
+    }
+
+    /**
+     * Returns the lane of the command. Only the commands which merely forward APDUs to the RIL
+     * run on their own thread; everything else touches Phone state and stays on the main thread.
+     * Opening and closing channels updates the channel records of the UiccPort, so it stays on
+     * the main thread as well.
+     *
+     * Using the UiccPort from the SIM I/O thread is safe because these commands neither read nor
+     * change its state: UiccController hands out the port under its own lock, and the port only
+     * passes the APDU on to its CommandsInterface, which the RIL serializes for any thread. The
+     * reply comes back to the handler which sent the request, so the SIM I/O thread completes it.
+     */
+    private static int getCommandLane(int command) {
+        switch (command) {
+            case CMD_TRANSMIT_APDU_LOGICAL_CHANNEL:
+            case CMD_TRANSMIT_APDU_BATCH_LOGICAL_CHANNEL:
+            case CMD_TRANSMIT_APDU_BASIC_CHANNEL:
+            case CMD_EXCHANGE_SIM_IO:
+            case CMD_SEND_ENVELOPE:
+                return MainThreadRequestStats.LANE_SIM_IO;
+            case CMD_HANDLE_USSD_REQUEST:
+            case CMD_HANDLE_PIN_MMI:
+            case CMD_ERASE_DATA_SHARED_PREFERENCES:
+            case CMD_PREPARE_UNATTENDED_REBOOT:
+                return MainThreadRequestStats.LANE_LOCAL;
+            default:
+                return MainThreadRequestStats.LANE_MODEM_IO;
+        }
+    }
+
+    /**
+     * Waits for the request to complete. If {@code timeoutInMs} is negative, waits until it
+     * completes, logging once if that takes longer than {@link #SLOW_REQUEST_WARNING_MS}.
+     * Otherwise gives up after {@code timeoutInMs} milliseconds and returns null.
+     *
+     * Interrupts do not cut the wait short, but the interrupt status is restored on return.
+     */
+    @VisibleForTesting
+    @Nullable Object waitForResult(MainThreadRequest request, long timeoutInMs) {
+        boolean interrupted = false;
+        boolean warned = false;
+        long now = SystemClock.elapsedRealtime();
+        final long deadline = timeoutInMs >= 0 ? now + timeoutInMs : Long.MAX_VALUE;
+        try {
+            while (true) {
+                long waitMs = timeoutInMs >= 0 ? deadline - now
+                        : request.postedTimeMs + SLOW_REQUEST_WARNING_MS - now;
+                try {
+                    if (waitMs > 0) {
+                        return request.future.get(waitMs, TimeUnit.MILLISECONDS);
+                    } else if (timeoutInMs < 0 && warned) {
+                        return request.future.get();
                     }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (TimeoutException e) {
+                    // Handled below
+                } catch (ExecutionException | CancellationException e) {
+                    Log.e(LOG_TAG, "waitForResult: command " + request.command + " failed: " + e);
+                    return null;
+                }
+                now = SystemClock.elapsedRealtime();
+                if (request.future.isDone()) {
+                    return request.future.getNow(null);
+                }
+                if (timeoutInMs >= 0 && now >= deadline) {
+                    request.abandoned = true;
+                    mRequestStats.recordTimeout(request.command);
+                    return null;
+                }
+                if (timeoutInMs < 0 && !warned
+                        && now - request.postedTimeMs >= SLOW_REQUEST_WARNING_MS) {
+                    warned = true;
+                    Log.w(LOG_TAG, "waitForResult: command " + request.command
+                            + " still pending after " + (now - request.postedTimeMs) + "ms, "
+                            + (request.startedTimeMs == 0 ? "not started yet"
+                                    : "started after "
+                                            + (request.startedTimeMs - request.postedTimeMs)
+                                            + "ms"));
                 }
             }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
-        if (request.result == null) {
-            Log.wtf(LOG_TAG,
-                    "sendRequest: Blocking command timed out. Something has gone terribly wrong.");
-        }
-        return request.result;
     }
 
     /**
@@ -2426,8 +2871,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private void sendRequestAsync(
             int command, Object argument, Phone phone, WorkSource workSource) {
         MainThreadRequest request = new MainThreadRequest(argument, phone, workSource);
-        Message msg = mMainThreadHandler.obtainMessage(command, request);
-        msg.sendToTarget();
+        dispatchRequest(command, request);
     }
 
     /**
@@ -2454,7 +2898,12 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         mSatelliteController = SatelliteController.getInstance();
         mUserManager = (UserManager) app.getSystemService(Context.USER_SERVICE);
         mAppOps = (AppOpsManager)app.getSystemService(Context.APP_OPS_SERVICE);
+        mPackageCheckCache = new PackageCheckCache(app);
         mMainThreadHandler = new MainThreadHandler();
+        HandlerThread simIoThread = new HandlerThread(LOG_TAG + "SimIo");
+        simIoThread.start();
+        mSimIoHandler = new MainThreadHandler(simIoThread.getLooper());
+        mUssdExecutor.allowCoreThreadTimeOut(true);
         mTelephonySharedPreferences = PreferenceManager.getDefaultSharedPreferences(mApp);
         mNetworkScanRequestTracker = new NetworkScanRequestTracker();
         mPhoneConfigurationManager = PhoneConfigurationManager.getInstance();
@@ -2465,6 +2914,11 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         CarrierAllowListInfo.loadInstance(mApp);
     }
 
+    @VisibleForTesting
+    MainThreadRequestStats getRequestStats() {
+        return mRequestStats;
+    }
+
     @VisibleForTesting
     public SharedPreferences getSharedPreferences() {
         return mTelephonySharedPreferences;
@@ -2796,10 +3250,11 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
     @Override
     public void updateServiceLocationWithPackageName(String callingPackage) {
-        mApp.getSystemService(AppOpsManager.class)
-                .checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("updateServiceLocationWithPackageName",
+                Binder.getCallingUid(), callingPackage);
 
-        final int targetSdk = TelephonyPermissions.getTargetSdk(mApp, callingPackage);
+        final int targetSdk = mPackageCheckCache.getTargetSdk(
+                "updateServiceLocationWithPackageName", Binder.getCallingUid(), callingPackage);
         if (targetSdk > android.os.Build.VERSION_CODES.R) {
             // Callers targeting S have no business invoking this method.
             return;
@@ -3283,8 +3738,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
     @Override
     public CellIdentity getCellLocation(String callingPackage, String callingFeatureId) {
-        mApp.getSystemService(AppOpsManager.class)
-                .checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("getCellLocation", Binder.getCallingUid(), callingPackage);
 
         LocationAccessPolicy.LocationPermissionResult locationResult =
                 LocationAccessPolicy.checkLocationPermission(mApp,
@@ -3370,14 +3824,15 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     public List<NeighboringCellInfo> getNeighboringCellInfo(String callingPackage,
             String callingFeatureId) {
         try {
-            mApp.getSystemService(AppOpsManager.class)
-                    .checkPackage(Binder.getCallingUid(), callingPackage);
+            mPackageCheckCache.checkPackage("getNeighboringCellInfo", Binder.getCallingUid(),
+                    callingPackage);
         } catch (SecurityException e) {
             EventLog.writeEvent(0x534e4554, "190619791", Binder.getCallingUid());
             throw e;
         }
 
-        final int targetSdk = TelephonyPermissions.getTargetSdk(mApp, callingPackage);
+        final int targetSdk = mPackageCheckCache.getTargetSdk("getNeighboringCellInfo",
+                Binder.getCallingUid(), callingPackage);
         if (targetSdk >= android.os.Build.VERSION_CODES.Q) {
             throw new SecurityException(
                     "getNeighboringCellInfo() is unavailable to callers targeting Q+ SDK levels.");
@@ -3404,19 +3859,44 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         return (neighbors.size()) > 0 ? neighbors : null;
     }
 
+    /**
+     * Returns the last cell info reported by each phone. The list is shared by all callers and
+     * only rebuilt when a phone reported new cell info.
+     */
     private List<CellInfo> getCachedCellInfo() {
-        List<CellInfo> cellInfos = new ArrayList<CellInfo>();
-        for (Phone phone : PhoneFactory.getPhones()) {
-            List<CellInfo> info = phone.getAllCellInfo();
-            if (info != null) cellInfos.addAll(info);
+        return getCellInfoSnapshot().getCellInfos();
+    }
+
+    private CellInfoSnapshot getCellInfoSnapshot() {
+        Phone[] phones = PhoneFactory.getPhones();
+        List<List<CellInfo>> sources = new ArrayList<>(phones.length);
+        for (Phone phone : phones) {
+            sources.add(phone.getAllCellInfo());
+        }
+        CellInfoSnapshot snapshot = mCellInfoSnapshot;
+        if (snapshot != null && snapshot.isBuiltFrom(sources)) {
+            return snapshot;
+        }
+        synchronized (mCellInfoSnapshotLock) {
+            snapshot = mCellInfoSnapshot;
+            if (snapshot == null || !snapshot.isBuiltFrom(sources)) {
+                snapshot = new CellInfoSnapshot(sources,
+                        snapshot == null ? 0 : snapshot.getGeneration() + 1);
+                mCellInfoSnapshot = snapshot;
+            }
+            return snapshot;
         }
-        return cellInfos;
     }
 
+    /**
+     * Returns the cell info of all phones. Callers targeting Q or later get the cached cell info,
+     * see {@link #getCachedCellInfo}. For the others all modems are queried at once, and the
+     * phones whose modem has not answered after {@link #GET_ALL_CELL_INFO_TIMEOUT_MS} are left
+     * out of the result, rather than blocking the caller until every modem answered.
+     */
     @Override
     public List<CellInfo> getAllCellInfo(String callingPackage, String callingFeatureId) {
-        mApp.getSystemService(AppOpsManager.class)
-                .checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("getAllCellInfo", Binder.getCallingUid(), callingPackage);
 
         LocationAccessPolicy.LocationPermissionResult locationResult =
                 LocationAccessPolicy.checkLocationPermission(mApp,
@@ -3436,7 +3916,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                 return new ArrayList<>();
         }
 
-        final int targetSdk = TelephonyPermissions.getTargetSdk(mApp, callingPackage);
+        final int targetSdk = mPackageCheckCache.getTargetSdk("getAllCellInfo",
+                Binder.getCallingUid(), callingPackage);
         if (targetSdk >= android.os.Build.VERSION_CODES.Q) {
             return getCachedCellInfo();
         }
@@ -3446,10 +3927,10 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         final long identity = Binder.clearCallingIdentity();
         try {
             List<CellInfo> cellInfos = new ArrayList<CellInfo>();
-            for (Phone phone : PhoneFactory.getPhones()) {
-                final List<CellInfo> info = (List<CellInfo>) sendRequest(
-                        CMD_GET_ALL_CELL_INFO, null, phone, workSource);
-                if (info != null) cellInfos.addAll(info);
+            // Query all modems at once, so the latency is that of the slowest one.
+            for (Object info : sendRequestToPhones(CMD_GET_ALL_CELL_INFO, null,
+                    PhoneFactory.getPhones(), workSource)) {
+                if (info != null) cellInfos.addAll((List<CellInfo>) info);
             }
             return cellInfos;
         } finally {
@@ -3473,8 +3954,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
     private void requestCellInfoUpdateInternal(int subId, ICellInfoCallback cb,
             String callingPackage, String callingFeatureId, WorkSource workSource) {
-        mApp.getSystemService(AppOpsManager.class)
-                .checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("requestCellInfoUpdateInternal", Binder.getCallingUid(),
+                callingPackage);
 
         LocationAccessPolicy.LocationPermissionResult locationResult =
                 LocationAccessPolicy.checkLocationPermission(mApp,
@@ -3594,7 +4075,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     @Override
     public String getMeidForSlot(int slotIndex, String callingPackage, String callingFeatureId) {
         try {
-            mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+            mPackageCheckCache.checkPackage("getMeidForSlot", Binder.getCallingUid(),
+                    callingPackage);
         } catch (SecurityException se) {
             EventLog.writeEvent(0x534e4554, "186530496", Binder.getCallingUid());
             throw new SecurityException("Package " + callingPackage + " does not belong to "
@@ -3990,7 +4472,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                 != PERMISSION_GRANTED) {
             throw new SecurityException("Caller must hold the MODIFY_PHONE_STATE permission");
         }
-        mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("requestNumberVerification", Binder.getCallingUid(),
+                callingPackage);
 
         String authorizedPackage = NumberVerificationManager.getAuthorizedPackage(mApp);
         if (!TextUtils.equals(callingPackage, authorizedPackage)) {
@@ -4041,7 +4524,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
     @Override
     public Bundle getVisualVoicemailSettings(String callingPackage, int subId) {
-        mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("getVisualVoicemailSettings", Binder.getCallingUid(),
+                callingPackage);
         TelecomManager tm = mApp.getSystemService(TelecomManager.class);
         String systemDialer = tm.getSystemDialerPackage();
         if (!TextUtils.equals(callingPackage, systemDialer)) {
@@ -4063,7 +4547,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     @Override
     public String getVisualVoicemailPackageName(String callingPackage, String callingFeatureId,
             int subId) {
-        mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("getVisualVoicemailPackageName", Binder.getCallingUid(),
+                callingPackage);
         if (!TelephonyPermissions.checkCallingOrSelfReadPhoneState(
                 mApp, subId, callingPackage, callingFeatureId,
                 "getVisualVoicemailPackageName")) {
@@ -4081,7 +4566,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     @Override
     public void enableVisualVoicemailSmsFilter(String callingPackage, int subId,
             VisualVoicemailSmsFilterSettings settings) {
-        mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("enableVisualVoicemailSmsFilter", Binder.getCallingUid(),
+                callingPackage);
 
         final long identity = Binder.clearCallingIdentity();
         try {
@@ -4094,7 +4580,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
     @Override
     public void disableVisualVoicemailSmsFilter(String callingPackage, int subId) {
-        mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("disableVisualVoicemailSmsFilter", Binder.getCallingUid(),
+                callingPackage);
 
         final long identity = Binder.clearCallingIdentity();
         try {
@@ -4108,7 +4595,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     @Override
     public VisualVoicemailSmsFilterSettings getVisualVoicemailSmsFilterSettings(
             String callingPackage, int subId) {
-        mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("getVisualVoicemailSmsFilterSettings",
+                Binder.getCallingUid(), callingPackage);
 
         final long identity = Binder.clearCallingIdentity();
         try {
@@ -4136,7 +4624,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     public void sendVisualVoicemailSmsForSubscriber(String callingPackage,
             String callingAttributionTag, int subId, String number, int port, String text,
             PendingIntent sentIntent) {
-        mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("sendVisualVoicemailSmsForSubscriber",
+                Binder.getCallingUid(), callingPackage);
         enforceVisualVoicemailPackage(callingPackage, subId);
         enforceSendSmsPermission();
         SmsController smsController = PhoneFactory.getSmsController();
@@ -4272,7 +4761,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     @Override
     public void sendDialerSpecialCode(String callingPackage, String inputCode) {
         final Phone defaultPhone = getDefaultPhone();
-        mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("sendDialerSpecialCode", Binder.getCallingUid(),
+                callingPackage);
         TelecomManager tm = defaultPhone.getContext().getSystemService(TelecomManager.class);
         String defaultDialer = tm.getDefaultDialerPackage();
         if (!TextUtils.equals(callingPackage, defaultDialer)) {
@@ -5319,13 +5809,15 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     public int getNetworkTypeForSubscriber(int subId, String callingPackage,
             String callingFeatureId) {
         try {
-            mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+            mPackageCheckCache.checkPackage("getNetworkTypeForSubscriber", Binder.getCallingUid(),
+                    callingPackage);
         } catch (SecurityException se) {
             EventLog.writeEvent(0x534e4554, "186776740", Binder.getCallingUid());
             throw new SecurityException("Package " + callingPackage + " does not belong to "
                     + Binder.getCallingUid());
         }
-        final int targetSdk = TelephonyPermissions.getTargetSdk(mApp, callingPackage);
+        final int targetSdk = mPackageCheckCache.getTargetSdk("getNetworkTypeForSubscriber",
+                Binder.getCallingUid(), callingPackage);
         if (targetSdk > android.os.Build.VERSION_CODES.Q) {
             return getDataNetworkTypeForSubscriber(subId, callingPackage, callingFeatureId);
         } else if (targetSdk == android.os.Build.VERSION_CODES.Q
@@ -5550,7 +6042,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
         if (DBG) log("iccOpenLogicalChannel: request=" + request);
         // Verify that the callingPackage in the request belongs to the calling UID
-        mAppOps.checkPackage(Binder.getCallingUid(), request.callingPackage);
+        mPackageCheckCache.checkPackage("iccOpenLogicalChannel", Binder.getCallingUid(),
+                request.callingPackage);
 
         return iccOpenLogicalChannelWithPermission(phone, request);
     }
@@ -5693,12 +6186,49 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         }
     }
 
+    /**
+     * Transmits the APDUs on the logical channel, one after the other, in a single request to the
+     * SIM I/O handler. Stops at the first APDU whose status word reports an error.
+     *
+     * @param subId the subscription of the SIM.
+     * @param channel the logical channel, as returned by iccOpenLogicalChannel.
+     * @param apdus the command APDUs as hex strings: CLA, INS, P1 and P2, optionally followed by
+     *        P3 and the data.
+     * @return the responses, each the payload followed by the 2 byte status word, in the order
+     *         of the APDUs. The response of the failed APDU is the last one.
+     * @throws IllegalArgumentException if an APDU is not valid.
+     */
+    public List<String> iccTransmitApduBatchLogicalChannel(int subId, int channel,
+            List<String> apdus) {
+        TelephonyPermissions.enforceCallingOrSelfModifyPermissionOrCarrierPrivilege(
+                mApp, subId, "iccTransmitApduBatchLogicalChannel");
+        if (DBG) {
+            log("iccTransmitApduBatchLogicalChannel: subId=" + subId + " chnl=" + channel
+                    + " apdus=" + apdus);
+        }
+        IccApduBatch batch = new IccApduBatch(channel, apdus);
+        final long identity = Binder.clearCallingIdentity();
+        try {
+            if (channel <= 0 || batch.isDone()) {
+                return new ArrayList<>();
+            }
+            List<String> responses = (List<String>) sendRequest(
+                    CMD_TRANSMIT_APDU_BATCH_LOGICAL_CHANNEL, batch, getPhoneFromSubId(subId),
+                    null /* workSource */);
+            if (DBG) log("iccTransmitApduBatchLogicalChannel: " + responses);
+            return responses;
+        } finally {
+            Binder.restoreCallingIdentity(identity);
+        }
+    }
+
     @Override
     public String iccTransmitApduBasicChannel(int subId, String callingPackage, int cla,
             int command, int p1, int p2, int p3, String data) {
         TelephonyPermissions.enforceCallingOrSelfModifyPermissionOrCarrierPrivilege(
                 mApp, subId, "iccTransmitApduBasicChannel");
-        mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("iccTransmitApduBasicChannel", Binder.getCallingUid(),
+                callingPackage);
         if (DBG) {
             log("iccTransmitApduBasicChannel: subId=" + subId + " cla=" + cla + " cmd="
                     + command + " p1=" + p1 + " p2=" + p2 + " p3=" + p3 + " data=" + data);
@@ -5711,7 +6241,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     public String iccTransmitApduBasicChannelByPort(int slotIndex, int portIndex,
             String callingPackage, int cla, int command, int p1, int p2, int p3, String data) {
         enforceModifyPermission();
-        mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("iccTransmitApduBasicChannelByPort", Binder.getCallingUid(),
+                callingPackage);
         if (DBG) {
             log("iccTransmitApduBasicChannelByPort: slotIndex=" + slotIndex + " portIndex="
                     + portIndex + " cla=" + cla + " cmd=" + command + " p1=" + p1 + " p2="
@@ -6310,8 +6841,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                 return;
             }
             if (DBG) log("setNetworkSelectionModeAutomatic: subId " + subId);
-            sendRequest(CMD_SET_NETWORK_SELECTION_MODE_AUTOMATIC, null, subId,
-                    SET_NETWORK_SELECTION_MODE_AUTOMATIC_TIMEOUT_MS);
+            sendRequest(CMD_SET_NETWORK_SELECTION_MODE_AUTOMATIC, null, subId);
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -6529,8 +7059,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
             if (DBG) log("getCallWaitingStatus: subId " + subId);
             if (requireUssd) {
-                CarrierXmlParser carrierXmlParser = new CarrierXmlParser(phone.getContext(),
-                        getSubscriptionCarrierId(subId));
+                CarrierXmlParser carrierXmlParser = CarrierXmlParser.getCached(
+                        phone.getContext(), getSubscriptionCarrierId(subId));
                 String newUssdCommand = "";
                 try {
                     newUssdCommand = carrierXmlParser.getFeature(
@@ -6543,7 +7073,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                         mMainThreadHandler, callback, carrierXmlParser,
                         CarrierXmlParser.SsEntry.SSAction.QUERY);
                 final String ussdCommand = newUssdCommand;
-                Executors.newSingleThreadExecutor().execute(() -> {
+                mUssdExecutor.execute(() -> {
                     handleUssdRequest(subId, ussdCommand, wrappedCallback);
                 });
             } else {
@@ -6583,8 +7113,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
             if (DBG) log("getCallWaitingStatus: subId " + subId);
             if (requireUssd) {
-                CarrierXmlParser carrierXmlParser = new CarrierXmlParser(phone.getContext(),
-                        getSubscriptionCarrierId(subId));
+                CarrierXmlParser carrierXmlParser = CarrierXmlParser.getCached(
+                        phone.getContext(), getSubscriptionCarrierId(subId));
                 CarrierXmlParser.SsEntry.SSAction ssAction =
                         enable ? CarrierXmlParser.SsEntry.SSAction.UPDATE_ACTIVATE
                                 : CarrierXmlParser.SsEntry.SSAction.UPDATE_DEACTIVATE;
@@ -6599,7 +7129,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                 ResultReceiver wrappedCallback = new CallWaitingUssdResultReceiver(
                         mMainThreadHandler, callback, carrierXmlParser, ssAction);
                 final String ussdCommand = newUssdCommand;
-                Executors.newSingleThreadExecutor().execute(() -> {
+                mUssdExecutor.execute(() -> {
                     handleUssdRequest(subId, ussdCommand, wrappedCallback);
                 });
             } else {
@@ -7789,7 +8319,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     @Override
     public String getDeviceIdWithFeature(String callingPackage, String callingFeatureId) {
         try {
-            mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+            mPackageCheckCache.checkPackage("getDeviceIdWithFeature", Binder.getCallingUid(),
+                    callingPackage);
         } catch (SecurityException se) {
             EventLog.writeEvent(0x534e4554, "186530889", Binder.getCallingUid());
             throw new SecurityException("Package " + callingPackage + " does not belong to "
@@ -8323,7 +8854,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     public void setVoicemailRingtoneUri(String callingPackage,
             PhoneAccountHandle phoneAccountHandle, Uri uri) {
         final Phone defaultPhone = getDefaultPhone();
-        mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("setVoicemailRingtoneUri", Binder.getCallingUid(),
+                callingPackage);
         TelecomManager tm = defaultPhone.getContext().getSystemService(TelecomManager.class);
         if (!TextUtils.equals(callingPackage, tm.getDefaultDialerPackage())) {
             TelephonyPermissions.enforceCallingOrSelfModifyPermissionOrCarrierPrivilege(
@@ -8380,7 +8912,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     public void setVoicemailVibrationEnabled(String callingPackage,
             PhoneAccountHandle phoneAccountHandle, boolean enabled) {
         final Phone defaultPhone = getDefaultPhone();
-        mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("setVoicemailVibrationEnabled", Binder.getCallingUid(),
+                callingPackage);
         TelecomManager tm = defaultPhone.getContext().getSystemService(TelecomManager.class);
         if (!TextUtils.equals(callingPackage, tm.getDefaultDialerPackage())) {
             TelephonyPermissions.enforceCallingOrSelfModifyPermissionOrCarrierPrivilege(
@@ -8802,6 +9335,18 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         DumpsysHandler.dump(mApp, fd, writer, args);
     }
 
+    /**
+     * Dumps the statistics of the requests run on the main thread and of the package checks.
+     * Called from {@link PhoneGlobals#dump}.
+     */
+    void dumpStats(IndentingPrintWriter pw) {
+        mRequestStats.dump(pw);
+        mPackageCheckCache.dump(pw);
+        CellInfoSnapshot cellInfoSnapshot = mCellInfoSnapshot;
+        pw.println("Cached cell info generation: "
+                + (cellInfoSnapshot == null ? "none" : cellInfoSnapshot.getGeneration()));
+    }
+
     @Override
     public int handleShellCommand(@NonNull ParcelFileDescriptor in,
             @NonNull ParcelFileDescriptor out, @NonNull ParcelFileDescriptor err,
@@ -9136,8 +9681,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     @Override
     public List<UiccCardInfo> getUiccCardsInfo(String callingPackage) {
         // Verify that the callingPackage belongs to the calling UID
-        mApp.getSystemService(AppOpsManager.class)
-                .checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("getUiccCardsInfo", Binder.getCallingUid(), callingPackage);
 
         boolean hasReadPermission = false;
         boolean isIccIdAccessRestricted = false;
@@ -9253,8 +9797,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     @Override
     public UiccSlotInfo[] getUiccSlotsInfo(String callingPackage) {
         // Verify that the callingPackage belongs to the calling UID
-        mApp.getSystemService(AppOpsManager.class)
-                .checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("getUiccSlotsInfo", Binder.getCallingUid(), callingPackage);
 
         boolean isLogicalSlotAccessRestricted = false;
 
@@ -10008,8 +10551,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     public List<UiccSlotMapping> getSlotsMapping(String callingPackage) {
         enforceReadPrivilegedPermission("getSlotsMapping");
         // Verify that the callingPackage belongs to the calling UID
-        mApp.getSystemService(AppOpsManager.class)
-                .checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("getSlotsMapping", Binder.getCallingUid(), callingPackage);
         final long identity = Binder.clearCallingIdentity();
         List<UiccSlotMapping> slotMap = new ArrayList<>();
         try {
@@ -10663,7 +11205,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             String callingPackage) throws IllegalArgumentException {
         enforceModifyPermission();
 
-        mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("sendThermalMitigationRequest", Binder.getCallingUid(),
+                callingPackage);
         if (!getThermalMitigationAllowlist(getDefaultPhone().getContext())
                 .contains(callingPackage)) {
             throw new SecurityException("Calling package must be configured in the device config. "
@@ -11394,8 +11937,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
         final int callingUid = Binder.getCallingUid();
         // Verify that tha callingPackage belongs to the calling UID
-        mApp.getSystemService(AppOpsManager.class)
-                .checkPackage(callingUid, callingPackage);
+        mPackageCheckCache.checkPackage("setSignalStrengthUpdateRequest", callingUid,
+                callingPackage);
 
         validateSignalStrengthUpdateRequest(mApp, request, callingUid);
 
@@ -11420,8 +11963,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
         final int callingUid = Binder.getCallingUid();
         // Verify that tha callingPackage belongs to the calling UID
-        mApp.getSystemService(AppOpsManager.class)
-                .checkPackage(callingUid, callingPackage);
+        mPackageCheckCache.checkPackage("clearSignalStrengthUpdateRequest", callingUid,
+                callingPackage);
 
         final long identity = Binder.clearCallingIdentity();
         try {
@@ -11738,7 +12281,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     @Override
     public @Nullable CellIdentity getLastKnownCellIdentity(int subId, String callingPackage,
             String callingFeatureId) {
-        mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("getLastKnownCellIdentity", Binder.getCallingUid(),
+                callingPackage);
         LocationAccessPolicy.LocationPermissionResult fineLocationResult =
                 LocationAccessPolicy.checkLocationPermission(mApp,
                         new LocationAccessPolicy.LocationPermissionQuery.Builder()
@@ -11809,7 +12353,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         // Only telecom (and shell, for CTS purposes) is allowed to call this method.
         mApp.enforceCallingOrSelfPermission(
                 permission.BIND_TELECOM_CONNECTION_SERVICE, "setVoiceServiceStateOverride");
-        mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("setVoiceServiceStateOverride", Binder.getCallingUid(),
+                callingPackage);
 
         final long identity = Binder.clearCallingIdentity();
         try {
@@ -11831,7 +12376,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     @Override
     public void setRemovableEsimAsDefaultEuicc(boolean isDefault, String callingPackage) {
         enforceModifyPermission();
-        mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("setRemovableEsimAsDefaultEuicc", Binder.getCallingUid(),
+                callingPackage);
 
         final long identity = Binder.clearCallingIdentity();
         try {
@@ -11849,7 +12395,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     @Override
     public boolean isRemovableEsimDefaultEuicc(String callingPackage) {
         enforceReadPrivilegedPermission("isRemovableEsimDefaultEuicc");
-        mAppOps.checkPackage(Binder.getCallingUid(), callingPackage);
+        mPackageCheckCache.checkPackage("isRemovableEsimDefaultEuicc", Binder.getCallingUid(),
+                callingPackage);
 
         final long identity = Binder.clearCallingIdentity();
         try {
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.telephony.ServiceState;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Batches the change notifications of {@link ServiceStateProvider}. The ServiceState updates of
+ * a short window are gathered and the URIs of the fields which changed over the whole window are
+ * sent in a single notifyChange call. A subscription whose fields changed during the window but
+ * are back to their values from before it is not notified at all.
+ *
+ * All methods are thread safe.
+ */
+final class ServiceStateChangeNotifier {
+    @VisibleForTesting
+    static final long BATCH_WINDOW_MS = 200;
+
+    /** The updates of a subscription since the last notification. */
+    private static final class PendingChange {
+        // The ServiceState before the first update of the window, null for the first update.
+        final ServiceState mBaseline;
+        ServiceState mLatest;
+        // Whether any single update of the window changed a notified field.
+        boolean mChanged;
+
+        PendingChange(ServiceState baseline) {
+            mBaseline = baseline;
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+    // Keyed by subId, guarded by mLock.
+    private final SparseArray<PendingChange> mPendingChanges = new SparseArray<>();
+    // Guarded by mLock.
+    private boolean mFlushScheduled;
+    private int mUpdates;
+    private int mNotifyCalls;
+    private int mNotifiedUris;
+    private int mSuppressedBounces;
+
+    ServiceStateChangeNotifier(Context context, Looper looper) {
+        mContext = context;
+        mHandler = new Handler(looper);
+    }
+
+    /** Queues the notifications for the update of the ServiceState of the subscription. */
+    void onServiceStateChanged(int subId, ServiceState oldSS, ServiceState newSS) {
+        synchronized (mLock) {
+            mUpdates++;
+            PendingChange pending = mPendingChanges.get(subId);
+            if (pending == null) {
+                pending = new PendingChange(oldSS);
+                mPendingChanges.put(subId, pending);
+            }
+            pending.mLatest = newSS;
+            pending.mChanged |= oldSS == null
+                    || !ServiceStateProvider.getChangedUris(oldSS, newSS, subId).isEmpty();
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(this::flush, BATCH_WINDOW_MS);
+            }
+        }
+    }
+
+    /** Sends the notifications of the updates queued so far. */
+    @VisibleForTesting
+    void flush() {
+        List<Uri> uris = new ArrayList<>();
+        synchronized (mLock) {
+            mFlushScheduled = false;
+            for (int i = 0; i < mPendingChanges.size(); i++) {
+                PendingChange pending = mPendingChanges.valueAt(i);
+                List<Uri> changed = ServiceStateProvider.getChangedUris(pending.mBaseline,
+                        pending.mLatest, mPendingChanges.keyAt(i));
+                if (changed.isEmpty() && pending.mChanged) {
+                    mSuppressedBounces++;
+                }
+                uris.addAll(changed);
+            }
+            mPendingChanges.clear();
+            if (uris.isEmpty()) {
+                return;
+            }
+            mNotifyCalls++;
+            mNotifiedUris += uris.size();
+        }
+        mContext.getContentResolver().notifyChange(uris, /* observer= */ null, /* flags= */ 0);
+    }
+
+    void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Change notifications (updates, notifyChange calls, URIs,"
+                    + " suppressed bounces): " + mUpdates + ", " + mNotifyCalls + ", "
+                    + mNotifiedUris + ", " + mSuppressedBounces);
+        }
+    }
+}
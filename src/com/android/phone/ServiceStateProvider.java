@@ -31,29 +31,43 @@ import android.Manifest;
 import android.app.compat.CompatChanges;
 import android.compat.annotation.ChangeId;
 import android.compat.annotation.EnabledAfter;
+import android.content.BroadcastReceiver;
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.MatrixCursor.RowBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Looper;
 import android.os.Parcel;
+import android.os.SystemClock;
+import android.os.UserHandle;
 import android.telephony.LocationAccessPolicy;
 import android.telephony.ServiceState;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.util.Log;
+import android.util.LruCache;
+import android.util.Pair;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.TelephonyPermissions;
+import com.android.internal.util.IndentingPrintWriter;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The class to provide base facility to access ServiceState related content,
@@ -244,6 +258,72 @@ public class ServiceStateProvider extends ContentProvider {
 
     private final HashMap<Integer, ServiceState> mServiceStates = new HashMap<>();
 
+    /**
+     * The rows of a ServiceState for each set of columns a caller may get, built once per
+     * ServiceState instead of on every query.
+     */
+    private static final class ServiceStateRows {
+        final ServiceState mServiceState;
+        final Object[] mAllColumns;
+        final Object[] mRedactedAllColumns;
+        final Object[] mPublicColumns;
+
+        ServiceStateRows(ServiceState ss) {
+            mServiceState = ss;
+            mAllColumns = getAllColumnsRow(ss);
+            mRedactedAllColumns = getAllColumnsRow(getLocationRedactedServiceState(ss));
+            mPublicColumns = getPublicColumnsRow(ss);
+        }
+    }
+
+    // Keyed by subId.
+    private final Map<Integer, ServiceStateRows> mServiceStateRows = new ConcurrentHashMap<>();
+
+    /**
+     * The permission decisions for a caller which do not note app ops, so they can be reused.
+     * Location permission is still checked on every query.
+     */
+    private static final class CallerPermissions {
+        final boolean mEnforceLocationPermission;
+        final boolean mTargetingAtLeastS;
+        final boolean mCanReadPrivilegedPhoneState;
+        final long mExpiryTimeMs;
+
+        CallerPermissions(boolean enforceLocationPermission, boolean targetingAtLeastS,
+                boolean canReadPrivilegedPhoneState, long expiryTimeMs) {
+            mEnforceLocationPermission = enforceLocationPermission;
+            mTargetingAtLeastS = targetingAtLeastS;
+            mCanReadPrivilegedPhoneState = canReadPrivilegedPhoneState;
+            mExpiryTimeMs = expiryTimeMs;
+        }
+    }
+
+    // The decisions of a package are dropped when it is installed, updated or removed, the
+    // expiry catches the rest, e.g. an override of ENFORCE_LOCATION_PERMISSION_CHECK.
+    private static final long CALLER_PERMISSIONS_LIFETIME_MS = 30_000;
+    // Keyed by calling uid and package.
+    private final LruCache<Pair<Integer, String>, CallerPermissions> mCallerPermissions =
+            new LruCache<>(64);
+
+    private final BroadcastReceiver mPackageChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getData() == null) {
+                return;
+            }
+            String packageName = intent.getData().getSchemeSpecificPart();
+            // The uid of the package in the user it changed in. Drop the decisions of all users
+            // if it is missing.
+            int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            for (Pair<Integer, String> key : mCallerPermissions.snapshot().keySet()) {
+                if (packageName.equals(key.second) && (uid == -1
+                        || UserHandle.getUserId(key.first) == UserHandle.getUserId(uid))) {
+                    mCallerPermissions.remove(key);
+                }
+            }
+        }
+    };
+
     @VisibleForTesting
     /* package */ static final String[] ALL_COLUMNS = {
         VOICE_REG_STATE,
@@ -302,8 +382,19 @@ public class ServiceStateProvider extends ContentProvider {
             SYSTEM_ID
     );
 
+    private ServiceStateChangeNotifier mChangeNotifier;
+
     @Override
     public boolean onCreate() {
+        mChangeNotifier = new ServiceStateChangeNotifier(getContext(), Looper.getMainLooper());
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        // The callers may belong to any user.
+        getContext().registerReceiverForAllUsers(mPackageChangedReceiver, filter, null, null);
         return true;
     }
 
@@ -354,14 +445,14 @@ public class ServiceStateProvider extends ContentProvider {
             // create the new service state
             final ServiceState newSS = ServiceState.CREATOR.createFromParcel(p);
 
-            // notify listeners
+            // notify listeners, batched with the other updates of a short window
             // if ss is null (e.g. first service state update) we will notify for all fields
             ServiceState ss = getServiceState(subId);
-            notifyChangeForSubIdAndField(getContext(), ss, newSS, subId);
-            notifyChangeForSubId(getContext(), ss, newSS, subId);
+            mChangeNotifier.onServiceStateChanged(subId, ss, newSS);
 
             // store the new service state
             mServiceStates.put(subId, newSS);
+            mServiceStateRows.put(subId, new ServiceStateRows(newSS));
             return uri;
         }
         return null;
@@ -410,26 +501,25 @@ public class ServiceStateProvider extends ContentProvider {
                 return null;
             }
 
-            final boolean enforceLocationPermission =
-                    CompatChanges.isChangeEnabled(ENFORCE_LOCATION_PERMISSION_CHECK);
-            final boolean targetingAtLeastS = TelephonyPermissions.getTargetSdk(getContext(),
-                    getCallingPackage()) >= Build.VERSION_CODES.S;
-            final boolean canReadPrivilegedPhoneState = getContext().checkCallingOrSelfPermission(
-                    Manifest.permission.READ_PRIVILEGED_PHONE_STATE) == PERMISSION_GRANTED;
+            final CallerPermissions permissions = getCallerPermissions();
+            final boolean enforceLocationPermission = permissions.mEnforceLocationPermission;
+            final boolean targetingAtLeastS = permissions.mTargetingAtLeastS;
+            final boolean canReadPrivilegedPhoneState = permissions.mCanReadPrivilegedPhoneState;
+            final ServiceStateRows rows = getServiceStateRows(subId, unredactedServiceState);
 
             final String[] availableColumns;
-            final ServiceState ss;
+            final Object[] data;
             if (enforceLocationPermission && targetingAtLeastS && !canReadPrivilegedPhoneState) {
                 // targetSdkVersion S+ without read privileged phone state permission can only
                 // access public columns which have no location sensitive info.
                 availableColumns = PUBLIC_COLUMNS;
-                ss = unredactedServiceState;
+                data = rows.mPublicColumns;
             } else {
                 availableColumns = ALL_COLUMNS;
                 if (!enforceLocationPermission) {
                     // No matter the targetSdkVersion, return unredacted ServiceState if location
                     // permission enforcement is not introduced
-                    ss = unredactedServiceState;
+                    data = rows.mAllColumns;
                 } else {
                     boolean implicitlyQueryLocation = projection == null;
                     boolean explicitlyQueryLocation = false;
@@ -447,7 +537,7 @@ public class ServiceStateProvider extends ContentProvider {
                     // permission when query non sensitive info.
                     if (implicitlyQueryLocation || explicitlyQueryLocation) {
                         if (hasLocationPermission()) {
-                            ss = unredactedServiceState;
+                            data = rows.mAllColumns;
                         } else {
                             if (targetingAtLeastS) {
                                 // Throw SecurityException to fail loudly if caller is targetSDK S+
@@ -456,87 +546,125 @@ public class ServiceStateProvider extends ContentProvider {
                                                 + "permissions");
                             } else {
                                 // For backward compatibility, return redacted value for old SDK
-                                ss = getLocationRedactedServiceState(unredactedServiceState);
+                                data = rows.mRedactedAllColumns;
                             }
                         }
                     } else {
                         // The caller is not interested in location sensitive info, return result
                         // that scrub out all sensitive info. And no permission check is needed.
-                        ss = getLocationRedactedServiceState(unredactedServiceState);
+                        data = rows.mRedactedAllColumns;
                     }
                 }
             }
 
-            // Build the result
-            final int voice_reg_state = ss.getState();
-            final int data_reg_state = ss.getDataRegistrationState();
-            final int voice_roaming_type = ss.getVoiceRoamingType();
-            final int data_roaming_type = ss.getDataRoamingType();
-            final String voice_operator_alpha_long = ss.getOperatorAlphaLong();
-            final String voice_operator_alpha_short = ss.getOperatorAlphaShort();
-            final String voice_operator_numeric = ss.getOperatorNumeric();
-            final String data_operator_alpha_long = ss.getOperatorAlphaLong();
-            final String data_operator_alpha_short = ss.getOperatorAlphaShort();
-            final String data_operator_numeric = ss.getOperatorNumeric();
-            final int is_manual_network_selection = (ss.getIsManualSelection()) ? 1 : 0;
-            final int ril_voice_radio_technology = ss.getRilVoiceRadioTechnology();
-            final int ril_data_radio_technology = ss.getRilDataRadioTechnology();
-            final int css_indicator = ss.getCssIndicator();
-            final int network_id = ss.getCdmaNetworkId();
-            final int system_id = ss.getCdmaSystemId();
-            final int cdma_roaming_indicator = ss.getCdmaRoamingIndicator();
-            final int cdma_default_roaming_indicator = ss.getCdmaDefaultRoamingIndicator();
-            final int cdma_eri_icon_index = ss.getCdmaEriIconIndex();
-            final int cdma_eri_icon_mode = ss.getCdmaEriIconMode();
-            final int is_emergency_only = (ss.isEmergencyOnly()) ? 1 : 0;
-            final int is_using_carrier_aggregation = (ss.isUsingCarrierAggregation()) ? 1 : 0;
-            final String operator_alpha_long_raw = ss.getOperatorAlphaLongRaw();
-            final String operator_alpha_short_raw = ss.getOperatorAlphaShortRaw();
-            final int data_network_type = ss.getDataNetworkType();
-            final int duplex_mode = ss.getDuplexMode();
-
-            Object[] data = availableColumns == ALL_COLUMNS ? new Object[]{
-                    // data for all columns
-                    voice_reg_state,
-                    data_reg_state,
-                    voice_roaming_type,
-                    data_roaming_type,
-                    voice_operator_alpha_long,
-                    voice_operator_alpha_short,
-                    voice_operator_numeric,
-                    data_operator_alpha_long,
-                    data_operator_alpha_short,
-                    data_operator_numeric,
-                    is_manual_network_selection,
-                    ril_voice_radio_technology,
-                    ril_data_radio_technology,
-                    css_indicator,
-                    network_id,
-                    system_id,
-                    cdma_roaming_indicator,
-                    cdma_default_roaming_indicator,
-                    cdma_eri_icon_index,
-                    cdma_eri_icon_mode,
-                    is_emergency_only,
-                    is_using_carrier_aggregation,
-                    operator_alpha_long_raw,
-                    operator_alpha_short_raw,
-                    data_network_type,
-                    duplex_mode,
-            } : new Object[]{
-                    // data for public columns only
-                    voice_reg_state,
-                    data_reg_state,
-                    voice_operator_numeric,
-                    is_manual_network_selection,
-                    data_network_type,
-                    duplex_mode,
-            };
-
             return buildSingleRowResult(projection, availableColumns, data);
         }
     }
 
+    private static Object[] getAllColumnsRow(ServiceState ss) {
+        final int voice_reg_state = ss.getState();
+        final int data_reg_state = ss.getDataRegistrationState();
+        final int voice_roaming_type = ss.getVoiceRoamingType();
+        final int data_roaming_type = ss.getDataRoamingType();
+        final String voice_operator_alpha_long = ss.getOperatorAlphaLong();
+        final String voice_operator_alpha_short = ss.getOperatorAlphaShort();
+        final String voice_operator_numeric = ss.getOperatorNumeric();
+        final String data_operator_alpha_long = ss.getOperatorAlphaLong();
+        final String data_operator_alpha_short = ss.getOperatorAlphaShort();
+        final String data_operator_numeric = ss.getOperatorNumeric();
+        final int is_manual_network_selection = (ss.getIsManualSelection()) ? 1 : 0;
+        final int ril_voice_radio_technology = ss.getRilVoiceRadioTechnology();
+        final int ril_data_radio_technology = ss.getRilDataRadioTechnology();
+        final int css_indicator = ss.getCssIndicator();
+        final int network_id = ss.getCdmaNetworkId();
+        final int system_id = ss.getCdmaSystemId();
+        final int cdma_roaming_indicator = ss.getCdmaRoamingIndicator();
+        final int cdma_default_roaming_indicator = ss.getCdmaDefaultRoamingIndicator();
+        final int cdma_eri_icon_index = ss.getCdmaEriIconIndex();
+        final int cdma_eri_icon_mode = ss.getCdmaEriIconMode();
+        final int is_emergency_only = (ss.isEmergencyOnly()) ? 1 : 0;
+        final int is_using_carrier_aggregation = (ss.isUsingCarrierAggregation()) ? 1 : 0;
+        final String operator_alpha_long_raw = ss.getOperatorAlphaLongRaw();
+        final String operator_alpha_short_raw = ss.getOperatorAlphaShortRaw();
+        final int data_network_type = ss.getDataNetworkType();
+        final int duplex_mode = ss.getDuplexMode();
+
+        return new Object[]{
+                // data for all columns
+                voice_reg_state,
+                data_reg_state,
+                voice_roaming_type,
+                data_roaming_type,
+                voice_operator_alpha_long,
+                voice_operator_alpha_short,
+                voice_operator_numeric,
+                data_operator_alpha_long,
+                data_operator_alpha_short,
+                data_operator_numeric,
+                is_manual_network_selection,
+                ril_voice_radio_technology,
+                ril_data_radio_technology,
+                css_indicator,
+                network_id,
+                system_id,
+                cdma_roaming_indicator,
+                cdma_default_roaming_indicator,
+                cdma_eri_icon_index,
+                cdma_eri_icon_mode,
+                is_emergency_only,
+                is_using_carrier_aggregation,
+                operator_alpha_long_raw,
+                operator_alpha_short_raw,
+                data_network_type,
+                duplex_mode,
+        };
+    }
+
+    private static Object[] getPublicColumnsRow(ServiceState ss) {
+        final int voice_reg_state = ss.getState();
+        final int data_reg_state = ss.getDataRegistrationState();
+        final String voice_operator_numeric = ss.getOperatorNumeric();
+        final int is_manual_network_selection = (ss.getIsManualSelection()) ? 1 : 0;
+        final int data_network_type = ss.getDataNetworkType();
+        final int duplex_mode = ss.getDuplexMode();
+
+        return new Object[]{
+                // data for public columns only
+                voice_reg_state,
+                data_reg_state,
+                voice_operator_numeric,
+                is_manual_network_selection,
+                data_network_type,
+                duplex_mode,
+        };
+    }
+
+    private ServiceStateRows getServiceStateRows(int subId, ServiceState ss) {
+        ServiceStateRows rows = mServiceStateRows.get(subId);
+        if (rows == null || rows.mServiceState != ss) {
+            rows = new ServiceStateRows(ss);
+            mServiceStateRows.put(subId, rows);
+        }
+        return rows;
+    }
+
+    private CallerPermissions getCallerPermissions() {
+        final Pair<Integer, String> key = Pair.create(Binder.getCallingUid(), getCallingPackage());
+        final long now = SystemClock.elapsedRealtime();
+        CallerPermissions permissions = mCallerPermissions.get(key);
+        if (permissions == null || permissions.mExpiryTimeMs < now) {
+            permissions = new CallerPermissions(
+                    CompatChanges.isChangeEnabled(ENFORCE_LOCATION_PERMISSION_CHECK),
+                    TelephonyPermissions.getTargetSdk(getContext(), getCallingPackage())
+                            >= Build.VERSION_CODES.S,
+                    getContext().checkCallingOrSelfPermission(
+                            Manifest.permission.READ_PRIVILEGED_PHONE_STATE) == PERMISSION_GRANTED,
+                    now + CALLER_PERMISSIONS_LIFETIME_MS);
+            mCallerPermissions.put(key, permissions);
+        }
+        return permissions;
+    }
+
     private static Cursor buildSingleRowResult(String[] projection, String[] availableColumns,
             Object[] data) {
         if (projection == null) {
@@ -575,30 +703,41 @@ public class ServiceStateProvider extends ContentProvider {
     @VisibleForTesting
     public static void notifyChangeForSubIdAndField(Context context, ServiceState oldSS,
             ServiceState newSS, int subId) {
-        final boolean firstUpdate = (oldSS == null) ? true : false;
+        List<Uri> uris = getChangedUris(oldSS, newSS, subId);
+        // The last one is the URI of the whole subscription, see notifyChangeForSubId.
+        for (int i = 0; i < uris.size() - 1; i++) {
+            context.getContentResolver().notifyChange(uris.get(i), /* observer= */ null,
+                    /* syncToNetwork= */ false);
+        }
+    }
 
-        // for every field, if the field has changed values, notify via the provider
+    /**
+     * Returns the URIs to notify for the change from oldSS to newSS: those of the changed fields,
+     * followed by the URI of the subscription if any field changed. Empty if nothing changed.
+     */
+    /* package */ static List<Uri> getChangedUris(ServiceState oldSS, ServiceState newSS,
+            int subId) {
+        final boolean firstUpdate = oldSS == null;
+        final List<Uri> uris = new ArrayList<>();
         if (firstUpdate || voiceRegStateChanged(oldSS, newSS)) {
-            context.getContentResolver().notifyChange(
-                    getUriForSubscriptionIdAndField(subId, VOICE_REG_STATE),
-                    /* observer= */ null, /* syncToNetwork= */ false);
+            uris.add(getUriForSubscriptionIdAndField(subId, VOICE_REG_STATE));
         }
         if (firstUpdate || dataRegStateChanged(oldSS, newSS)) {
-            context.getContentResolver().notifyChange(
-                    getUriForSubscriptionIdAndField(subId, DATA_REG_STATE), null, false);
+            uris.add(getUriForSubscriptionIdAndField(subId, DATA_REG_STATE));
         }
         if (firstUpdate || voiceRoamingTypeChanged(oldSS, newSS)) {
-            context.getContentResolver().notifyChange(
-                    getUriForSubscriptionIdAndField(subId, VOICE_ROAMING_TYPE), null, false);
+            uris.add(getUriForSubscriptionIdAndField(subId, VOICE_ROAMING_TYPE));
         }
         if (firstUpdate || dataRoamingTypeChanged(oldSS, newSS)) {
-            context.getContentResolver().notifyChange(
-                    getUriForSubscriptionIdAndField(subId, DATA_ROAMING_TYPE), null, false);
+            uris.add(getUriForSubscriptionIdAndField(subId, DATA_ROAMING_TYPE));
         }
         if (firstUpdate || dataNetworkTypeChanged(oldSS, newSS)) {
-            context.getContentResolver().notifyChange(
-                    getUriForSubscriptionIdAndField(subId, DATA_NETWORK_TYPE), null, false);
+            uris.add(getUriForSubscriptionIdAndField(subId, DATA_NETWORK_TYPE));
+        }
+        if (!uris.isEmpty()) {
+            uris.add(getUriForSubscriptionId(subId));
         }
+        return uris;
     }
 
     private static boolean voiceRegStateChanged(ServiceState oldSS, ServiceState newSS) {
@@ -635,14 +774,11 @@ public class ServiceStateProvider extends ContentProvider {
     @VisibleForTesting
     public static void notifyChangeForSubId(Context context, ServiceState oldSS, ServiceState newSS,
             int subId) {
-        // if the voice or data registration or roaming state field has changed values, notify via
-        // the provider.
         // If oldSS is null and newSS is not (e.g. first update of service state) this will also
-        // notify
-        if (oldSS == null || voiceRegStateChanged(oldSS, newSS) || dataRegStateChanged(oldSS, newSS)
-                || voiceRoamingTypeChanged(oldSS, newSS) || dataRoamingTypeChanged(oldSS, newSS)
-                || dataNetworkTypeChanged(oldSS, newSS)) {
-            context.getContentResolver().notifyChange(getUriForSubscriptionId(subId), null, false);
+        // notify.
+        List<Uri> uris = getChangedUris(oldSS, newSS, subId);
+        if (!uris.isEmpty()) {
+            context.getContentResolver().notifyChange(uris.get(uris.size() - 1), null, false);
         }
     }
 
@@ -688,6 +824,15 @@ public class ServiceStateProvider extends ContentProvider {
         return values;
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
+        pw.println("ServiceStateProvider:");
+        pw.increaseIndent();
+        mChangeNotifier.dump(pw);
+        pw.decreaseIndent();
+    }
+
     /**
      * Check location permission with same policy as {@link TelephonyManager#getServiceState()}
      * which enforces location permission check starting from Q.
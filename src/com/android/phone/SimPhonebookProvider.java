@@ -21,9 +21,16 @@ import static com.android.internal.telephony.IccProvider.STR_NEW_TAG;
 
 import android.Manifest;
 import android.annotation.TestApi;
+import android.content.BroadcastReceiver;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.pm.PackageManager;
 import android.database.ContentObserver;
@@ -60,6 +67,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.MoreExecutors;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -105,6 +113,8 @@ public class SimPhonebookProvider extends ContentProvider {
     );
 
     private static final int WRITE_TIMEOUT_SECONDS = 30;
+    // The authority of the legacy IccProvider which writes to the same elementary files.
+    private static final Uri ICC_PROVIDER_URI = Uri.parse("content://icc");
 
     private static final UriMatcher URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
 
@@ -130,6 +140,11 @@ public class SimPhonebookProvider extends ContentProvider {
     // Only allow 1 write at a time to prevent races; the mutations are based on reads of the
     // existing list of records which means concurrent writes would be problematic.
     private final Lock mWriteLock = new ReentrantLock(true);
+    private final SimRecordCache mRecordCache = new SimRecordCache(this::loadRecordsForEf);
+    // Set while applyBatch holds mWriteLock so that the writes of the batch are notified once
+    // when it completes. Both are guarded by mWriteLock.
+    private boolean mInBatch;
+    private boolean mChangedInBatch;
     private SubscriptionManager mSubscriptionManager;
     private Supplier<IIccPhoneBook> mIccPhoneBookSupplier;
     private ContentNotifier mContentNotifier;
@@ -181,9 +196,30 @@ public class SimPhonebookProvider extends ContentProvider {
         } else if (Flags.workProfileApiSplit()) {
             sm = sm.createForAllUserProfiles();
         }
-        return onCreate(sm,
+        if (!onCreate(sm,
                 SimPhonebookProvider::getIccPhoneBook,
-                uri -> resolver.notifyChange(uri, null));
+                uri -> resolver.notifyChange(uri, null))) {
+            return false;
+        }
+        // The records are also changed by a refresh of the SIM and by writes made through the
+        // legacy IccProvider, neither of which goes through this provider. Changes without any
+        // signal, e.g. an STK REFRESH of the file, are picked up once the cached records expire.
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED);
+        filter.addAction(TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED);
+        getContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                mRecordCache.invalidateAll();
+            }
+        }, filter);
+        resolver.registerContentObserver(ICC_PROVIDER_URI, true, new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mRecordCache.invalidateAll();
+            }
+        });
+        return true;
     }
 
     @TestApi
@@ -192,6 +228,7 @@ public class SimPhonebookProvider extends ContentProvider {
         mSubscriptionManager = subscriptionManager;
         mIccPhoneBookSupplier = iccPhoneBookSupplier;
         mContentNotifier = notifier;
+        mRecordCache.invalidateAll();
 
         mSubscriptionManager.addOnSubscriptionsChangedListener(MoreExecutors.directExecutor(),
                 new SubscriptionManager.OnSubscriptionsChangedListener() {
@@ -200,6 +237,7 @@ public class SimPhonebookProvider extends ContentProvider {
 
                     @Override
                     public void onSubscriptionsChanged() {
+                        mRecordCache.invalidateAll();
                         if (mFirstCallback) {
                             mFirstCallback = false;
                             return;
@@ -342,8 +380,8 @@ public class SimPhonebookProvider extends ContentProvider {
         // Have to load the existing records to get the size because there may be more than one
         // phonebook set in which case the total capacity is the sum of the capacity of EF_ADN for
         // all the phonebook sets whereas the recordsSize is just the size for a single EF.
-        List<AdnRecord> existingRecords = mIccPhoneBookSupplier.get()
-                .getAdnRecordsInEfForSubscriber(subscriptionInfo.getSubscriptionId(), efid);
+        List<AdnRecord> existingRecords = mRecordCache.getRecords(
+                subscriptionInfo.getSubscriptionId(), efid);
         if (existingRecords == null) {
             existingRecords = ImmutableList.of();
         }
@@ -374,7 +412,7 @@ public class SimPhonebookProvider extends ContentProvider {
             projection = SIM_RECORDS_ALL_COLUMNS;
         }
 
-        List<AdnRecord> records = loadRecordsForEf(args);
+        List<AdnRecord> records = mRecordCache.getRecords(args.subscriptionId, args.efid);
         if (records == null) {
             return new MatrixCursor(projection, 0);
         }
@@ -501,24 +539,24 @@ public class SimPhonebookProvider extends ContentProvider {
 
         acquireWriteLockOrThrow();
         try {
-            List<AdnRecord> records = loadRecordsForEf(args);
-            if (records == null) {
+            int recordNumber = mRecordCache.findEmptyRecordNumber(args.subscriptionId, args.efid);
+            if (recordNumber == SimRecordCache.LOAD_FAILED) {
                 Rlog.e(TAG, "Failed to load existing records for " + args.uri);
                 return null;
             }
-            AdnRecord emptyRecord = null;
-            for (AdnRecord record : records) {
-                if (record.isEmpty()) {
-                    emptyRecord = record;
-                    break;
-                }
-            }
-            if (emptyRecord == null) {
+            if (recordNumber == SimRecordCache.NO_EMPTY_RECORD) {
                 // When there are no empty records that means the EF is full.
                 throw new IllegalStateException(
                         args.uri + " is full. Please delete records to add new ones.");
             }
-            boolean success = updateRecord(args, emptyRecord, args.pin2, newName, newPhoneNumber);
+            AdnRecord emptyRecord = mRecordCache.getRecord(args.subscriptionId, args.efid,
+                    recordNumber);
+            if (emptyRecord == null) {
+                Rlog.e(TAG, "Failed to load existing records for " + args.uri);
+                return null;
+            }
+            boolean success = updateRecord(args, recordNumber, emptyRecord, args.pin2, newName,
+                    newPhoneNumber);
             if (!success) {
                 Rlog.e(TAG, "Insert failed for " + args.uri);
                 // Something didn't work but since we don't have any more specific
@@ -533,6 +571,104 @@ public class SimPhonebookProvider extends ContentProvider {
         }
     }
 
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        switch (URI_MATCHER.match(uri)) {
+            case SIM_RECORDS:
+                return bulkInsertSimRecords(PhonebookArgs.forSimRecords(uri, null), values);
+            case ELEMENTARY_FILES:
+            case ELEMENTARY_FILES_ITEM:
+            case SIM_RECORDS_ITEM:
+                throw new UnsupportedOperationException(uri + " does not support insert");
+            default:
+                throw new IllegalArgumentException("Unsupported Uri " + uri);
+        }
+    }
+
+    private int bulkInsertSimRecords(PhonebookArgs args, ContentValues[] values) {
+        validateWritableEf(args, "insert");
+        validateSubscriptionAndEf(args);
+
+        // Validate everything up front so that an invalid value doesn't leave the batch half
+        // written.
+        int maxNameLength = getMaxNameLength(args);
+        List<ContentValues> toInsert = new ArrayList<>(values.length);
+        for (ContentValues value : values) {
+            if (value == null || value.isEmpty()) {
+                continue;
+            }
+            validateValues(value, maxNameLength);
+            toInsert.add(value);
+        }
+        if (toInsert.isEmpty()) {
+            return 0;
+        }
+
+        acquireWriteLockOrThrow();
+        try {
+            List<AdnRecord> records = mRecordCache.getRecords(args.subscriptionId, args.efid);
+            if (records == null) {
+                Rlog.e(TAG, "Failed to load existing records for " + args.uri);
+                return 0;
+            }
+            int[] recordNumbers = new int[toInsert.size()];
+            int planned = 0;
+            for (int i = 0; i < records.size() && planned < recordNumbers.length; i++) {
+                if (records.get(i).isEmpty()) {
+                    recordNumbers[planned++] = i + 1;
+                }
+            }
+            if (planned < recordNumbers.length) {
+                throw new IllegalStateException(args.uri + " doesn't have room for "
+                        + recordNumbers.length + " records. Please delete records to add new"
+                        + " ones.");
+            }
+            int inserted = 0;
+            for (int i = 0; i < recordNumbers.length; i++) {
+                ContentValues value = toInsert.get(i);
+                String newName = Strings.nullToEmpty(value.getAsString(SimRecords.NAME));
+                String newPhoneNumber = Strings.nullToEmpty(
+                        value.getAsString(SimRecords.PHONE_NUMBER));
+                if (!updateRecord(args, recordNumbers[i], records.get(recordNumbers[i] - 1),
+                        args.pin2, newName, newPhoneNumber)) {
+                    Rlog.e(TAG, "Bulk insert failed for " + args.uri + " after " + inserted
+                            + " records");
+                    break;
+                }
+                inserted++;
+            }
+            if (inserted > 0) {
+                notifyChange();
+            }
+            return inserted;
+        } finally {
+            releaseWriteLock();
+        }
+    }
+
+    /**
+     * Applies the operations while holding the write lock for the whole batch. The records are
+     * loaded at most once per elementary file and observers are notified once for the batch.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull String authority,
+            @NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        acquireWriteLockOrThrow();
+        try {
+            mInBatch = true;
+            mChangedInBatch = false;
+            return super.applyBatch(authority, operations);
+        } finally {
+            mInBatch = false;
+            if (mChangedInBatch) {
+                notifyChange();
+            }
+            releaseWriteLock();
+        }
+    }
+
     @Override
     public int delete(@NonNull Uri uri, @Nullable String selection,
             @Nullable String[] selectionArgs) {
@@ -563,7 +699,7 @@ public class SimPhonebookProvider extends ContentProvider {
             if (record == null || record.isEmpty()) {
                 return 0;
             }
-            if (!updateRecord(args, record, args.pin2, "", "")) {
+            if (!updateRecord(args, args.recordNumber, record, args.pin2, "", "")) {
                 Rlog.e(TAG, "Failed to delete " + args.uri);
             }
             notifyChange();
@@ -617,7 +753,8 @@ public class SimPhonebookProvider extends ContentProvider {
             if (record == null) {
                 return 0;
             }
-            if (!updateRecord(args, record, args.pin2, newName, newPhoneNumber)) {
+            if (!updateRecord(args, args.recordNumber, record, args.pin2, newName,
+                    newPhoneNumber)) {
                 Rlog.e(TAG, "Failed to update " + args.uri);
                 return 0;
             }
@@ -686,19 +823,28 @@ public class SimPhonebookProvider extends ContentProvider {
     }
 
 
-    private boolean updateRecord(PhonebookArgs args, AdnRecord existingRecord, String pin2,
-            String newName, String newPhone) {
+    private boolean updateRecord(PhonebookArgs args, int recordNumber, AdnRecord existingRecord,
+            String pin2, String newName, String newPhone) {
+        boolean success;
         try {
             ContentValues values = new ContentValues();
             values.put(STR_NEW_TAG, newName);
             values.put(STR_NEW_NUMBER, newPhone);
-            return mIccPhoneBookSupplier.get().updateAdnRecordsInEfByIndexForSubscriber(
+            success = mIccPhoneBookSupplier.get().updateAdnRecordsInEfByIndexForSubscriber(
                     args.subscriptionId, existingRecord.getEfid(), values,
                     existingRecord.getRecId(),
                     pin2);
         } catch (RemoteException e) {
-            return false;
+            success = false;
+        }
+        if (success) {
+            mRecordCache.onRecordWritten(args.subscriptionId, args.efid, recordNumber,
+                    existingRecord, newName, newPhone);
+        } else {
+            // The write may still have reached the SIM so the cached records can't be trusted.
+            mRecordCache.invalidate(args.subscriptionId, args.efid);
         }
+        return success;
     }
 
     private void validatePhoneNumber(@Nullable String phoneNumber) {
@@ -723,6 +869,10 @@ public class SimPhonebookProvider extends ContentProvider {
     }
 
     private void validateValues(PhonebookArgs args, ContentValues values) {
+        validateValues(values, getMaxNameLength(args));
+    }
+
+    private void validateValues(ContentValues values, int maxNameLength) {
         if (!SIM_RECORDS_WRITABLE_COLUMNS.containsAll(values.keySet())) {
             Set<String> unsupportedColumns = new ArraySet<>(values.keySet());
             unsupportedColumns.removeAll(SIM_RECORDS_WRITABLE_COLUMNS);
@@ -735,16 +885,18 @@ public class SimPhonebookProvider extends ContentProvider {
 
         String name = values.getAsString(SimRecords.NAME);
         int length = getEncodedNameLength(name);
+        if (length > maxNameLength) {
+            throw new IllegalArgumentException(SimRecords.NAME + " is too long.");
+        }
+    }
+
+    private int getMaxNameLength(PhonebookArgs args) {
         int[] recordsSize = getRecordsSizeForEf(args);
         if (recordsSize == null) {
             throw new IllegalStateException(
                     "Failed to get " + ElementaryFiles.NAME_MAX_LENGTH + " from SIM");
         }
-        int maxLength = AdnRecord.getMaxAlphaTagBytes(getRecordSize(recordsSize));
-
-        if (length > maxLength) {
-            throw new IllegalArgumentException(SimRecords.NAME + " is too long.");
-        }
+        return AdnRecord.getMaxAlphaTagBytes(getRecordSize(recordsSize));
     }
 
     private List<SubscriptionInfo> getActiveSubscriptionInfoList() {
@@ -769,21 +921,16 @@ public class SimPhonebookProvider extends ContentProvider {
         }
     }
 
-    private List<AdnRecord> loadRecordsForEf(PhonebookArgs args) {
+    private List<AdnRecord> loadRecordsForEf(int subId, int efid) {
         try {
-            return mIccPhoneBookSupplier.get().getAdnRecordsInEfForSubscriber(
-                    args.subscriptionId, args.efid);
+            return mIccPhoneBookSupplier.get().getAdnRecordsInEfForSubscriber(subId, efid);
         } catch (RemoteException e) {
             return null;
         }
     }
 
     private AdnRecord loadRecord(PhonebookArgs args) {
-        List<AdnRecord> records = loadRecordsForEf(args);
-        if (records == null || args.recordNumber > records.size()) {
-            return null;
-        }
-        return records.get(args.recordNumber - 1);
+        return mRecordCache.getRecord(args.subscriptionId, args.efid, args.recordNumber);
     }
 
     private int[] getRecordsSizeForEf(PhonebookArgs args) {
@@ -796,6 +943,10 @@ public class SimPhonebookProvider extends ContentProvider {
     }
 
     void notifyChange() {
+        if (mInBatch) {
+            mChangedInBatch = true;
+            return;
+        }
         mContentNotifier.notifyChange(SimPhonebookContract.AUTHORITY_URI);
     }
 
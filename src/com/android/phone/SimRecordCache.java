@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.os.SystemClock;
+import android.util.Pair;
+
+import androidx.annotation.Nullable;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.uicc.AdnRecord;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Cache of the records of the elementary files accessed by {@link SimPhonebookProvider}.
+ *
+ * The records of an elementary file are loaded in full the first time they are needed and are
+ * then updated with the writes made through the provider, so reading a single record or finding
+ * an empty record to insert into doesn't load the whole file from the SIM again. Records are
+ * addressed by their record number, i.e. their 1-based index in the loaded list.
+ *
+ * The records can also change without the provider being told: an STK REFRESH of EF_ADN or
+ * EF_FDN only resets the AdnRecordCache of the framework and changes neither the SIM card nor the
+ * SIM application state, and apps with access to IIccPhoneBook write the SIM directly. There is no
+ * signal for either, so the records are only kept for {@link #MAX_AGE_MILLIS} after they were
+ * loaded. That is long enough for a query followed by the reads and inserts of the same contacts,
+ * and bounds how long a change made elsewhere can go unnoticed.
+ *
+ * All methods are thread safe.
+ */
+final class SimRecordCache {
+    /** Returned by {@link #findEmptyRecordNumber} when the elementary file is full. */
+    static final int NO_EMPTY_RECORD = 0;
+    /** Returned by {@link #findEmptyRecordNumber} when the records couldn't be loaded. */
+    static final int LOAD_FAILED = -1;
+    /** For how long the records of an elementary file are used after they were loaded. */
+    @VisibleForTesting
+    static final long MAX_AGE_MILLIS = 10_000;
+
+    /** Loads all the records of an elementary file. */
+    interface Loader {
+        /** Returns the records of the elementary file or null if they couldn't be loaded. */
+        @Nullable
+        List<AdnRecord> load(int subId, int efid);
+    }
+
+    /** The records of an elementary file along with a bitmap of the empty ones. */
+    private static final class CachedEf {
+        final AdnRecord[] mRecords;
+        // Bit i is set when mRecords[i] is empty.
+        final BitSet mEmptyRecords;
+        final long mLoadedTimeMillis;
+
+        CachedEf(List<AdnRecord> records, long loadedTimeMillis) {
+            mLoadedTimeMillis = loadedTimeMillis;
+            mRecords = records.toArray(new AdnRecord[0]);
+            mEmptyRecords = new BitSet(mRecords.length);
+            for (int i = 0; i < mRecords.length; i++) {
+                mEmptyRecords.set(i, mRecords[i].isEmpty());
+            }
+        }
+    }
+
+    private final Loader mLoader;
+    private final LongSupplier mClock;
+    private final Object mLock = new Object();
+    // Keyed by (subId, efid), guarded by mLock.
+    private final Map<Pair<Integer, Integer>, CachedEf> mEfs = new HashMap<>();
+    // Incremented on every change of the cache so that a load which raced with a write or an
+    // invalidation is not cached. Guarded by mLock.
+    private int mGeneration;
+    private int mLoads;
+    private int mHits;
+
+    SimRecordCache(Loader loader) {
+        this(loader, SystemClock::elapsedRealtime);
+    }
+
+    @VisibleForTesting
+    SimRecordCache(Loader loader, LongSupplier clock) {
+        mLoader = loader;
+        mClock = clock;
+    }
+
+    /** Returns a copy of all the records of the elementary file or null if they can't be loaded. */
+    @Nullable
+    List<AdnRecord> getRecords(int subId, int efid) {
+        CachedEf ef = getOrLoad(subId, efid);
+        if (ef == null) {
+            return null;
+        }
+        synchronized (mLock) {
+            return Collections.unmodifiableList(Arrays.asList(ef.mRecords.clone()));
+        }
+    }
+
+    /**
+     * Returns the record with the record number or null if it doesn't exist or the records can't
+     * be loaded.
+     */
+    @Nullable
+    AdnRecord getRecord(int subId, int efid, int recordNumber) {
+        CachedEf ef = getOrLoad(subId, efid);
+        if (ef == null || recordNumber < 1 || recordNumber > ef.mRecords.length) {
+            return null;
+        }
+        synchronized (mLock) {
+            return ef.mRecords[recordNumber - 1];
+        }
+    }
+
+    /**
+     * Returns the number of the first empty record, {@link #NO_EMPTY_RECORD} if the elementary
+     * file is full or {@link #LOAD_FAILED} if the records can't be loaded.
+     */
+    int findEmptyRecordNumber(int subId, int efid) {
+        CachedEf ef = getOrLoad(subId, efid);
+        if (ef == null) {
+            return LOAD_FAILED;
+        }
+        synchronized (mLock) {
+            int index = ef.mEmptyRecords.nextSetBit(0);
+            return index >= 0 ? index + 1 : NO_EMPTY_RECORD;
+        }
+    }
+
+    /**
+     * Updates the cache after the record was successfully written to the SIM.
+     *
+     * @param record the record as it was before the write.
+     */
+    void onRecordWritten(int subId, int efid, int recordNumber, AdnRecord record,
+            String newName, String newPhoneNumber) {
+        synchronized (mLock) {
+            mGeneration++;
+            CachedEf ef = mEfs.get(Pair.create(subId, efid));
+            if (ef == null || recordNumber < 1 || recordNumber > ef.mRecords.length) {
+                return;
+            }
+            AdnRecord written = new AdnRecord(record.getEfid(), record.getRecId(), newName,
+                    newPhoneNumber);
+            ef.mRecords[recordNumber - 1] = written;
+            ef.mEmptyRecords.set(recordNumber - 1, written.isEmpty());
+        }
+    }
+
+    /** Drops the records of the elementary file, e.g. after a write with an unknown outcome. */
+    void invalidate(int subId, int efid) {
+        synchronized (mLock) {
+            mGeneration++;
+            mEfs.remove(Pair.create(subId, efid));
+        }
+    }
+
+    /** Drops all the records, e.g. when the SIM is refreshed or the subscriptions change. */
+    void invalidateAll() {
+        synchronized (mLock) {
+            mGeneration++;
+            mEfs.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "SimRecordCache{efs=" + mEfs.size() + ", loads=" + mLoads + ", hits=" + mHits
+                    + "}";
+        }
+    }
+
+    @Nullable
+    private CachedEf getOrLoad(int subId, int efid) {
+        Pair<Integer, Integer> key = Pair.create(subId, efid);
+        synchronized (mLock) {
+            CachedEf ef = mEfs.get(key);
+            if (ef != null && mClock.getAsLong() - ef.mLoadedTimeMillis < MAX_AGE_MILLIS) {
+                mHits++;
+                return ef;
+            }
+            if (ef != null) {
+                mEfs.remove(key);
+            }
+        }
+        return load(subId, efid);
+    }
+
+    /** Loads the records from the SIM and caches them unless the cache changed meanwhile. */
+    @Nullable
+    private CachedEf load(int subId, int efid) {
+        int generation;
+        long loadedTimeMillis = mClock.getAsLong();
+        synchronized (mLock) {
+            generation = mGeneration;
+            mLoads++;
+        }
+        // The load is a binder call into the SIM, don't hold the lock across it.
+        List<AdnRecord> records = mLoader.load(subId, efid);
+        if (records == null) {
+            return null;
+        }
+        CachedEf ef = new CachedEf(records, loadedTimeMillis);
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                mEfs.put(Pair.create(subId, efid), ef);
+            }
+        }
+        return ef;
+    }
+}
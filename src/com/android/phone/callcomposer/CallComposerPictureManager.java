@@ -38,8 +38,8 @@ import com.android.phone.R;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.InputStream;
-import java.util.HashMap;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
@@ -53,6 +53,15 @@ public class CallComposerPictureManager {
     private static final String TAG = CallComposerPictureManager.class.getSimpleName();
     private static final SparseArray<CallComposerPictureManager> sInstances = new SparseArray<>();
     private static final String THREE_GPP_BOOTSTRAPPING = "3GPP-bootstrapping";
+    // A picture is uploaded right before the call it's for is placed and downloaded when the call
+    // comes in, so it's only kept around for the time it takes to set up the call.
+    private static final long PICTURE_LIFETIME_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    // A few pictures of the maximum size in memory, more in files when they don't fit.
+    private static final long PICTURE_MEMORY_BUDGET_BYTES =
+            4 * TelephonyManager.getMaximumCallComposerPictureSize();
+    private static final long PICTURE_FILE_BUDGET_BYTES =
+            16 * TelephonyManager.getMaximumCallComposerPictureSize();
+    private static final String PICTURE_CACHE_DIR = "call_composer_pictures";
 
     public static CallComposerPictureManager getInstance(Context context, int subscriptionId) {
         synchronized (sInstances) {
@@ -103,9 +112,9 @@ public class CallComposerPictureManager {
 
     private static ScheduledExecutorService sExecutorService = null;
 
-    private final HashMap<UUID, String> mCachedServerUrls = new HashMap<>();
-    private final HashMap<UUID, ImageData> mCachedImages = new HashMap<>();
+    private final PictureCache mPictureCache;
     private GbaCredentials mCachedCredentials = null;
+    private final DigestChallengeCache mChallengeCache = new DigestChallengeCache();
     private final int mSubscriptionId;
     private final TelephonyManager mTelephonyManager;
     private final Context mContext;
@@ -116,14 +125,17 @@ public class CallComposerPictureManager {
         mSubscriptionId = subscriptionId;
         mTelephonyManager = mContext.getSystemService(TelephonyManager.class)
                 .createForSubscriptionId(mSubscriptionId);
+        File cacheDir = mContext.getCacheDir();
+        mPictureCache = new PictureCache(PICTURE_MEMORY_BUDGET_BYTES, PICTURE_FILE_BUDGET_BYTES,
+                PICTURE_LIFETIME_MILLIS, cacheDir == null ? null
+                        : new File(cacheDir, PICTURE_CACHE_DIR + "/" + subscriptionId));
     }
 
     public void handleUploadToServer(CallComposerPictureTransfer.Factory transferFactory,
             ImageData imageData, Consumer<Pair<UUID, Integer>> callback) {
         if (sTestMode) {
             UUID id = UUID.randomUUID();
-            mCachedImages.put(id, imageData);
-            mCachedServerUrls.put(id, FAKE_SERVER_URL);
+            mPictureCache.put(id, imageData, FAKE_SERVER_URL);
             callback.accept(Pair.create(id, TelephonyManager.CallComposerException.SUCCESS));
             return;
         }
@@ -141,6 +153,7 @@ public class CallComposerPictureManager {
 
         CallComposerPictureTransfer transfer = transferFactory.create(mContext,
                 mSubscriptionId, uploadUrl, sExecutorService);
+        transfer.setChallengeCache(mChallengeCache);
 
         AtomicBoolean hasRetried = new AtomicBoolean(false);
         transfer.setCallback(new CallComposerPictureTransfer.PictureCallback() {
@@ -167,8 +180,7 @@ public class CallComposerPictureManager {
 
             @Override
             public void onUploadSuccessful(String serverUrl) {
-                mCachedServerUrls.put(id, serverUrl);
-                mCachedImages.put(id, imageData);
+                mPictureCache.put(id, imageData, serverUrl);
                 Log.i(TAG, "Successfully received url: " + serverUrl + " associated with "
                         + id.toString());
                 callback.accept(Pair.create(id, TelephonyManager.CallComposerException.SUCCESS));
@@ -179,14 +191,21 @@ public class CallComposerPictureManager {
                 (realm, executor) -> getGbaCredentials(false, carrierConfig, executor));
     }
 
-    public void handleDownloadFromServer(CallComposerPictureTransfer.Factory transferFactory,
-            String remoteUrl, Consumer<Pair<Uri, Integer>> callback) {
+    /**
+     * Downloads the picture and stores it to the call log.
+     *
+     * @return the transfer, to cancel once the picture is no longer needed, or null if there is
+     * nothing to download.
+     */
+    public CallComposerPictureTransfer handleDownloadFromServer(
+            CallComposerPictureTransfer.Factory transferFactory, String remoteUrl,
+            Consumer<Pair<Uri, Integer>> callback) {
         if (sTestMode) {
             ImageData imageData = new ImageData(getPlaceholderPictureAsBytes(), "image/png", null);
             UUID id = UUID.randomUUID();
-            mCachedImages.put(id, imageData);
+            mPictureCache.put(id, imageData, null);
             storeUploadedPictureToCallLog(id, uri -> callback.accept(Pair.create(uri, -1)));
-            return;
+            return null;
         }
 
         PersistableBundle carrierConfig = mTelephonyManager.getCarrierConfig();
@@ -242,10 +261,11 @@ public class CallComposerPictureManager {
 
         transfer.downloadPicture(((realm, executor) ->
                 getGbaCredentials(false, carrierConfig, executor)));
+        return transfer;
     }
 
     public void storeUploadedPictureToCallLog(UUID id, Consumer<Uri> callback) {
-        ImageData data = mCachedImages.get(id);
+        ImageData data = mPictureCache.getImage(id);
         if (data == null) {
             Log.e(TAG, "No picture associated with uuid " + id);
             callback.accept(null);
@@ -273,12 +293,11 @@ public class CallComposerPictureManager {
     }
 
     public String getServerUrlForImageId(UUID id) {
-        return mCachedServerUrls.get(id);
+        return mPictureCache.getServerUrl(id);
     }
 
     public void clearCachedData() {
-        mCachedServerUrls.clear();
-        mCachedImages.clear();
+        mPictureCache.clear();
     }
 
     private byte[] getPlaceholderPictureAsBytes() {
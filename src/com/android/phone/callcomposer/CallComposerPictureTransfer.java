@@ -38,7 +38,6 @@ import gov.nist.javax.sip.header.WWWAuthenticate;
 import org.xml.sax.InputSource;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -53,6 +52,7 @@ import java.nio.charset.Charset;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
@@ -67,6 +67,8 @@ public class CallComposerPictureTransfer {
     private static final String TAG = CallComposerPictureTransfer.class.getSimpleName();
     private static final int HTTP_TIMEOUT_MILLIS = 20000;
     private static final int DEFAULT_BACKOFF_MILLIS = 1000;
+    // Initial size of the download buffer when the server doesn't send the Content-Length.
+    private static final int INITIAL_DOWNLOAD_BUFFER_BYTES = 16 * 1024;
     private static final String THREE_GPP_GBA = "3gpp-gba";
 
     private static final int ERROR_UNKNOWN = 0;
@@ -102,6 +104,8 @@ public class CallComposerPictureTransfer {
     private final ExecutorService mExecutorService;
 
     private PictureCallback mCallback;
+    private DigestChallengeCache mChallengeCache;
+    private volatile boolean mCancelled = false;
 
     private CallComposerPictureTransfer(Context context, int subscriptionId, String url,
             ExecutorService executorService) {
@@ -116,13 +120,33 @@ public class CallComposerPictureTransfer {
         mCallback = callback;
     }
 
+    // Sets the cache of challenges shared by the transfers to the same servers, so that uploads
+    // can be authorized without first being challenged.
+    public void setChallengeCache(DigestChallengeCache challengeCache) {
+        mChallengeCache = challengeCache;
+    }
+
     public void uploadPicture(ImageData image,
             GbaCredentialsSupplier credentialsSupplier) {
+        uploadPicture(image, credentialsSupplier, true);
+    }
+
+    private void uploadPicture(ImageData image, GbaCredentialsSupplier credentialsSupplier,
+            boolean canRechallenge) {
         CompletableFuture<Network> networkFuture = getNetworkForCallComposer();
-        CompletableFuture<WWWAuthenticate> authorizationHeaderFuture = networkFuture
-                .thenApplyAsync((network) -> prepareInitialPost(network, mUrl), mExecutorService)
-                .thenComposeAsync(this::obtainAuthenticateHeader, mExecutorService)
-                .thenApplyAsync(DigestAuthUtils::parseAuthenticateHeader);
+        WWWAuthenticate cachedChallenge =
+                mChallengeCache != null ? mChallengeCache.getChallenge(mUrl) : null;
+        CompletableFuture<WWWAuthenticate> authorizationHeaderFuture;
+        if (cachedChallenge != null) {
+            // Skip the unauthenticated request, the server challenges again if it's stale.
+            authorizationHeaderFuture = CompletableFuture.completedFuture(cachedChallenge);
+        } else {
+            authorizationHeaderFuture = networkFuture
+                    .thenApplyAsync((network) -> prepareInitialPost(network, mUrl),
+                            mExecutorService)
+                    .thenComposeAsync(this::obtainAuthenticateHeader, mExecutorService)
+                    .thenApplyAsync(DigestAuthUtils::parseAuthenticateHeader);
+        }
         CompletableFuture<GbaCredentials> credsFuture = authorizationHeaderFuture
                 .thenComposeAsync((header) ->
                         credentialsSupplier.getCredentials(header.getRealm(), mExecutorService),
@@ -132,15 +156,21 @@ public class CallComposerPictureTransfer {
                 authorizationHeaderFuture.thenCombineAsync(credsFuture,
                         (authHeader, credentials) ->
                                 DigestAuthUtils.generateAuthorizationHeader(
-                                        authHeader, credentials, "POST", mUrl),
+                                        authHeader, credentials, "POST", mUrl,
+                                        getNonceCount(authHeader)),
                         mExecutorService)
                         .whenCompleteAsync(
                                 (authorization, error) -> handleExceptionalCompletion(error),
                                 mExecutorService);
 
+        // Only retry when a cached challenge is rejected, a fresh one being rejected means that
+        // the credentials are wrong.
+        Runnable rechallenge = cachedChallenge != null && canRechallenge
+                ? () -> uploadPicture(image, credentialsSupplier, false) : null;
         CompletableFuture<String> networkUrlFuture =
                 networkFuture.thenCombineAsync(authorizationFuture,
-                        (network, auth) -> sendActualImageUpload(network, auth, image),
+                        (network, auth) -> sendActualImageUpload(network, auth, image,
+                                rechallenge),
                         mExecutorService);
         networkUrlFuture.thenAcceptAsync((result) -> {
             if (result != null) mCallback.onUploadSuccessful(result);
@@ -150,7 +180,17 @@ public class CallComposerPictureTransfer {
         });
     }
 
+    // Stops the download in progress, if any, at the next read of the picture, which is then
+    // dropped without calling the callback. Later retries of the download do nothing.
+    public void cancel() {
+        mCancelled = true;
+    }
+
     public void downloadPicture(GbaCredentialsSupplier credentialsSupplier) {
+        if (mCancelled) {
+            Log.i(TAG, "Picture download cancelled");
+            return;
+        }
         CompletableFuture<Network> networkFuture = getNetworkForCallComposer();
         CompletableFuture<HttpURLConnection> getConnectionFuture =
                 networkFuture.thenApplyAsync((network) ->
@@ -209,7 +249,7 @@ public class CallComposerPictureTransfer {
                 Log.w(TAG, "No result from download -- error happened sometime earlier");
             }
             if (fromAuth != null) mCallback.onDownloadSuccessful(fromAuth);
-            mCallback.onDownloadSuccessful(fromImmediate);
+            if (fromImmediate != null) mCallback.onDownloadSuccessful(fromImmediate);
         }).exceptionally((ex) -> {
             logException("Exception downloading image" , ex);
             return null;
@@ -294,10 +334,33 @@ public class CallComposerPictureTransfer {
                 throw new NetworkAccessException(ERROR_UNKNOWN);
             }
 
-            return connection.getHeaderField(DigestAuthUtils.WWW_AUTHENTICATE);
+            String header = connection.getHeaderField(DigestAuthUtils.WWW_AUTHENTICATE);
+            discardResponseBody(connection);
+            return header;
         }, mExecutorService);
     }
 
+    // Returns the nonce count for the next request authorized with the challenge, which is
+    // cached for the following uploads.
+    private int getNonceCount(WWWAuthenticate challenge) {
+        return mChallengeCache != null ? mChallengeCache.nextNonceCount(mUrl, challenge) : 1;
+    }
+
+    // Reads and closes the body of a response which isn't needed, so that the connection goes
+    // back to the pool and is kept alive for the next request to the server.
+    private static void discardResponseBody(HttpURLConnection connection) {
+        try (InputStream is = connection.getResponseCode() < 400
+                ? connection.getInputStream() : connection.getErrorStream()) {
+            if (is == null) return;
+            byte[] buffer = new byte[1024];
+            while (is.read(buffer) >= 0) {
+                // discard
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "IOException discarding response body: " + e);
+        }
+    }
+
     private ImageData downloadImageWithAuth(Network network, String authorization) {
         HttpURLConnection connection = prepareImageDownloadRequest(network, mUrl);
         connection.addRequestProperty("Authorization", authorization);
@@ -320,23 +383,63 @@ public class CallComposerPictureTransfer {
             throw new NetworkAccessException(ERROR_HTTP_TIMEOUT);
         }
 
+        // Refuse pictures which are known to be too large before reading any of them.
+        long maxSize = TelephonyManager.getMaximumCallComposerPictureSize();
+        long contentLength = conn.getContentLengthLong();
+        if (contentLength > maxSize) {
+            Log.w(TAG, "Picture of " + contentLength + " bytes is too large, not downloading");
+            conn.disconnect();
+            deliverFailure(TelephonyManager.CallComposerException.ERROR_FILE_TOO_LARGE);
+            return null;
+        }
+
         String contentType = conn.getContentType();
-        ByteArrayOutputStream imageDataOut = new ByteArrayOutputStream();
-        byte[] buffer = new byte[4096];
-        int numRead;
-        try {
-            InputStream is = conn.getInputStream();
-            while (true) {
-                numRead = is.read(buffer);
-                if (numRead < 0) break;
-                imageDataOut.write(buffer, 0, numRead);
-            }
+        byte[] imageBytes;
+        try (InputStream is = conn.getInputStream()) {
+            imageBytes = readImageBytes(is, contentLength, (int) maxSize);
         } catch (IOException e) {
             logException("IOException reading from image body: ", e);
             return null;
         }
+        if (imageBytes == null) {
+            conn.disconnect();
+            return null;
+        }
+
+        return new ImageData(imageBytes, contentType, null);
+    }
 
-        return new ImageData(imageDataOut.toByteArray(), contentType, null);
+    // Reads the picture straight into an array sized from the Content-Length when the server
+    // sends it, or into one grown as needed otherwise. Returns null if the picture turns out to
+    // be larger than maxSize, which is reported, or if the transfer is cancelled.
+    private byte[] readImageBytes(InputStream is, long contentLength, int maxSize)
+            throws IOException {
+        byte[] bytes = new byte[contentLength >= 0
+                ? (int) contentLength : Math.min(INITIAL_DOWNLOAD_BUFFER_BYTES, maxSize)];
+        int length = 0;
+        while (true) {
+            if (mCancelled) {
+                Log.i(TAG, "Picture download cancelled");
+                return null;
+            }
+            if (length == bytes.length) {
+                // Either the end of the picture or the array needs to grow, read one byte to know.
+                int next = is.read();
+                if (next < 0) break;
+                if (length >= maxSize) {
+                    Log.w(TAG, "Picture is larger than " + maxSize + " bytes, not downloading");
+                    deliverFailure(TelephonyManager.CallComposerException.ERROR_FILE_TOO_LARGE);
+                    return null;
+                }
+                bytes = Arrays.copyOf(bytes, (int) Math.min(2L * length + 1, maxSize));
+                bytes[length++] = (byte) next;
+                continue;
+            }
+            int numRead = is.read(bytes, length, bytes.length - length);
+            if (numRead < 0) break;
+            length += numRead;
+        }
+        return length == bytes.length ? bytes : Arrays.copyOf(bytes, length);
     }
 
     private void handleExceptionalCompletion(Throwable error) {
@@ -414,7 +517,10 @@ public class CallComposerPictureTransfer {
         };
     }
 
-    private String sendActualImageUpload(Network network, String authHeader, ImageData image) {
+    // If rechallenge isn't null and the server rejects the authorization with a new challenge,
+    // caches the challenge and runs rechallenge instead of failing.
+    private String sendActualImageUpload(Network network, String authHeader, ImageData image,
+            Runnable rechallenge) {
         Part transactionIdPart = makeUploadPart("tid", "text/plain",
                 null, image.getId().getBytes());
         Part imageDataPart = makeUploadPart("File", image.getMimeType(),
@@ -442,6 +548,21 @@ public class CallComposerPictureTransfer {
             int response = connection.getResponseCode();
             Log.i(TAG, "Received response code: " + response
                     + ", message=" + connection.getResponseMessage());
+            if (response != 200) {
+                discardResponseBody(connection);
+            }
+            if ((response == 401 || response == 403) && mChallengeCache != null) {
+                mChallengeCache.removeChallenge(mUrl);
+                String header = connection.getHeaderField(DigestAuthUtils.WWW_AUTHENTICATE);
+                WWWAuthenticate challenge = response == 401 && header != null
+                        ? DigestAuthUtils.parseAuthenticateHeader(header) : null;
+                if (challenge != null && rechallenge != null) {
+                    Log.i(TAG, "Cached challenge rejected, retrying with the new one");
+                    mChallengeCache.putChallenge(mUrl, challenge);
+                    mExecutorService.execute(rechallenge);
+                    return null;
+                }
+            }
             if (response == 401 || response == 403) {
                 deliverFailure(TelephonyManager.CallComposerException.ERROR_AUTHENTICATION_FAILED);
                 return null;
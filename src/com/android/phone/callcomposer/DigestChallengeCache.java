@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.callcomposer;
+
+import android.util.Log;
+
+import gov.nist.javax.sip.header.WWWAuthenticate;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+
+/**
+ * Digest challenges last received from call composer servers, keyed by server origin.
+ *
+ * Requests to a server with a cached challenge can send their credentials up front, with an
+ * increasing nonce count, instead of first sending an unauthenticated request to be challenged.
+ * A challenge is dropped when the server rejects it.
+ *
+ * Thread safe.
+ */
+public class DigestChallengeCache {
+    private static final String TAG = DigestChallengeCache.class.getSimpleName();
+
+    private static class CachedChallenge {
+        final WWWAuthenticate mChallenge;
+        int mNonceCount = 0;
+
+        CachedChallenge(WWWAuthenticate challenge) {
+            mChallenge = challenge;
+        }
+    }
+
+    // guarded by this
+    private final HashMap<String, CachedChallenge> mChallenges = new HashMap<>();
+
+    /** Returns the challenge cached for the server of the url or null. */
+    public synchronized WWWAuthenticate getChallenge(String url) {
+        CachedChallenge cached = mChallenges.get(getOrigin(url));
+        return cached != null ? cached.mChallenge : null;
+    }
+
+    /** Caches the challenge received from the server of the url. */
+    public synchronized void putChallenge(String url, WWWAuthenticate challenge) {
+        String origin = getOrigin(url);
+        if (origin != null && challenge != null) {
+            mChallenges.put(origin, new CachedChallenge(challenge));
+        }
+    }
+
+    /**
+     * Returns the nonce count to use in the next request authorized with the challenge, caching
+     * the challenge if it isn't already.
+     */
+    public synchronized int nextNonceCount(String url, WWWAuthenticate challenge) {
+        String origin = getOrigin(url);
+        if (origin == null) {
+            return 1;
+        }
+        CachedChallenge cached = mChallenges.get(origin);
+        if (cached == null || cached.mChallenge != challenge) {
+            cached = new CachedChallenge(challenge);
+            mChallenges.put(origin, cached);
+        }
+        return ++cached.mNonceCount;
+    }
+
+    /** Drops the challenge cached for the server of the url. */
+    public synchronized void removeChallenge(String url) {
+        mChallenges.remove(getOrigin(url));
+    }
+
+    private static String getOrigin(String url) {
+        try {
+            URL parsedUrl = new URL(url);
+            return parsedUrl.getProtocol() + "://" + parsedUrl.getAuthority();
+        } catch (MalformedURLException e) {
+            Log.e(TAG, "Malformed URL: " + url);
+            return null;
+        }
+    }
+}
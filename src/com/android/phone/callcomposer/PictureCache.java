@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.callcomposer;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+import java.util.function.LongSupplier;
+
+/**
+ * Pictures handled by {@link CallComposerPictureManager}, with the server URL of the uploaded
+ * ones, until they're stored to the call log or expire.
+ *
+ * The bytes kept in memory are bounded by a budget, least recently used pictures out first. When
+ * a spill directory is given, the pictures pushed out of memory are written to files in it,
+ * bounded by a second budget, and read back on demand. Otherwise they are dropped.
+ *
+ * Thread safe.
+ */
+public class PictureCache {
+    private static final String TAG = PictureCache.class.getSimpleName();
+
+    private static final class Entry {
+        final String mMimeType;
+        final String mServerUrl;
+        final long mExpiryTimeMillis;
+        final int mSize;
+        // Exactly one of these is set, depending on whether the picture was spilled.
+        byte[] mBytes;
+        File mFile;
+
+        Entry(ImageData image, String serverUrl, long expiryTimeMillis) {
+            mMimeType = image.getMimeType();
+            mServerUrl = serverUrl;
+            mExpiryTimeMillis = expiryTimeMillis;
+            mBytes = image.getImageBytes();
+            mSize = mBytes.length;
+        }
+    }
+
+    private final long mMemoryBudgetBytes;
+    private final long mFileBudgetBytes;
+    private final long mLifetimeMillis;
+    private final File mSpillDir;
+    private final LongSupplier mClock;
+
+    // All guarded by this. In access order, least recently used first.
+    private final LinkedHashMap<UUID, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mMemoryBytes = 0;
+    private long mFileBytes = 0;
+    private boolean mSpillDirReady = false;
+
+    /**
+     * @param spillDir private directory to write the pictures which don't fit in memory to, or
+     *                 null to drop them.
+     */
+    public PictureCache(long memoryBudgetBytes, long fileBudgetBytes, long lifetimeMillis,
+            File spillDir) {
+        this(memoryBudgetBytes, fileBudgetBytes, lifetimeMillis, spillDir,
+                SystemClock::elapsedRealtime);
+    }
+
+    @VisibleForTesting
+    public PictureCache(long memoryBudgetBytes, long fileBudgetBytes, long lifetimeMillis,
+            File spillDir, LongSupplier clock) {
+        mMemoryBudgetBytes = memoryBudgetBytes;
+        mFileBudgetBytes = fileBudgetBytes;
+        mLifetimeMillis = lifetimeMillis;
+        mSpillDir = spillDir;
+        mClock = clock;
+    }
+
+    /** Caches the picture, replacing the one previously cached with the same id. */
+    public synchronized void put(UUID id, ImageData image, String serverUrl) {
+        removeEntry(id);
+        Entry entry = new Entry(image, serverUrl, mClock.getAsLong() + mLifetimeMillis);
+        mEntries.put(id, entry);
+        mMemoryBytes += entry.mSize;
+        trim();
+    }
+
+    /** Returns the picture with the id or null if it isn't cached. */
+    public synchronized ImageData getImage(UUID id) {
+        Entry entry = getEntry(id);
+        if (entry == null) return null;
+        byte[] bytes = entry.mBytes;
+        if (bytes == null) {
+            try {
+                bytes = Files.readAllBytes(entry.mFile.toPath());
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't read spilled picture " + id + ": " + e);
+                removeEntry(id);
+                return null;
+            }
+        }
+        return new ImageData(bytes, entry.mMimeType, id.toString());
+    }
+
+    /** Returns the server URL of the picture with the id or null if it isn't cached. */
+    public synchronized String getServerUrl(UUID id) {
+        Entry entry = getEntry(id);
+        return entry != null ? entry.mServerUrl : null;
+    }
+
+    public synchronized void clear() {
+        for (Entry entry : mEntries.values()) {
+            deleteFile(entry);
+        }
+        mEntries.clear();
+        mMemoryBytes = 0;
+        mFileBytes = 0;
+    }
+
+    @VisibleForTesting
+    public synchronized long getMemoryBytes() {
+        return mMemoryBytes;
+    }
+
+    @VisibleForTesting
+    public synchronized long getFileBytes() {
+        return mFileBytes;
+    }
+
+    private Entry getEntry(UUID id) {
+        Entry entry = mEntries.get(id);
+        if (entry != null && entry.mExpiryTimeMillis <= mClock.getAsLong()) {
+            removeEntry(id);
+            return null;
+        }
+        return entry;
+    }
+
+    private void removeEntry(UUID id) {
+        Entry entry = mEntries.remove(id);
+        if (entry == null) return;
+        if (entry.mBytes != null) {
+            mMemoryBytes -= entry.mSize;
+        } else {
+            deleteFile(entry);
+            mFileBytes -= entry.mSize;
+        }
+    }
+
+    // Drops the expired pictures and moves the least recently used ones out of memory until it's
+    // within budget, then drops the least recently used spilled ones until files are.
+    private void trim() {
+        long now = mClock.getAsLong();
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.mExpiryTimeMillis <= now) {
+                it.remove();
+                if (entry.mBytes != null) {
+                    mMemoryBytes -= entry.mSize;
+                } else {
+                    deleteFile(entry);
+                    mFileBytes -= entry.mSize;
+                }
+            } else if (entry.mBytes != null && mMemoryBytes > mMemoryBudgetBytes) {
+                mMemoryBytes -= entry.mSize;
+                if (spill(entry)) {
+                    mFileBytes += entry.mSize;
+                } else {
+                    it.remove();
+                }
+            }
+        }
+
+        it = mEntries.values().iterator();
+        while (it.hasNext() && mFileBytes > mFileBudgetBytes) {
+            Entry entry = it.next();
+            if (entry.mBytes == null) {
+                it.remove();
+                deleteFile(entry);
+                mFileBytes -= entry.mSize;
+            }
+        }
+    }
+
+    // Writes the bytes of the entry to a file and releases them, returns false if the picture
+    // couldn't be spilled.
+    private boolean spill(Entry entry) {
+        if (mSpillDir == null || entry.mSize > mFileBudgetBytes) return false;
+        try {
+            if (!mSpillDirReady) {
+                // Files left by a previous process are of no use.
+                File[] files = mSpillDir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                mSpillDir.mkdirs();
+                mSpillDirReady = true;
+            }
+            File file = File.createTempFile("picture", null, mSpillDir);
+            Files.write(file.toPath(), entry.mBytes);
+            entry.mFile = file;
+            entry.mBytes = null;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't spill picture: " + e);
+            return false;
+        }
+    }
+
+    private static void deleteFile(Entry entry) {
+        if (entry.mFile != null && !entry.mFile.delete()) {
+            Log.w(TAG, "Couldn't delete " + entry.mFile);
+        }
+    }
+}
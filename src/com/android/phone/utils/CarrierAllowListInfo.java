@@ -17,14 +17,19 @@
 package com.android.phone.utils;
 
 import android.annotation.TestApi;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.Signature;
 import android.telephony.Rlog;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.uicc.IccUtils;
 
 import org.json.JSONArray;
@@ -37,13 +42,18 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 
 public class CarrierAllowListInfo {
     private static final String LOG_TAG = "CarrierAllowListInfo";
-    private JSONObject mDataJSON;
+    // Allow list parsed from the JSON asset, keyed by package name. Replaced as a whole.
+    private volatile Map<String, CarrierInfo> mCallerInfoMap = Collections.emptyMap();
     private static final String JSON_CHARSET = "UTF-8";
     private static final String MESSAGE_DIGEST_ALGORITHM = "SHA1";
     private static final String CALLER_SHA_1_ID = "callerSHA1Id";
@@ -53,12 +63,41 @@ public class CarrierAllowListInfo {
     private static final String CARRIER_RESTRICTION_OPERATOR_REGISTERED_FILE =
             "CarrierRestrictionOperatorDetails.json";
 
+    // Maximum number of packages whose signature check result is cached.
+    private static final int MAX_VERIFIED_CALLERS = 32;
+
     private static CarrierAllowListInfo mInstance = null;
     private Context mContext;
+    // Signature check results keyed by package name, valid for the version of the package they
+    // were checked for. Entries are also dropped when the package is updated or removed, but the
+    // broadcast may come after the package changed, so the version is checked on every hit.
+    private final LruCache<String, VerifiedCaller> mVerifiedCallers =
+            new LruCache<>(MAX_VERIFIED_CALLERS);
+
+    private final BroadcastReceiver mPackageChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getData() == null) {
+                return;
+            }
+            String packageName = intent.getData().getSchemeSpecificPart();
+            if (packageName != null) {
+                mVerifiedCallers.remove(packageName);
+            }
+        }
+    };
 
-    private CarrierAllowListInfo(Context context) {
+    @VisibleForTesting
+    CarrierAllowListInfo(Context context) {
         mContext = context;
         loadJsonFile(context);
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageChangedReceiver, filter);
     }
 
     public static CarrierAllowListInfo loadInstance(Context context) {
@@ -69,10 +108,26 @@ public class CarrierAllowListInfo {
     }
 
     public int validateCallerAndGetCarrierId(String packageName) {
-        CarrierInfo carrierInfo = parseJsonForCallerInfo(packageName);
-        boolean isValid = (carrierInfo != null) && validateCallerSignature(mContext, packageName,
-                carrierInfo.getSHAIdList());
-        return (isValid) ? carrierInfo.getCallerCarrierId() : INVALID_CARRIER_ID;
+        CarrierInfo carrierInfo = getCallerInfo(packageName);
+        if (carrierInfo == null) {
+            return INVALID_CARRIER_ID;
+        }
+        // Much cheaper than getting and hashing the signatures, and tells whether the package was
+        // updated or reinstalled, maybe with another signer, since it was checked.
+        PackageInfo packageInfo = getPackageInfo(mContext, packageName);
+        if (packageInfo == null) {
+            mVerifiedCallers.remove(packageName);
+            return INVALID_CARRIER_ID;
+        }
+        VerifiedCaller verifiedCaller = mVerifiedCallers.get(packageName);
+        if (verifiedCaller == null || !verifiedCaller.isFor(carrierInfo, packageInfo)) {
+            // Not checked yet, or checked against an allow list which has been replaced since or
+            // for another version of the package.
+            verifiedCaller = new VerifiedCaller(carrierInfo, packageInfo,
+                    validateCallerSignature(mContext, packageName, carrierInfo.getSHAIdSet()));
+            mVerifiedCallers.put(packageName, verifiedCaller);
+        }
+        return verifiedCaller.mIsValid ? carrierInfo.getCallerCarrierId() : INVALID_CARRIER_ID;
     }
 
     private void loadJsonFile(Context context) {
@@ -80,7 +135,7 @@ public class CarrierAllowListInfo {
             String jsonString = getJsonFromAssets(context,
                     CARRIER_RESTRICTION_OPERATOR_REGISTERED_FILE, JSON_CHARSET);
             if (!TextUtils.isEmpty(jsonString)) {
-                mDataJSON = new JSONObject(jsonString);
+                mCallerInfoMap = parseJson(new JSONObject(jsonString));
             }
         } catch (Exception ex) {
             Rlog.e(LOG_TAG, "CarrierAllowListInfo: JSON file reading exception = " + ex);
@@ -88,24 +143,46 @@ public class CarrierAllowListInfo {
     }
 
     /**
-     * Parse the JSON object to fetch the given caller's SHA-Ids and carrierId.
+     * Parse the JSON object once into the SHA-Ids and carrierId of every caller. Callers with
+     * malformed entries are skipped.
      */
-    private CarrierInfo parseJsonForCallerInfo(String callerPackage) {
-        try {
-            if (mDataJSON != null && callerPackage != null) {
-                JSONObject callerJSON = mDataJSON.getJSONObject(callerPackage.trim());
+    private static Map<String, CarrierInfo> parseJson(JSONObject dataJSON) {
+        Map<String, CarrierInfo> callerInfoMap = new HashMap<>();
+        for (Iterator<String> it = dataJSON.keys(); it.hasNext(); ) {
+            String callerPackage = it.next();
+            try {
+                JSONObject callerJSON = dataJSON.getJSONObject(callerPackage);
                 JSONArray callerJSONArray = callerJSON.getJSONArray(CALLER_SHA_1_ID);
                 int carrierId = callerJSON.getInt(CALLER_CARRIER_ID);
                 List<String> appSignatures = new ArrayList<>();
                 for (int index = 0; index < callerJSONArray.length(); index++) {
                     appSignatures.add((String) callerJSONArray.get(index));
                 }
-                return new CarrierInfo(carrierId, appSignatures);
+                callerInfoMap.put(callerPackage.trim(), new CarrierInfo(carrierId, appSignatures));
+            } catch (JSONException ex) {
+                Rlog.e(LOG_TAG, "parseJson: JSONException = " + ex);
             }
-        } catch (JSONException ex) {
-            Rlog.e(LOG_TAG, "getCallerSignatureInfo: JSONException = " + ex);
         }
-        return null;
+        return Collections.unmodifiableMap(callerInfoMap);
+    }
+
+    /**
+     * Returns the given caller's SHA-Ids and carrierId, or null if the caller is not allowed.
+     */
+    private CarrierInfo getCallerInfo(String callerPackage) {
+        if (callerPackage == null) {
+            return null;
+        }
+        return mCallerInfoMap.get(callerPackage.trim());
+    }
+
+    private static PackageInfo getPackageInfo(Context context, String packageName) {
+        try {
+            return context.getPackageManager().getPackageInfo(packageName, 0);
+        } catch (PackageManager.NameNotFoundException ex) {
+            Rlog.e(LOG_TAG, "getPackageInfo: Exception = " + ex);
+            return null;
+        }
     }
 
     /**
@@ -144,6 +221,11 @@ public class CarrierAllowListInfo {
      */
     public static boolean validateCallerSignature(Context context, String packageName,
             List<String> allowListSignatures) {
+        return validateCallerSignature(context, packageName, new HashSet<>(allowListSignatures));
+    }
+
+    private static boolean validateCallerSignature(Context context, String packageName,
+            Set<String> allowListSignatures) {
         if (TextUtils.isEmpty(packageName) || allowListSignatures.size() == 0) {
             // package name is mandatory
             return false;
@@ -173,7 +255,7 @@ public class CarrierAllowListInfo {
                 // reset the Json content after testing
                 loadJsonFile(mContext);
             } else {
-                mDataJSON = new JSONObject(callerInfo);
+                mCallerInfoMap = parseJson(new JSONObject(callerInfo));
             }
             return 0;
         } catch (JSONException ex) {
@@ -185,10 +267,12 @@ public class CarrierAllowListInfo {
     private static class CarrierInfo {
         final private int mCallerCarrierId;
         final private List<String> mSHAIdList;
+        final private Set<String> mSHAIdSet;
 
         public CarrierInfo(int carrierId, List<String> SHAIds) {
             mCallerCarrierId = carrierId;
-            mSHAIdList = SHAIds;
+            mSHAIdList = Collections.unmodifiableList(SHAIds);
+            mSHAIdSet = Collections.unmodifiableSet(new HashSet<>(SHAIds));
         }
 
         public int getCallerCarrierId() {
@@ -198,11 +282,38 @@ public class CarrierAllowListInfo {
         public List<String> getSHAIdList() {
             return mSHAIdList;
         }
+
+        public Set<String> getSHAIdSet() {
+            return mSHAIdSet;
+        }
+    }
+
+    /**
+     * Result of the signature check of a version of a caller against its allow list entry.
+     */
+    private static class VerifiedCaller {
+        final private CarrierInfo mCarrierInfo;
+        final private long mVersionCode;
+        final private long mLastUpdateTime;
+        final private boolean mIsValid;
+
+        VerifiedCaller(CarrierInfo carrierInfo, PackageInfo packageInfo, boolean isValid) {
+            mCarrierInfo = carrierInfo;
+            mVersionCode = packageInfo.getLongVersionCode();
+            mLastUpdateTime = packageInfo.lastUpdateTime;
+            mIsValid = isValid;
+        }
+
+        boolean isFor(CarrierInfo carrierInfo, PackageInfo packageInfo) {
+            return mCarrierInfo == carrierInfo
+                    && mVersionCode == packageInfo.getLongVersionCode()
+                    && mLastUpdateTime == packageInfo.lastUpdateTime;
+        }
     }
 
     @TestApi
     public List<String> getShaIdList(String srcPkg, int carrierId) {
-        CarrierInfo carrierInfo = parseJsonForCallerInfo(srcPkg);
+        CarrierInfo carrierInfo = getCallerInfo(srcPkg);
         if (carrierInfo != null && carrierInfo.getCallerCarrierId() == carrierId) {
             return carrierInfo.getSHAIdList();
         }
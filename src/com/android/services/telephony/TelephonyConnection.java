@@ -846,6 +846,8 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
     private Call.State mOriginalConnectionState = Call.State.IDLE;
     private Call.State mConnectionOverriddenState = Call.State.IDLE;
     private RttTextStream mRttTextStream = null;
+    // The download of the call composer picture of the call, cancelled when the call goes away.
+    private CallComposerPictureTransfer mCallComposerPictureDownload;
 
     private boolean mWasImsConnection;
     private boolean mWasCrossSim;
@@ -1273,7 +1275,8 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
                         && !TextUtils.isEmpty(serverUrl)) {
                     CallComposerPictureManager manager = CallComposerPictureManager
                             .getInstance(getPhone().getContext(), getPhone().getSubId());
-                    manager.handleDownloadFromServer(new CallComposerPictureTransfer.Factory() {},
+                    mCallComposerPictureDownload = manager.handleDownloadFromServer(
+                            new CallComposerPictureTransfer.Factory() {},
                             serverUrl,
                             (result) -> {
                                 if (result.first != null) {
@@ -2667,6 +2670,10 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
 
     public void close() {
         Log.v(this, "close");
+        if (mCallComposerPictureDownload != null) {
+            mCallComposerPictureDownload.cancel();
+            mCallComposerPictureDownload = null;
+        }
         clearOriginalConnection();
         destroy();
         if (mTelephonyConnectionService != null) {
@@ -40,6 +40,8 @@ import com.android.phone.R;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Singleton service setup to manage RCS related services that the platform provides such as User
@@ -91,6 +93,15 @@ public class TelephonyRcsService {
         }
     };
 
+    /**
+     * Listener notified when the feature controllers change: a controller or one of its features
+     * is added or removed, or the subscription associated with a slot changes.
+     */
+    public interface FeatureControllersChangedListener {
+        /** Called after the feature controllers changed. */
+        void onFeatureControllersChanged();
+    }
+
     /**
      * Used to inject device resource for testing.
      */
@@ -122,6 +133,9 @@ public class TelephonyRcsService {
     // Whether the device supports User Capability Exchange
     private boolean mRcsUceEnabled;
 
+    private final List<FeatureControllersChangedListener> mFeatureControllersChangedListeners =
+            new CopyOnWriteArrayList<>();
+
     private BroadcastReceiver mCarrierConfigChangedReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -189,6 +203,13 @@ public class TelephonyRcsService {
         }
     }
 
+    /**
+     * Registers a listener notified when the feature controllers change.
+     */
+    public void addFeatureControllersChangedListener(FeatureControllersChangedListener listener) {
+        mFeatureControllersChangedListeners.add(listener);
+    }
+
     /**
      * Called after instance creation to initialize internal structures as well as register for
      * system callbacks.
@@ -242,6 +263,7 @@ public class TelephonyRcsService {
                 }
             }
         }
+        notifyFeatureControllersChanged();
     }
 
     /**
@@ -298,6 +320,7 @@ public class TelephonyRcsService {
                 }
             }
         }
+        notifyFeatureControllersChanged();
     }
 
     private RcsFeatureController constructFeatureController(int slotId) {
@@ -350,6 +373,12 @@ public class TelephonyRcsService {
         mRcsUceEnabled = isEnabled;
     }
 
+    private void notifyFeatureControllersChanged() {
+        for (FeatureControllersChangedListener listener : mFeatureControllersChangedListeners) {
+            listener.onFeatureControllersChanged();
+        }
+    }
+
     private boolean doesSubscriptionSupportPresence(int subId) {
         if (!SubscriptionManager.isValidSubscriptionId(subId)) return false;
         boolean supportsUce = getConfig(subId,
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.libraries.rcs.simpleclient.filetransfer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.libraries.rcs.simpleclient.filetransfer.requestexecutor.HttpRequestExecutor;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class FileUploadControllerTest {
+    private static final int FILE_SIZE = 100 * 1024;
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final ListeningExecutorService executor =
+            MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+    // Sends the requests as they are, the mock server does not check credentials.
+    private final HttpRequestExecutor requestExecutor =
+            (httpClient, context, request, authScheme) ->
+                    executor.submit(() -> httpClient.execute(request, context));
+
+    private MockContentServer server;
+    private byte[] content;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockContentServer();
+        content = new byte[FILE_SIZE];
+        new Random(42).nextBytes(content);
+        file = temporaryFolder.newFile("upload.bin");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void uploadFile_noInterruption_sendsSinglePost() throws Exception {
+        FileUploadController controller = createController(/* maxPendingUploads= */ 4);
+        AtomicLong progress = new AtomicLong();
+
+        String response = controller.uploadFile("tid", file,
+                (tid, sent, total) -> progress.set(sent)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertThat(response).isEqualTo(MockContentServer.FILE_INFO_XML);
+        // The empty POST for the challenge plus the upload itself.
+        assertThat(server.getRequestCount()).isEqualTo(2);
+        assertThat(server.getMultipartPostCount()).isEqualTo(1);
+        assertThat(server.getChunkCount()).isEqualTo(0);
+        assertThat(progress.get()).isEqualTo(FILE_SIZE);
+    }
+
+    @Test
+    public void uploadFile_connectionDrops_resumesWithChunks() throws Exception {
+        FileUploadController controller = createController(/* maxPendingUploads= */ 4);
+        AtomicLong progress = new AtomicLong();
+        server.dropMultipartPosts(1);
+        server.dropChunks(1);
+
+        String response = controller.uploadFile("tid", file,
+                (tid, sent, total) -> progress.set(sent)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertThat(response).isEqualTo(MockContentServer.FILE_INFO_XML);
+        assertThat(server.getMultipartPostCount()).isEqualTo(1);
+        // The first chunk is dropped halfway, the rest of the file follows from that offset.
+        assertThat(server.getChunkCount()).isEqualTo(1 + (FILE_SIZE - CHUNK_SIZE / 2
+                + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        assertThat(server.getChunkedContent()).isEqualTo(content);
+        assertThat(progress.get()).isEqualTo(FILE_SIZE);
+    }
+
+    @Test
+    public void uploadFile_queueFull_rejectsUpload() throws Exception {
+        FileUploadController controller = createController(/* maxPendingUploads= */ 1);
+        server.setResponseDelayMillis(500);
+
+        // Two uploads start right away, the third one waits in the queue.
+        ListenableFuture<String> first = controller.uploadFile("tid1", file);
+        ListenableFuture<String> second = controller.uploadFile("tid2", file);
+        ListenableFuture<String> queued = controller.uploadFile("tid3", file);
+        ListenableFuture<String> rejected = controller.uploadFile("tid4", file);
+
+        ExecutionException e = assertThrows(ExecutionException.class, rejected::get);
+        assertThat(e).hasCauseThat().isInstanceOf(RejectedExecutionException.class);
+        assertThat(first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                .isEqualTo(MockContentServer.FILE_INFO_XML);
+        assertThat(second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                .isEqualTo(MockContentServer.FILE_INFO_XML);
+        assertThat(queued.get(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                .isEqualTo(MockContentServer.FILE_INFO_XML);
+    }
+
+    @Test
+    public void parseResumeInfo() {
+        String resumeInfo = "<file-resume-info><file-range start=\"0\" end=\"2047\"/>"
+                + "<data url=\"https://example.com/data\"/></file-resume-info>";
+
+        assertThat(FileUploadController.parseResumeOffset(resumeInfo)).isEqualTo(2048);
+        assertThat(FileUploadController.parseResumeDataUrl(resumeInfo))
+                .isEqualTo("https://example.com/data");
+        assertThat(FileUploadController.parseResumeOffset("<file-resume-info/>")).isEqualTo(0);
+    }
+
+    @Test
+    public void concurrencyLimiter_adaptsToThroughput() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 2, 4);
+        long now = 0;
+
+        // First window: 2 uploads of 1000 bytes in 1s, probe upwards.
+        assertThat(limiter.tryAcquire(now)).isTrue();
+        assertThat(limiter.tryAcquire(now)).isTrue();
+        assertThat(limiter.tryAcquire(now)).isFalse();
+        now += TimeUnit.SECONDS.toNanos(1);
+        limiter.release(1000, true, now);
+        limiter.release(1000, true, now);
+        assertThat(limiter.getLimit()).isEqualTo(3);
+
+        // Second window: 3 uploads in 1s is faster, grow again.
+        for (int i = 0; i < 3; i++) {
+            assertThat(limiter.tryAcquire(now)).isTrue();
+        }
+        now += TimeUnit.SECONDS.toNanos(1);
+        for (int i = 0; i < 3; i++) {
+            limiter.release(1000, true, now);
+        }
+        assertThat(limiter.getLimit()).isEqualTo(4);
+
+        // A failure halves the limit.
+        assertThat(limiter.tryAcquire(now)).isTrue();
+        limiter.release(0, false, now);
+        assertThat(limiter.getLimit()).isEqualTo(2);
+    }
+
+    private FileUploadController createController(int maxPendingUploads) {
+        return new FileUploadController(requestExecutor, server.getUri(), "carrier",
+                CHUNK_SIZE, maxPendingUploads);
+    }
+}
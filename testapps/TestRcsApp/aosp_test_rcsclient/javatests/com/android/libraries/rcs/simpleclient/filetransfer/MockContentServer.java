@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.libraries.rcs.simpleclient.filetransfer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP content server on the loopback interface which speaks just enough of the RCC.07
+ * file upload protocol for {@link FileUploadController}. It can drop connections in the middle
+ * of a request body to simulate an unreliable network.
+ */
+final class MockContentServer implements Closeable {
+
+    static final String FILE_INFO_XML = "<file><file-info type=\"file\">"
+            + "<data url=\"https://example.com/file\"/></file-info></file>";
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ByteArrayOutputStream chunkedContent = new ByteArrayOutputStream();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger multipartPostCount = new AtomicInteger();
+    private final AtomicInteger chunkCount = new AtomicInteger();
+    private final AtomicInteger multipartPostsToDrop = new AtomicInteger();
+    private final AtomicInteger chunksToDrop = new AtomicInteger();
+    private volatile long responseDelayMillis;
+
+    MockContentServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor.execute(this::acceptLoop);
+    }
+
+    String getUri() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/upload";
+    }
+
+    /** Drops the next {@code count} multipart POSTs halfway through their body. */
+    void dropMultipartPosts(int count) {
+        multipartPostsToDrop.set(count);
+    }
+
+    /** Drops the next {@code count} chunk PUTs after keeping half of their body. */
+    void dropChunks(int count) {
+        chunksToDrop.set(count);
+    }
+
+    void setResponseDelayMillis(long delayMillis) {
+        responseDelayMillis = delayMillis;
+    }
+
+    int getRequestCount() {
+        return requestCount.get();
+    }
+
+    int getMultipartPostCount() {
+        return multipartPostCount.get();
+    }
+
+    int getChunkCount() {
+        return chunkCount.get();
+    }
+
+    /** Returns the file content received through chunk PUTs. */
+    byte[] getChunkedContent() {
+        synchronized (chunkedContent) {
+            return chunkedContent.toByteArray();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                executor.execute(() -> handleConnection(socket));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            String requestLine = readLine(in);
+            if (requestLine == null || requestLine.isEmpty()) {
+                return;
+            }
+            requestCount.incrementAndGet();
+            Map<String, String> headers = new HashMap<>();
+            for (String line = readLine(in); line != null && !line.isEmpty();
+                    line = readLine(in)) {
+                int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+            String[] parts = requestLine.split(" ");
+            String method = parts[0];
+            String target = parts[1];
+            int contentLength = Integer.parseInt(headers.getOrDefault("content-length", "0"));
+
+            if (responseDelayMillis > 0) {
+                Thread.sleep(responseDelayMillis);
+            }
+
+            if (method.equals("PUT")) {
+                handleChunk(in, s.getOutputStream(), headers.get("content-range"),
+                        contentLength);
+            } else if (target.contains("get_upload_info")) {
+                readBody(in, contentLength);
+                long end;
+                synchronized (chunkedContent) {
+                    end = chunkedContent.size() - 1;
+                }
+                respond(s.getOutputStream(), 200, "<file-resume-info>"
+                        + "<file-range start=\"0\" end=\"" + end + "\"/>"
+                        + "<data url=\"http://127.0.0.1:" + serverSocket.getLocalPort()
+                        + "/data\"/></file-resume-info>", null);
+            } else if (target.contains("get_download_info")) {
+                readBody(in, contentLength);
+                respond(s.getOutputStream(), 200, FILE_INFO_XML, null);
+            } else if (contentLength == 0) {
+                respond(s.getOutputStream(), 401, "",
+                        "WWW-Authenticate: Digest realm=\"test\", nonce=\"abc\", qop=\"auth\"");
+            } else {
+                multipartPostCount.incrementAndGet();
+                if (multipartPostsToDrop.getAndDecrement() > 0) {
+                    readBody(in, contentLength / 2);
+                    return;
+                }
+                readBody(in, contentLength);
+                respond(s.getOutputStream(), 200, FILE_INFO_XML, null);
+            }
+        } catch (IOException | InterruptedException e) {
+            // The client went away, nothing to answer.
+        }
+    }
+
+    private void handleChunk(InputStream in, OutputStream out, String contentRange,
+            int contentLength) throws IOException {
+        chunkCount.incrementAndGet();
+        // "bytes <start>-<end>/<total>"
+        long start = Long.parseLong(
+                contentRange.substring("bytes ".length(), contentRange.indexOf('-')));
+        boolean drop = chunksToDrop.getAndDecrement() > 0;
+        byte[] body = readBody(in, drop ? contentLength / 2 : contentLength);
+        synchronized (chunkedContent) {
+            if (start != chunkedContent.size()) {
+                respond(out, 416, "", null);
+                return;
+            }
+            chunkedContent.write(body, 0, body.length);
+        }
+        if (!drop) {
+            respond(out, 200, "", null);
+        }
+    }
+
+    private static byte[] readBody(InputStream in, int length) throws IOException {
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(body, read, length - read);
+            if (n < 0) {
+                throw new IOException("Unexpected end of body");
+            }
+            read += n;
+        }
+        return body;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c = in.read(); c >= 0; c = in.read()) {
+            if (c == '\n') {
+                return line.toString().trim();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static void respond(OutputStream out, int status, String body, String extraHeader)
+            throws IOException {
+        byte[] content = body.getBytes(UTF_8);
+        StringBuilder response = new StringBuilder()
+                .append("HTTP/1.1 ").append(status).append(" Status\r\n")
+                .append("Content-Length: ").append(content.length).append("\r\n")
+                .append("Content-Type: text/xml\r\n")
+                .append("Connection: close\r\n");
+        if (extraHeader != null) {
+            response.append(extraHeader).append("\r\n");
+        }
+        response.append("\r\n");
+        out.write(response.toString().getBytes(UTF_8));
+        out.write(content);
+        out.flush();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.libraries.rcs.simpleclient.filetransfer;
+
+import android.util.Log;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * Limits the number of concurrent uploads and adapts the limit to the measured throughput.
+ *
+ * <p>Completed uploads are grouped into windows of {@code limit} uploads. When the aggregate
+ * throughput of a window improves on the previous one the limit grows by one, when it drops the
+ * limit shrinks by one, and a failed upload halves it.
+ */
+final class AdaptiveConcurrencyLimiter {
+
+    private static final String TAG = "AdaptiveConcurrencyLimiter";
+    // Throughput has to move by more than this ratio before the limit is changed.
+    private static final double THROUGHPUT_TOLERANCE = 0.1;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private int limit;
+    @GuardedBy("lock")
+    private int inFlight;
+    @GuardedBy("lock")
+    private int windowCompleted;
+    @GuardedBy("lock")
+    private long windowBytes;
+    @GuardedBy("lock")
+    private long windowStartNanos = -1;
+    @GuardedBy("lock")
+    private double lastWindowThroughput;
+
+    AdaptiveConcurrencyLimiter(int minLimit, int initialLimit, int maxLimit) {
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("Invalid limits " + minLimit + "/" + initialLimit
+                    + "/" + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.limit = initialLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * Reserves a slot for a new upload.
+     *
+     * @return {@code true} if the upload can start now, {@code false} if the limit is reached.
+     */
+    boolean tryAcquire(long nowNanos) {
+        synchronized (lock) {
+            if (inFlight >= limit) {
+                return false;
+            }
+            if (inFlight == 0 && windowCompleted == 0) {
+                windowStartNanos = nowNanos;
+            }
+            inFlight++;
+            return true;
+        }
+    }
+
+    /**
+     * Releases the slot of a finished upload and feeds its result into the limit calculation.
+     *
+     * @param bytes   the number of bytes the upload transferred.
+     * @param success whether the upload completed successfully.
+     */
+    void release(long bytes, boolean success, long nowNanos) {
+        synchronized (lock) {
+            inFlight--;
+            if (!success) {
+                setLimitLocked(Math.max(minLimit, limit / 2));
+                resetWindowLocked(nowNanos);
+                return;
+            }
+            windowBytes += bytes;
+            windowCompleted++;
+            if (windowCompleted < limit) {
+                return;
+            }
+            long elapsedNanos = Math.max(1, nowNanos - windowStartNanos);
+            double throughput = windowBytes * 1e9 / elapsedNanos;
+            if (lastWindowThroughput > 0) {
+                if (throughput > lastWindowThroughput * (1 + THROUGHPUT_TOLERANCE)) {
+                    setLimitLocked(Math.min(maxLimit, limit + 1));
+                } else if (throughput < lastWindowThroughput * (1 - THROUGHPUT_TOLERANCE)) {
+                    setLimitLocked(Math.max(minLimit, limit - 1));
+                }
+            } else if (limit < maxLimit) {
+                // Nothing to compare with yet, probe upwards.
+                setLimitLocked(limit + 1);
+            }
+            lastWindowThroughput = throughput;
+            resetWindowLocked(nowNanos);
+        }
+    }
+
+    @VisibleForTesting
+    int getLimit() {
+        synchronized (lock) {
+            return limit;
+        }
+    }
+
+    @GuardedBy("lock")
+    private void setLimitLocked(int newLimit) {
+        if (newLimit != limit) {
+            Log.i(TAG, "Upload concurrency " + limit + " -> " + newLimit);
+            limit = newLimit;
+        }
+    }
+
+    @GuardedBy("lock")
+    private void resetWindowLocked(long nowNanos) {
+        windowCompleted = 0;
+        windowBytes = 0;
+        windowStartNanos = nowNanos;
+    }
+}
@@ -44,4 +44,16 @@ public interface FileTransferController {
     ListenableFuture<String> uploadFile(
             String transactionId, File file)
             throws IOException;
+
+    /**
+     * Uploads a file to the content server and reports the progress of the transfer.
+     *
+     * @param transactionId the transaction id of the file upload.
+     * @param file          the file to be uploaded.
+     * @param listener      receives the number of bytes sent so far.
+     * @return the XML response for the file upload, see {@link #uploadFile(String, File)}.
+     */
+    ListenableFuture<String> uploadFile(
+            String transactionId, File file, UploadProgressListener listener)
+            throws IOException;
 }
@@ -46,4 +46,11 @@ public class FileTransferControllerImpl implements FileTransferController {
             throws IOException {
         return fileUploadController.uploadFile(transactionId, file);
     }
+
+    @Override
+    public ListenableFuture<String> uploadFile(
+            String transactionId, File file, UploadProgressListener listener)
+            throws IOException {
+        return fileUploadController.uploadFile(transactionId, file, listener);
+    }
 }
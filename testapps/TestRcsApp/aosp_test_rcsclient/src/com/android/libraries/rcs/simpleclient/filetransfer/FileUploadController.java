@@ -20,6 +20,10 @@ import android.net.Uri;
 import android.os.Build;
 import android.util.Log;
 
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
 import com.android.internal.http.multipart.FilePart;
 import com.android.internal.http.multipart.MultipartEntity;
 import com.android.internal.http.multipart.Part;
@@ -32,6 +36,7 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -41,28 +46,46 @@ import org.apache.http.auth.AuthScheme;
 import org.apache.http.auth.MalformedChallengeException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.params.AuthPolicy;
 import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.auth.DigestScheme;
 import org.apache.http.impl.auth.RFC2617Scheme;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.Queue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-/** File upload functionality. */
+/**
+ * File upload functionality.
+ *
+ * <p>Uploads are queued in a bounded queue and started as long as the {@link
+ * AdaptiveConcurrencyLimiter} allows it. A file is first sent in a single multipart POST. If the
+ * connection drops, the upload is resumed as described in RCC.07 A.2.4: the server is asked which
+ * byte range it already holds and the remaining bytes are sent in chunks.
+ */
 final class FileUploadController {
 
     private static final String TAG = "FileUploadController";
@@ -74,22 +97,127 @@ final class FileUploadController {
     private static final String CONTENT_TYPE = "text/plain";
     private static final String THREE_GPP_GBA = "3gpp-gba";
     private static final int HTTPS_PORT = 443;
+    private static final String PARAM_TID = "tid";
+    private static final String PARAM_GET_UPLOAD_INFO = "get_upload_info";
+    private static final String PARAM_GET_DOWNLOAD_INFO = "get_download_info";
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+    private static final Pattern FILE_RANGE_END_PATTERN =
+            Pattern.compile("<file-range[^>]*\\bend=\"(-?\\d+)\"");
+    private static final Pattern DATA_URL_PATTERN =
+            Pattern.compile("<data[^>]*\\burl=\"([^\"]+)\"");
+
+    private static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    private static final int DEFAULT_MAX_PENDING_UPLOADS = 32;
+    private static final int MAX_RESUME_ATTEMPTS = 3;
+    private static final int MIN_CONCURRENT_UPLOADS = 1;
+    private static final int INITIAL_CONCURRENT_UPLOADS = 2;
+    private static final int MAX_CONCURRENT_UPLOADS = 8;
 
     private final HttpRequestExecutor requestExecutor;
     private final String contentServerUri;
     private final ListeningExecutorService executor =
-            MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+            MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(MAX_CONCURRENT_UPLOADS));
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter =
+            new AdaptiveConcurrencyLimiter(MIN_CONCURRENT_UPLOADS, INITIAL_CONCURRENT_UPLOADS,
+                    MAX_CONCURRENT_UPLOADS);
+    private final int chunkSize;
+    private final int maxPendingUploads;
+    private final Object lock = new Object();
+    @GuardedBy("lock")
+    private final Queue<PendingUpload> pendingUploads = new ArrayDeque<>();
     private String mCarrierName;
 
     FileUploadController(HttpRequestExecutor requestExecutor, String contentServerUri,
             String carrierName) {
+        this(requestExecutor, contentServerUri, carrierName, DEFAULT_CHUNK_SIZE,
+                DEFAULT_MAX_PENDING_UPLOADS);
+    }
+
+    @VisibleForTesting
+    FileUploadController(HttpRequestExecutor requestExecutor, String contentServerUri,
+            String carrierName, int chunkSize, int maxPendingUploads) {
         this.requestExecutor = requestExecutor;
         this.contentServerUri = contentServerUri;
         this.mCarrierName = carrierName;
+        this.chunkSize = chunkSize;
+        this.maxPendingUploads = maxPendingUploads;
     }
 
     public ListenableFuture<String> uploadFile(
             String transactionId, File file) {
+        return uploadFile(transactionId, file, /* listener= */ null);
+    }
+
+    /**
+     * Queues a file upload.
+     *
+     * @return a future with the XML response of the content server. It fails with a {@link
+     * RejectedExecutionException} if too many uploads are already waiting.
+     */
+    public ListenableFuture<String> uploadFile(
+            String transactionId, File file, @Nullable UploadProgressListener listener) {
+        PendingUpload upload = new PendingUpload(transactionId, file, listener);
+        synchronized (lock) {
+            if (pendingUploads.size() >= maxPendingUploads) {
+                Log.w(TAG, "Upload queue full, rejecting " + transactionId);
+                return Futures.immediateFailedFuture(new RejectedExecutionException(
+                        "Too many pending uploads: " + pendingUploads.size()));
+            }
+            pendingUploads.add(upload);
+        }
+        dispatchPendingUploads();
+        return upload.result;
+    }
+
+    /** Starts queued uploads until the queue is empty or the concurrency limit is reached. */
+    private void dispatchPendingUploads() {
+        while (true) {
+            PendingUpload upload;
+            synchronized (lock) {
+                // Drop uploads the caller cancelled while they were waiting.
+                while (!pendingUploads.isEmpty() && pendingUploads.peek().result.isDone()) {
+                    pendingUploads.poll();
+                }
+                if (pendingUploads.isEmpty()
+                        || !concurrencyLimiter.tryAcquire(System.nanoTime())) {
+                    return;
+                }
+                upload = pendingUploads.poll();
+            }
+            startUpload(upload);
+        }
+    }
+
+    private void startUpload(PendingUpload upload) {
+        ListenableFuture<String> uploadFuture;
+        try {
+            uploadFuture = executeUpload(upload);
+        } catch (RuntimeException e) {
+            uploadFuture = Futures.immediateFailedFuture(e);
+        }
+        Futures.addCallback(
+                uploadFuture,
+                new FutureCallback<String>() {
+                    @Override
+                    public void onSuccess(String response) {
+                        concurrencyLimiter.release(upload.file.length(), /* success= */ true,
+                                System.nanoTime());
+                        upload.result.set(response);
+                        dispatchPendingUploads();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        concurrencyLimiter.release(upload.bytesSent, /* success= */ false,
+                                System.nanoTime());
+                        upload.result.setException(t);
+                        dispatchPendingUploads();
+                    }
+                },
+                executor);
+    }
+
+    private ListenableFuture<String> executeUpload(PendingUpload upload) {
         DefaultHttpClient httpClient = getSecureHttpClient();
 
         Log.i(TAG, "sendEmptyPost");
@@ -122,12 +250,17 @@ final class FileUploadController {
                         },
                         executor);
 
-        // Executing the post with credentials.
+        // Executing the post with credentials, resuming it if the connection drops.
         return Futures.transformAsync(
                 prepareAuthFuture,
                 authScheme ->
-                        executeAuthenticatedPost(
-                                httpClient, httpContext, authScheme, transactionId, file),
+                        Futures.catchingAsync(
+                                executeAuthenticatedPost(
+                                        httpClient, httpContext, authScheme, upload),
+                                IOException.class,
+                                e -> resumeUpload(httpClient, httpContext, authScheme, upload, e,
+                                        /* attempt= */ 1),
+                                executor),
                 executor);
     }
 
@@ -166,6 +299,10 @@ final class FileUploadController {
         ClientConnectionManager manager = httpClient.getConnectionManager();
         SchemeRegistry registry = manager.getSchemeRegistry();
         registry.register(scheme);
+        // Interrupted uploads are resumed from the last acknowledged byte instead of being
+        // resent from the start.
+        httpClient.setHttpRequestRetryHandler(
+                new DefaultHttpRequestRetryHandler(/* retryCount= */ 0, false));
 
         return httpClient;
     }
@@ -181,13 +318,12 @@ final class FileUploadController {
             DefaultHttpClient httpClient,
             HttpContext context,
             AuthScheme authScheme,
-            String transactionId,
-            File file)
+            PendingUpload upload)
             throws IOException {
 
         Part[] parts = {
-                new StringPart(TRANSFER_ID_PART_NAME, transactionId),
-                new FilePart(FILE_PART_NAME, file)
+                new StringPart(TRANSFER_ID_PART_NAME, upload.transactionId),
+                new ProgressFilePart(FILE_PART_NAME, upload)
         };
         MultipartEntity entity = new MultipartEntity(parts);
 
@@ -232,6 +368,147 @@ final class FileUploadController {
                 executor);
     }
 
+    /**
+     * Asks the content server which part of the file it already received and sends the rest.
+     * Every interruption of the resumed transfer triggers another resume, up to {@link
+     * #MAX_RESUME_ATTEMPTS} times.
+     */
+    private ListenableFuture<String> resumeUpload(
+            DefaultHttpClient httpClient,
+            HttpContext context,
+            AuthScheme authScheme,
+            PendingUpload upload,
+            IOException cause,
+            int attempt)
+            throws IOException {
+        if (attempt > MAX_RESUME_ATTEMPTS) {
+            Log.e(TAG, "Giving up on " + upload.transactionId + " after " + MAX_RESUME_ATTEMPTS
+                    + " resume attempts");
+            return Futures.immediateFailedFuture(cause);
+        }
+        Log.w(TAG, "Upload of " + upload.transactionId + " interrupted, resume attempt "
+                + attempt, cause);
+
+        HttpPost uploadInfoRequest = new HttpPost(
+                getTransactionUri(upload.transactionId, PARAM_GET_UPLOAD_INFO));
+        uploadInfoRequest.setHeader("User-Agent", getUserAgent());
+        ListenableFuture<String> resumedFuture =
+                Futures.transformAsync(
+                        requestExecutor.executeAuthenticatedRequest(
+                                httpClient, context, uploadInfoRequest, authScheme),
+                        response -> {
+                            String resumeInfo = consumeResponse(response);
+                            long offset = parseResumeOffset(resumeInfo);
+                            String dataUrl = parseResumeDataUrl(resumeInfo);
+                            if (dataUrl == null) {
+                                dataUrl = getTransactionUri(upload.transactionId, null);
+                            }
+                            Log.i(TAG, "Resuming " + upload.transactionId + " at " + offset);
+                            upload.setBytesSent(offset);
+                            return sendChunks(httpClient, context, authScheme, upload, dataUrl,
+                                    offset);
+                        },
+                        executor);
+
+        return Futures.catchingAsync(
+                resumedFuture,
+                IOException.class,
+                e -> resumeUpload(httpClient, context, authScheme, upload, e, attempt + 1),
+                executor);
+    }
+
+    /** Sends the file from {@code offset} on in chunks of {@link #chunkSize} bytes. */
+    private ListenableFuture<String> sendChunks(
+            DefaultHttpClient httpClient,
+            HttpContext context,
+            AuthScheme authScheme,
+            PendingUpload upload,
+            String dataUrl,
+            long offset)
+            throws IOException {
+        long totalBytes = upload.file.length();
+        if (offset >= totalBytes) {
+            return fetchDownloadInfo(httpClient, context, authScheme, upload);
+        }
+
+        int length = (int) Math.min(chunkSize, totalBytes - offset);
+        HttpPut chunkRequest = new HttpPut(dataUrl);
+        chunkRequest.setHeader("User-Agent", getUserAgent());
+        chunkRequest.setHeader(HEADER_CONTENT_RANGE,
+                "bytes " + offset + "-" + (offset + length - 1) + "/" + totalBytes);
+        chunkRequest.setEntity(new ByteArrayEntity(readChunk(upload.file, offset, length)));
+
+        return Futures.transformAsync(
+                requestExecutor.executeAuthenticatedRequest(
+                        httpClient, context, chunkRequest, authScheme),
+                response -> {
+                    int statusCode = response.getStatusLine().getStatusCode();
+                    if (response.getEntity() != null) {
+                        response.getEntity().consumeContent();
+                    }
+                    if (statusCode / 100 != 2) {
+                        // Treated like a dropped connection so the upload resumes.
+                        throw new IOException("Chunk at " + offset + " rejected: " + statusCode);
+                    }
+                    upload.setBytesSent(offset + length);
+                    return sendChunks(httpClient, context, authScheme, upload, dataUrl,
+                            offset + length);
+                },
+                executor);
+    }
+
+    private ListenableFuture<String> fetchDownloadInfo(
+            DefaultHttpClient httpClient,
+            HttpContext context,
+            AuthScheme authScheme,
+            PendingUpload upload)
+            throws IOException {
+        HttpPost downloadInfoRequest = new HttpPost(
+                getTransactionUri(upload.transactionId, PARAM_GET_DOWNLOAD_INFO));
+        downloadInfoRequest.setHeader("User-Agent", getUserAgent());
+        return Futures.transformAsync(
+                requestExecutor.executeAuthenticatedRequest(
+                        httpClient, context, downloadInfoRequest, authScheme),
+                response -> Futures.immediateFuture(consumeResponse(response)),
+                executor);
+    }
+
+    private String getTransactionUri(String transactionId, @Nullable String flag) {
+        StringBuilder uri = new StringBuilder(contentServerUri)
+                .append(contentServerUri.contains("?") ? '&' : '?')
+                .append(PARAM_TID).append('=').append(Uri.encode(transactionId));
+        if (flag != null) {
+            uri.append('&').append(flag);
+        }
+        return uri.toString();
+    }
+
+    private static byte[] readChunk(File file, long offset, int length) throws IOException {
+        byte[] chunk = new byte[length];
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            input.seek(offset);
+            input.readFully(chunk);
+        }
+        return chunk;
+    }
+
+    /**
+     * Returns the first byte the server still needs, based on the last byte of the
+     * {@code file-range} element of an upload info response.
+     */
+    @VisibleForTesting
+    static long parseResumeOffset(String resumeInfo) {
+        Matcher matcher = FILE_RANGE_END_PATTERN.matcher(resumeInfo);
+        return matcher.find() ? Math.max(0, Long.parseLong(matcher.group(1)) + 1) : 0;
+    }
+
+    @VisibleForTesting
+    @Nullable
+    static String parseResumeDataUrl(String resumeInfo) {
+        Matcher matcher = DATA_URL_PATTERN.matcher(resumeInfo);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
     public String consumeResponse(HttpResponse response) throws IOException {
         int statusCode = response.getStatusLine().getStatusCode();
         if (statusCode != HttpURLConnection.HTTP_OK) {
@@ -271,4 +548,58 @@ final class FileUploadController {
         Log.i(TAG, "UserAgent:" + userAgent);
         return userAgent;
     }
+
+    /** An upload waiting in the queue or in progress. */
+    private static final class PendingUpload {
+        final String transactionId;
+        final File file;
+        @Nullable
+        final UploadProgressListener listener;
+        final SettableFuture<String> result = SettableFuture.create();
+        volatile long bytesSent;
+
+        PendingUpload(String transactionId, File file,
+                @Nullable UploadProgressListener listener) {
+            this.transactionId = transactionId;
+            this.file = file;
+            this.listener = listener;
+        }
+
+        void setBytesSent(long bytes) {
+            bytesSent = bytes;
+            if (listener != null) {
+                listener.onProgress(transactionId, bytes, file.length());
+            }
+        }
+    }
+
+    /** A {@link FilePart} which reports the bytes written for the file content. */
+    private static final class ProgressFilePart extends FilePart {
+        private final PendingUpload upload;
+
+        ProgressFilePart(String name, PendingUpload upload) throws IOException {
+            super(name, upload.file);
+            this.upload = upload;
+        }
+
+        @Override
+        protected void sendData(OutputStream out) throws IOException {
+            super.sendData(new FilterOutputStream(out) {
+                private long written;
+
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    upload.setBytesSent(++written);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    written += len;
+                    upload.setBytesSent(written);
+                }
+            });
+        }
+    }
 }
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.libraries.rcs.simpleclient.filetransfer;
+
+/** Receives progress updates for a file upload. */
+public interface UploadProgressListener {
+
+    /**
+     * Called whenever more bytes of the file have been written to the content server.
+     *
+     * @param transactionId the transaction id of the file upload.
+     * @param bytesSent     the number of file bytes the server has accepted so far.
+     * @param totalBytes    the size of the file being uploaded.
+     */
+    void onProgress(String transactionId, long bytesSent, long totalBytes);
+}
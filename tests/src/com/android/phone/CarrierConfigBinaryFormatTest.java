@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.Objects;
+
+/**
+ * Unit Test for CarrierConfigBinaryFormat.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CarrierConfigBinaryFormatTest {
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getTargetContext().getFilesDir(),
+                "carrierconfig-binary-format-test.bin");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testEncodeDecode_defaultConfig() throws Exception {
+        // The code default config is the size of a real carrier config.
+        PersistableBundle config = CarrierConfigManager.getDefaultConfig();
+
+        PersistableBundle decoded = CarrierConfigBinaryFormat.decode(
+                CarrierConfigBinaryFormat.encode(config));
+
+        assertThat(decoded).isNotNull();
+        assertBundlesEqual(decoded, config);
+    }
+
+    @Test
+    public void testEncodeDecode_allValueTypes() throws Exception {
+        PersistableBundle nested = new PersistableBundle();
+        nested.putString("nested_string", "value");
+        PersistableBundle config = new PersistableBundle();
+        config.putInt("int", 1);
+        config.putLong("long", 2L);
+        config.putDouble("double", 3.5);
+        config.putBoolean("boolean", true);
+        config.putString("string", "été");
+        config.putString("null_string", null);
+        config.putIntArray("int_array", new int[] {1, 2});
+        config.putLongArray("long_array", new long[] {3L});
+        config.putDoubleArray("double_array", new double[] {4.5});
+        config.putBooleanArray("boolean_array", new boolean[] {true, false});
+        config.putStringArray("string_array", new String[] {"a", null});
+        config.putPersistableBundle("bundle", nested);
+
+        PersistableBundle decoded = CarrierConfigBinaryFormat.decode(
+                CarrierConfigBinaryFormat.encode(config));
+
+        assertThat(decoded).isNotNull();
+        assertBundlesEqual(decoded, config);
+        assertThat(decoded.containsKey("null_string")).isTrue();
+    }
+
+    @Test
+    public void testDecode_corruptedPayload_returnsNull() throws Exception {
+        byte[] data = CarrierConfigBinaryFormat.encode(CarrierConfigManager.getDefaultConfig());
+        data[data.length - 1] ^= 0x1;
+
+        assertThat(CarrierConfigBinaryFormat.decode(data)).isNull();
+    }
+
+    @Test
+    public void testDecode_otherFormatVersion_returnsNull() throws Exception {
+        byte[] data = CarrierConfigBinaryFormat.encode(CarrierConfigManager.getDefaultConfig());
+        // The format version follows the 4 byte magic number.
+        data[7]++;
+
+        assertThat(CarrierConfigBinaryFormat.decode(data)).isNull();
+    }
+
+    @Test
+    public void testWriteReadFile() throws Exception {
+        PersistableBundle config = CarrierConfigManager.getDefaultConfig();
+
+        CarrierConfigBinaryFormat.writeToFile(mFile, config);
+
+        assertBundlesEqual(CarrierConfigBinaryFormat.readFromFile(mFile), config);
+    }
+
+    @Test
+    public void testReadFile_missingFile() {
+        assertThrows(FileNotFoundException.class,
+                () -> CarrierConfigBinaryFormat.readFromFile(mFile));
+    }
+
+    private static void assertBundlesEqual(PersistableBundle actual, PersistableBundle expected) {
+        assertThat(actual.keySet()).isEqualTo(expected.keySet());
+        for (String key : expected.keySet()) {
+            Object expectedValue = expected.get(key);
+            Object actualValue = actual.get(key);
+            if (expectedValue instanceof PersistableBundle) {
+                assertBundlesEqual((PersistableBundle) actualValue,
+                        (PersistableBundle) expectedValue);
+            } else {
+                assertThat(Objects.deepEquals(actualValue, expectedValue)).isTrue();
+            }
+        }
+    }
+}
@@ -382,6 +382,111 @@ public class CarrierConfigLoaderTest extends TelephonyTestBase {
                 PLATFORM_CARRIER_CONFIG_PACKAGE)).isEqualTo(PersistableBundle.EMPTY);
     }
 
+    /**
+     * Verifies that #getConfigForSubId serves the merged config from the cache until an override
+     * changes it, and that callers can't modify the cached config.
+     */
+    @Test
+    public void testGetConfigForSubId_mergedConfigCachedUntilOverride() throws Exception {
+        // Bypass case if default subId is not supported by device to reduce flakiness
+        if (!SubscriptionManager.isValidPhoneId(SubscriptionManager.getPhoneId(DEFAULT_SUB_ID))) {
+            return;
+        }
+        mContext.grantPermission(android.Manifest.permission.READ_PRIVILEGED_PHONE_STATE);
+        mContext.grantPermission(android.Manifest.permission.DUMP);
+        mFakePermissionEnforcer.grant(android.Manifest.permission.MODIFY_PHONE_STATE);
+        final String callerKey = "caller_modified_key_string";
+
+        PersistableBundle config = mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE);
+        config.putString(callerKey, "modified");
+        config = mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE);
+        assertThat(config.containsKey(callerKey)).isFalse();
+
+        mCarrierConfigLoader.overrideConfig(DEFAULT_SUB_ID, getTestConfig(),
+                false /*persistent*/);
+        mTestableLooper.processAllMessages();
+        config = mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE);
+
+        assertThat(config.getInt(CARRIER_CONFIG_EXAMPLE_KEY)).isEqualTo(
+                CARRIER_CONFIG_EXAMPLE_VALUE);
+        StringWriter stringWriter = new StringWriter();
+        mCarrierConfigLoader.dump(new FileDescriptor(), new PrintWriter(stringWriter),
+                new String[0]);
+        assertThat(stringWriter.toString()).contains("Merged config cache: hits=1, misses=2");
+    }
+
+    /**
+     * Verifies that #getConfigSubsetForSubIdWithFeature resolves single keys and small subsets to
+     * the same values as the fully merged config.
+     */
+    @Test
+    public void testGetConfigSubsetForSubIdWithFeature_matchesMergedConfig() throws Exception {
+        // Bypass case if default subId is not supported by device to reduce flakiness
+        if (!SubscriptionManager.isValidPhoneId(SubscriptionManager.getPhoneId(DEFAULT_SUB_ID))) {
+            return;
+        }
+        mContext.grantPermission(android.Manifest.permission.READ_PRIVILEGED_PHONE_STATE);
+        mFakePermissionEnforcer.grant(android.Manifest.permission.MODIFY_PHONE_STATE);
+        mCarrierConfigLoader.overrideConfig(DEFAULT_SUB_ID, getTestConfig(),
+                false /*persistent*/);
+        mTestableLooper.processAllMessages();
+        PersistableBundle allConfigs = mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE);
+
+        String[][] keySets = new String[][] {
+                {CARRIER_CONFIG_EXAMPLE_KEY},
+                {CarrierConfigManager.KEY_CARRIER_VOLTE_AVAILABLE_BOOL,
+                        CarrierConfigManager.KEY_CARRIER_NAME_STRING,
+                        CarrierConfigManager.KEY_CARRIER_USSD_METHOD_INT,
+                        CarrierConfigManager.KEY_CARRIER_NR_AVAILABILITIES_INT_ARRAY}
+        };
+        for (String[] keys : keySets) {
+            PersistableBundle subset = mCarrierConfigLoader.getConfigSubsetForSubIdWithFeature(
+                    DEFAULT_SUB_ID, PLATFORM_CARRIER_CONFIG_PACKAGE, null /*callingFeatureId*/,
+                    keys);
+            for (String key : keys) {
+                assertThat(subset.get(key)).isEqualTo(allConfigs.get(key));
+            }
+            assertThat(subset.getBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL))
+                    .isEqualTo(allConfigs.getBoolean(
+                            CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL));
+        }
+    }
+
+    /**
+     * Verifies that clearing a persistent override is reflected by #getConfigForSubId once the
+     * merged config was cached with the override.
+     */
+    @Test
+    public void testGetConfigForSubId_persistentOverrideCleared() throws Exception {
+        // Bypass case if default subId is not supported by device to reduce flakiness
+        if (!SubscriptionManager.isValidPhoneId(SubscriptionManager.getPhoneId(DEFAULT_SUB_ID))) {
+            return;
+        }
+        mContext.grantPermission(android.Manifest.permission.READ_PRIVILEGED_PHONE_STATE);
+        mFakePermissionEnforcer.grant(android.Manifest.permission.MODIFY_PHONE_STATE);
+        final String overrideKey = "persistent_override_key_string";
+        PersistableBundle overrides = new PersistableBundle();
+        overrides.putString(overrideKey, "overridden");
+
+        mCarrierConfigLoader.overrideConfig(DEFAULT_SUB_ID, overrides, true /*persistent*/);
+        mTestableLooper.processAllMessages();
+        PersistableBundle config = mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE);
+        assertThat(config.getString(overrideKey)).isEqualTo("overridden");
+
+        mCarrierConfigLoader.overrideConfig(DEFAULT_SUB_ID, null /*overrides*/,
+                true /*persistent*/);
+        mTestableLooper.processAllMessages();
+        config = mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE);
+
+        assertThat(config.containsKey(overrideKey)).isFalse();
+    }
+
     /**
      * Verifies that when have no DUMP permission, the #dump() method shows permission denial.
      */
@@ -17,6 +17,8 @@
 package com.android.phone;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 import android.content.Context;
 
@@ -38,6 +40,26 @@ public class CarrierXmlParserTest {
     @Before
     public void setUp() throws Exception {
         mContext = InstrumentationRegistry.getTargetContext();
+        CarrierXmlParser.clearCache();
+    }
+
+    @Test
+    public void getCached_sameCarrierId_returnsSameParser() {
+        CarrierXmlParser parser = CarrierXmlParser.getCached(mContext, -1);
+
+        assertSame(parser, CarrierXmlParser.getCached(mContext, -1));
+        assertNotSame(parser, CarrierXmlParser.getCached(mContext, 1));
+    }
+
+    @Test
+    public void getCached_makesSameCommandAsNewParser() {
+        CarrierXmlParser cached = CarrierXmlParser.getCached(mContext, -1);
+        CarrierXmlParser parsed = new CarrierXmlParser(mContext, -1);
+
+        assertEquals(parsed.getFeature(CarrierXmlParser.FEATURE_CALL_WAITING)
+                        .makeCommand(CarrierXmlParser.SsEntry.SSAction.QUERY, null),
+                cached.getFeature(CarrierXmlParser.FEATURE_CALL_WAITING)
+                        .makeCommand(CarrierXmlParser.SsEntry.SSAction.QUERY, null));
     }
 
     @Test
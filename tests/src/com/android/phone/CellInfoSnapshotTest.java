@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.telephony.CellInfo;
+import android.telephony.CellInfoGsm;
+import android.telephony.CellInfoLte;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit Test for CellInfoSnapshot.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CellInfoSnapshotTest {
+    private final CellInfo mGsm = new CellInfoGsm();
+    private final CellInfo mLte = new CellInfoLte();
+
+    @Test
+    public void testAggregatesAllPhones() {
+        List<CellInfo> phone0 = new ArrayList<>(Arrays.asList(mGsm));
+        List<CellInfo> phone1 = new ArrayList<>(Arrays.asList(mLte));
+
+        CellInfoSnapshot snapshot = new CellInfoSnapshot(Arrays.asList(phone0, null, phone1), 0);
+
+        assertThat(snapshot.getCellInfos()).containsExactly(mGsm, mLte).inOrder();
+        assertThrows(UnsupportedOperationException.class,
+                () -> snapshot.getCellInfos().add(mGsm));
+    }
+
+    @Test
+    public void testIsBuiltFrom_sameLists() {
+        List<CellInfo> phone0 = new ArrayList<>(Arrays.asList(mGsm));
+        CellInfoSnapshot snapshot = new CellInfoSnapshot(Arrays.asList(phone0, null), 0);
+
+        assertThat(snapshot.isBuiltFrom(Arrays.asList(phone0, null))).isTrue();
+    }
+
+    @Test
+    public void testIsBuiltFrom_replacedList() {
+        List<CellInfo> phone0 = new ArrayList<>(Arrays.asList(mGsm));
+        CellInfoSnapshot snapshot = new CellInfoSnapshot(Arrays.asList(phone0), 0);
+
+        // An equal list reported again is still new cell info.
+        assertThat(snapshot.isBuiltFrom(Arrays.asList(new ArrayList<>(phone0)))).isFalse();
+        assertThat(snapshot.isBuiltFrom(Arrays.asList(phone0, phone0))).isFalse();
+    }
+
+    @Test
+    public void testSourcesAreCopied() {
+        List<List<CellInfo>> sources = new ArrayList<>();
+        List<CellInfo> phone0 = new ArrayList<>(Arrays.asList(mGsm));
+        sources.add(phone0);
+        CellInfoSnapshot snapshot = new CellInfoSnapshot(sources, 3);
+
+        sources.set(0, null);
+
+        assertThat(snapshot.isBuiltFrom(Arrays.asList(phone0))).isTrue();
+        assertThat(snapshot.getGeneration()).isEqualTo(3);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.telephony.uicc.IccIoResult;
+import com.android.internal.telephony.uicc.UiccPort;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Unit Test for IccApduBatch.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IccApduBatchTest {
+    private static final int CHANNEL = 2;
+
+    private UiccPort mUiccPort;
+    // The responses the fake port answers with, in order.
+    private final Deque<IccIoResult> mResponses = new ArrayDeque<>();
+    // The APDUs the fake port received, as CLA, INS, P1, P2, P3 and data.
+    private final List<String> mSentApdus = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mUiccPort = mock(UiccPort.class);
+        doAnswer(invocation -> {
+            Object[] args = invocation.getArguments();
+            mSentApdus.add(Arrays.toString(Arrays.copyOfRange(args, 0, 7)));
+            return null;
+        }).when(mUiccPort).iccTransmitApduLogicalChannel(anyInt(), anyInt(), anyInt(), anyInt(),
+                anyInt(), anyInt(), any(), any());
+    }
+
+    @Test
+    public void testAllApdusSucceed() {
+        IccApduBatch batch = new IccApduBatch(CHANNEL,
+                Arrays.asList("80CA9F7F00", "80F2200C0A4F08A000000151000000"));
+        mResponses.add(new IccIoResult(0x90, 0x00, new byte[] {0x01, 0x02}));
+        mResponses.add(new IccIoResult(0x90, 0x00, (byte[]) null));
+
+        run(batch);
+
+        assertThat(batch.getResponses()).containsExactly("01029000", "9000").inOrder();
+        assertThat(mSentApdus).containsExactly(
+                "[2, 128, 202, 159, 127, 0, null]",
+                "[2, 128, 242, 32, 12, 10, 4f08a000000151000000]").inOrder();
+    }
+
+    @Test
+    public void testStopsAtFirstError() {
+        IccApduBatch batch = new IccApduBatch(CHANNEL,
+                Arrays.asList("00A4040000", "00B0000000", "00B0000000"));
+        mResponses.add(new IccIoResult(0x90, 0x00, (byte[]) null));
+        mResponses.add(new IccIoResult(0x6A, 0x82, (byte[]) null));
+        mResponses.add(new IccIoResult(0x90, 0x00, (byte[]) null));
+
+        run(batch);
+
+        assertThat(batch.getResponses()).containsExactly("9000", "6a82").inOrder();
+        assertThat(mSentApdus).hasSize(2);
+    }
+
+    @Test
+    public void testWarningDoesNotStop() {
+        IccApduBatch batch = new IccApduBatch(CHANNEL, Arrays.asList("00B0000000", "00B0000000"));
+        mResponses.add(new IccIoResult(0x62, 0x83, (byte[]) null));
+        mResponses.add(new IccIoResult(0x90, 0x00, (byte[]) null));
+
+        run(batch);
+
+        assertThat(batch.getResponses()).containsExactly("6283", "9000").inOrder();
+    }
+
+    @Test
+    public void testFourByteApdu_sendsNegativeP3() {
+        IccApduBatch batch = new IccApduBatch(CHANNEL, Collections.singletonList("00700000"));
+        mResponses.add(new IccIoResult(0x90, 0x00, (byte[]) null));
+
+        run(batch);
+
+        verify(mUiccPort).iccTransmitApduLogicalChannel(CHANNEL, 0x00, 0x70, 0x00, 0x00, -1, null,
+                null);
+    }
+
+    @Test
+    public void testEmptyBatchIsDone() {
+        assertThat(new IccApduBatch(CHANNEL, Collections.emptyList()).isDone()).isTrue();
+    }
+
+    @Test
+    public void testInvalidApdu_throws() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new IccApduBatch(CHANNEL, Collections.singletonList("00A4")));
+        assertThrows(IllegalArgumentException.class,
+                () -> new IccApduBatch(CHANNEL, Collections.singletonList("not hex")));
+    }
+
+    /** Sends the APDUs to the fake port until the batch is done, as the handler does. */
+    private void run(IccApduBatch batch) {
+        while (!batch.isDone()) {
+            batch.sendNext(mUiccPort, null);
+            batch.onResponse(mResponses.remove());
+        }
+    }
+}
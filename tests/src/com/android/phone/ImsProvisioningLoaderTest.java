@@ -24,6 +24,7 @@ import static org.mockito.Mockito.doReturn;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.HandlerThread;
 import android.os.PersistableBundle;
 import android.telephony.ims.feature.MmTelFeature;
 import android.telephony.ims.feature.RcsFeature;
@@ -180,6 +181,37 @@ public class ImsProvisioningLoaderTest {
         assertEquals(getXmlContents(SUB_ID_1), getInt(true), curValue);
     }
 
+    @Test
+    @SmallTest
+    public void testWriteBehind_flushWritesLatestStatus() {
+        HandlerThread writerThread = new HandlerThread(LOG_TAG);
+        writerThread.start();
+        ImsProvisioningLoader loader = new ImsProvisioningLoader(mContext,
+                writerThread.getLooper());
+        try {
+            loader.setProvisioningStatus(SUB_ID_1, IMS_FEATURE_MMTEL, CAPA_VOICE, TECH_LTE, true);
+            loader.setProvisioningStatus(SUB_ID_1, IMS_FEATURE_MMTEL, CAPA_VIDEO, TECH_LTE, true);
+            loader.setProvisioningStatus(SUB_ID_1, IMS_FEATURE_MMTEL, CAPA_VOICE, TECH_LTE, false);
+
+            // Readers see the changes before they are written.
+            assertEquals(getInt(false), loader.getProvisioningStatus(SUB_ID_1,
+                    IMS_FEATURE_MMTEL, CAPA_VOICE, TECH_LTE));
+
+            loader.flush();
+
+            // A new loader reads the latest status from the file.
+            int voice = mImsProvisioningLoader.getProvisioningStatus(SUB_ID_1,
+                    IMS_FEATURE_MMTEL, CAPA_VOICE, TECH_LTE);
+            int video = mImsProvisioningLoader.getProvisioningStatus(SUB_ID_1,
+                    IMS_FEATURE_MMTEL, CAPA_VIDEO, TECH_LTE);
+            assertEquals(getXmlContents(SUB_ID_1), getInt(false), voice);
+            assertEquals(getXmlContents(SUB_ID_1), getInt(true), video);
+        } finally {
+            loader.clear();
+            writerThread.quitSafely();
+        }
+    }
+
     @Test
     @SmallTest
     public void testGetProvisioningStatus_ExistXml() {
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.android.phone.ImsProvisioningLoader.STATUS_NOT_PROVISIONED;
+import static com.android.phone.ImsProvisioningLoader.STATUS_NOT_SET;
+import static com.android.phone.ImsProvisioningLoader.STATUS_PROVISIONED;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.PersistableBundle;
+import android.telephony.ims.feature.ImsFeature;
+import android.telephony.ims.feature.MmTelFeature;
+import android.telephony.ims.feature.RcsFeature;
+import android.telephony.ims.stub.ImsRegistrationImplBase;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Unit Test for ImsProvisioningTable.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImsProvisioningTableTest {
+    private static final int MMTEL = ImsFeature.FEATURE_MMTEL;
+    private static final int RCS = ImsFeature.FEATURE_RCS;
+    private static final int LTE = ImsRegistrationImplBase.REGISTRATION_TECH_LTE;
+    private static final int IWLAN = ImsRegistrationImplBase.REGISTRATION_TECH_IWLAN;
+    private static final int VOICE = MmTelFeature.MmTelCapabilities.CAPABILITY_TYPE_VOICE;
+    private static final int VIDEO = MmTelFeature.MmTelCapabilities.CAPABILITY_TYPE_VIDEO;
+    private static final int PRESENCE = RcsFeature.RcsImsCapabilities.CAPABILITY_TYPE_PRESENCE_UCE;
+
+    @Test
+    public void testGetAndSet() {
+        ImsProvisioningTable table = new ImsProvisioningTable();
+        assertThat(table.isEmpty()).isTrue();
+
+        table.set(MMTEL, LTE, VOICE, STATUS_PROVISIONED);
+        table.set(MMTEL, LTE, VIDEO, STATUS_NOT_PROVISIONED);
+        table.set(RCS, IWLAN, PRESENCE, STATUS_PROVISIONED);
+        table.set(RCS, IWLAN, PRESENCE, STATUS_NOT_PROVISIONED);
+
+        assertThat(table.isEmpty()).isFalse();
+        assertThat(table.get(MMTEL, LTE, VOICE)).isEqualTo(STATUS_PROVISIONED);
+        assertThat(table.get(MMTEL, LTE, VIDEO)).isEqualTo(STATUS_NOT_PROVISIONED);
+        assertThat(table.get(RCS, IWLAN, PRESENCE)).isEqualTo(STATUS_NOT_PROVISIONED);
+        assertThat(table.get(MMTEL, IWLAN, VOICE)).isEqualTo(STATUS_NOT_SET);
+        assertThat(table.get(RCS, LTE, PRESENCE)).isEqualTo(STATUS_NOT_SET);
+    }
+
+    @Test
+    public void testValuesOutsideTable() {
+        ImsProvisioningTable table = new ImsProvisioningTable();
+
+        table.set(MMTEL, Integer.MAX_VALUE, VOICE, STATUS_PROVISIONED);
+        table.set(MMTEL, LTE, Integer.MAX_VALUE, STATUS_NOT_PROVISIONED);
+        table.set(Integer.MAX_VALUE, LTE, VOICE, STATUS_PROVISIONED);
+        table.set(MMTEL, IWLAN, VOICE, 5);
+
+        assertThat(table.get(MMTEL, Integer.MAX_VALUE, VOICE)).isEqualTo(STATUS_PROVISIONED);
+        assertThat(table.get(MMTEL, LTE, Integer.MAX_VALUE)).isEqualTo(STATUS_NOT_PROVISIONED);
+        assertThat(table.get(Integer.MAX_VALUE, LTE, VOICE)).isEqualTo(STATUS_PROVISIONED);
+        assertThat(table.get(MMTEL, IWLAN, VOICE)).isEqualTo(5);
+        assertThat(table.get(MMTEL, LTE, VOICE)).isEqualTo(STATUS_NOT_SET);
+
+        // A regular status replaces the one kept outside of the table.
+        table.set(MMTEL, IWLAN, VOICE, STATUS_PROVISIONED);
+        assertThat(table.get(MMTEL, IWLAN, VOICE)).isEqualTo(STATUS_PROVISIONED);
+        assertThat(ImsProvisioningTable.getFromBundle(table.toBundle(), MMTEL, IWLAN, VOICE))
+                .isEqualTo(STATUS_PROVISIONED);
+    }
+
+    @Test
+    public void testBundleRoundTrip() {
+        PersistableBundle bundle = new PersistableBundle();
+        ImsProvisioningTable.putToBundle(bundle, MMTEL, LTE, VOICE, STATUS_PROVISIONED);
+        ImsProvisioningTable.putToBundle(bundle, MMTEL, LTE, VIDEO, STATUS_NOT_PROVISIONED);
+        ImsProvisioningTable.putToBundle(bundle, RCS, IWLAN, PRESENCE, STATUS_PROVISIONED);
+        ImsProvisioningTable.putToBundle(bundle, MMTEL, Integer.MAX_VALUE, VOICE,
+                STATUS_PROVISIONED);
+
+        ImsProvisioningTable table = ImsProvisioningTable.fromBundle(bundle);
+        PersistableBundle exported = table.toBundle();
+
+        int[][] keys = {{MMTEL, LTE, VOICE}, {MMTEL, LTE, VIDEO}, {RCS, IWLAN, PRESENCE},
+                {MMTEL, Integer.MAX_VALUE, VOICE}, {MMTEL, IWLAN, VOICE}, {RCS, LTE, PRESENCE}};
+        for (int[] key : keys) {
+            int expected = ImsProvisioningTable.getFromBundle(bundle, key[0], key[1], key[2]);
+            assertThat(table.get(key[0], key[1], key[2])).isEqualTo(expected);
+            assertThat(ImsProvisioningTable.getFromBundle(exported, key[0], key[1], key[2]))
+                    .isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void testFromBundle_invalidKeysIgnored() {
+        PersistableBundle techBundle = new PersistableBundle();
+        techBundle.putPersistableBundle("not a tech", new PersistableBundle());
+        PersistableBundle bundle = new PersistableBundle();
+        bundle.putPersistableBundle(String.valueOf(MMTEL), techBundle);
+        ImsProvisioningTable.putToBundle(bundle, RCS, LTE, PRESENCE, STATUS_PROVISIONED);
+        PersistableBundle capabilityBundle = new PersistableBundle();
+        capabilityBundle.putInt("not a capability", STATUS_PROVISIONED);
+        bundle.getPersistableBundle(String.valueOf(RCS))
+                .putPersistableBundle(String.valueOf(IWLAN), capabilityBundle);
+
+        ImsProvisioningTable table = ImsProvisioningTable.fromBundle(bundle);
+
+        assertThat(table.get(RCS, LTE, PRESENCE)).isEqualTo(STATUS_PROVISIONED);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.StringWriter;
+
+/**
+ * Unit Test for MainThreadRequestStats.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MainThreadRequestStatsTest {
+    private static final int COMMAND = 60;
+
+    private final MainThreadRequestStats mStats = new MainThreadRequestStats();
+
+    @Test
+    public void testRecordCompletion() {
+        mStats.recordCompletion(COMMAND, 10, 100, false);
+        mStats.recordCompletion(COMMAND, 30, 50, true);
+
+        MainThreadRequestStats.CommandStats stats = mStats.getStats(COMMAND);
+        assertThat(stats.count).isEqualTo(2);
+        assertThat(stats.lateCompletions).isEqualTo(1);
+        assertThat(stats.totalQueueWaitMs).isEqualTo(40);
+        assertThat(stats.maxQueueWaitMs).isEqualTo(30);
+        assertThat(stats.totalExecutionMs).isEqualTo(150);
+        assertThat(stats.maxExecutionMs).isEqualTo(100);
+        assertThat(mStats.getStats(COMMAND + 1)).isNull();
+    }
+
+    @Test
+    public void testRecordTimeout() {
+        mStats.recordTimeout(COMMAND);
+
+        MainThreadRequestStats.CommandStats stats = mStats.getStats(COMMAND);
+        assertThat(stats.timeouts).isEqualTo(1);
+        assertThat(stats.count).isEqualTo(0);
+    }
+
+    @Test
+    public void testRecordCoalesced() {
+        mStats.recordCoalesced(COMMAND);
+        mStats.recordCoalesced(COMMAND);
+
+        MainThreadRequestStats.CommandStats stats = mStats.getStats(COMMAND);
+        assertThat(stats.coalesced).isEqualTo(2);
+        assertThat(stats.count).isEqualTo(0);
+    }
+
+    @Test
+    public void testQueueDepth() {
+        mStats.recordPosted(MainThreadRequestStats.LANE_SIM_IO);
+        mStats.recordPosted(MainThreadRequestStats.LANE_SIM_IO);
+        mStats.recordStarted(MainThreadRequestStats.LANE_SIM_IO);
+
+        assertThat(mStats.getQueueDepth(MainThreadRequestStats.LANE_SIM_IO)).isEqualTo(1);
+        assertThat(mStats.getQueueDepth(MainThreadRequestStats.LANE_MODEM_IO)).isEqualTo(0);
+        StringWriter writer = new StringWriter();
+        mStats.dump(new IndentingPrintWriter(writer, "  "));
+        assertThat(writer.toString()).contains("SIM I/O: 1, 2");
+    }
+
+    @Test
+    public void testDump() {
+        mStats.recordCompletion(COMMAND, 10, 100, false);
+        mStats.recordCompletion(COMMAND, 30, 50, false);
+        StringWriter writer = new StringWriter();
+
+        mStats.dump(new IndentingPrintWriter(writer, "  "));
+
+        assertThat(writer.toString()).contains("CMD 60: 2, 0, 0, 20/30, 75/100, 0");
+    }
+}
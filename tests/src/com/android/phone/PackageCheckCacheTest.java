@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.UserHandle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+@RunWith(JUnit4.class)
+public class PackageCheckCacheTest {
+    private static final int UID = 10001;
+    private static final String PACKAGE = "com.example.app";
+
+    @Mock private Context mContext;
+    @Mock private AppOpsManager mAppOps;
+
+    private PackageCheckCache mCache;
+    private BroadcastReceiver mPackageChangedReceiver;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(mContext.getSystemService(AppOpsManager.class)).thenReturn(mAppOps);
+        mCache = new PackageCheckCache(mContext);
+        ArgumentCaptor<BroadcastReceiver> receiverCaptor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mContext).registerReceiverForAllUsers(receiverCaptor.capture(),
+                any(IntentFilter.class), isNull(), isNull());
+        mPackageChangedReceiver = receiverCaptor.getValue();
+    }
+
+    @Test
+    public void testCheckPackage_cachesSuccess() {
+        mCache.checkPackage("api", UID, PACKAGE);
+        mCache.checkPackage("api", UID, PACKAGE);
+
+        verify(mAppOps, times(1)).checkPackage(UID, PACKAGE);
+    }
+
+    @Test
+    public void testCheckPackage_otherUidIsCheckedAgain() {
+        mCache.checkPackage("api", UID, PACKAGE);
+        mCache.checkPackage("api", UID + 1, PACKAGE);
+
+        verify(mAppOps, times(1)).checkPackage(UID, PACKAGE);
+        verify(mAppOps, times(1)).checkPackage(UID + 1, PACKAGE);
+    }
+
+    @Test
+    public void testCheckPackage_failureIsNotCached() {
+        doThrow(new SecurityException()).when(mAppOps).checkPackage(UID, PACKAGE);
+
+        assertThrows(SecurityException.class, () -> mCache.checkPackage("api", UID, PACKAGE));
+        assertThrows(SecurityException.class, () -> mCache.checkPackage("api", UID, PACKAGE));
+
+        verify(mAppOps, times(2)).checkPackage(UID, PACKAGE);
+    }
+
+    @Test
+    public void testCheckPackage_packageChangeDropsEntry() {
+        mCache.checkPackage("api", UID, PACKAGE);
+
+        mPackageChangedReceiver.onReceive(mContext, new Intent(Intent.ACTION_PACKAGE_REMOVED,
+                Uri.fromParts("package", PACKAGE, null)));
+        mCache.checkPackage("api", UID, PACKAGE);
+
+        verify(mAppOps, times(2)).checkPackage(UID, PACKAGE);
+    }
+
+    @Test
+    public void testCheckPackage_packageChangeInSameUserDropsEntry() {
+        mCache.checkPackage("api", UID, PACKAGE);
+
+        mPackageChangedReceiver.onReceive(mContext, createPackageReplacedIntent(
+                UserHandle.getUid(UserHandle.getUserId(UID), 10002)));
+        mCache.checkPackage("api", UID, PACKAGE);
+
+        verify(mAppOps, times(2)).checkPackage(UID, PACKAGE);
+    }
+
+    @Test
+    public void testCheckPackage_packageChangeInOtherUserKeepsEntry() {
+        mCache.checkPackage("api", UID, PACKAGE);
+
+        mPackageChangedReceiver.onReceive(mContext, createPackageReplacedIntent(
+                UserHandle.getUid(UserHandle.getUserId(UID) + 10, 10002)));
+        mCache.checkPackage("api", UID, PACKAGE);
+
+        verify(mAppOps, times(1)).checkPackage(UID, PACKAGE);
+    }
+
+    private static Intent createPackageReplacedIntent(int packageUid) {
+        Intent intent = new Intent(Intent.ACTION_PACKAGE_REPLACED,
+                Uri.fromParts("package", PACKAGE, null));
+        intent.putExtra(Intent.EXTRA_UID, packageUid);
+        return intent;
+    }
+}
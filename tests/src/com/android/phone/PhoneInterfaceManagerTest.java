@@ -18,25 +18,38 @@ package com.android.phone;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
+import android.os.AsyncResult;
+import android.os.Looper;
+import android.os.Message;
+import android.os.WorkSource;
 import android.permission.flags.Flags;
 import android.platform.test.flag.junit.SetFlagsRule;
+import android.telephony.CellInfo;
 import android.telephony.RadioAccessFamily;
+import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 
 import androidx.test.annotation.UiThreadTest;
@@ -48,6 +61,9 @@ import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.RILConstants;
 import com.android.internal.telephony.flags.FeatureFlags;
 import com.android.internal.telephony.subscription.SubscriptionManagerService;
+import com.android.internal.telephony.uicc.IccIoResult;
+import com.android.internal.telephony.uicc.UiccController;
+import com.android.internal.telephony.uicc.UiccPort;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -55,14 +71,25 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit Test for PhoneInterfaceManager.
  */
 @RunWith(AndroidJUnit4.class)
 public class PhoneInterfaceManagerTest extends TelephonyTestBase {
+    private static final long TIMEOUT_MS = 1000;
+    // Not the id of a real phone, so that requests of the phone process are not coalesced with
+    // those of the tests. Each test uses other ones, so that its requests are not coalesced with
+    // those left in flight by the previous tests either.
+    private static int sNextTestPhoneId = 1000;
+
     private PhoneInterfaceManager mPhoneInterfaceManager;
+    private int mTestPhoneId;
     private SharedPreferences mSharedPreferences;
     private IIntegerConsumer mIIntegerConsumer;
 
@@ -78,6 +105,9 @@ public class PhoneInterfaceManagerTest extends TelephonyTestBase {
 
     @Rule public final SetFlagsRule mSetFlagsRule = new SetFlagsRule();
 
+    // The completion messages of the cell info requests sent to mPhone, not answered yet.
+    private final LinkedBlockingQueue<Message> mCellInfoRequests = new LinkedBlockingQueue<>();
+
     @Before
     @UiThreadTest
     public void setUp() throws Exception {
@@ -93,6 +123,9 @@ public class PhoneInterfaceManagerTest extends TelephonyTestBase {
         mSharedPreferences = mPhoneInterfaceManager.getSharedPreferences();
         mSharedPreferences.edit().remove(Phone.PREF_NULL_CIPHER_AND_INTEGRITY_ENABLED).commit();
         mIIntegerConsumer = mock(IIntegerConsumer.class);
+        // Some tests use a second phone, with the next id.
+        mTestPhoneId = sNextTestPhoneId;
+        sNextTestPhoneId += 2;
     }
 
     @Test
@@ -119,6 +152,227 @@ public class PhoneInterfaceManagerTest extends TelephonyTestBase {
                 TelephonyManager.ALLOWED_NETWORK_TYPES_REASON_USER, defaultNetworkType, null);
     }
 
+    @Test
+    public void waitForResult_deadlinePassed_abandonsRequest() throws Exception {
+        answerCellInfoRequestsLater();
+        int timeouts = getCommandStats(PhoneInterfaceManager.CMD_GET_ALL_CELL_INFO).timeouts;
+
+        PhoneInterfaceManager.MainThreadRequest request = postCellInfoRequest();
+        assertNotNull(mCellInfoRequests.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertNull(mPhoneInterfaceManager.waitForResult(request, 10));
+        assertTrue(request.abandoned);
+        assertFalse(request.future.isDone());
+        assertEquals(timeouts + 1,
+                getCommandStats(PhoneInterfaceManager.CMD_GET_ALL_CELL_INFO).timeouts);
+    }
+
+    @Test
+    public void waitForResult_lateCompletion_completesAbandonedRequest() throws Exception {
+        answerCellInfoRequestsLater();
+        int lateCompletions =
+                getCommandStats(PhoneInterfaceManager.CMD_GET_ALL_CELL_INFO).lateCompletions;
+        PhoneInterfaceManager.MainThreadRequest request = postCellInfoRequest();
+        Message onCompleted = mCellInfoRequests.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNull(mPhoneInterfaceManager.waitForResult(request, 10));
+
+        List<CellInfo> cellInfos = new ArrayList<>();
+        replyToCellInfoRequest(onCompleted, cellInfos);
+
+        assertEquals(cellInfos, request.future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(lateCompletions + 1,
+                getCommandStats(PhoneInterfaceManager.CMD_GET_ALL_CELL_INFO).lateCompletions);
+    }
+
+    @Test
+    public void waitForResult_noDeadline_returnsResult() throws Exception {
+        answerCellInfoRequestsLater();
+        PhoneInterfaceManager.MainThreadRequest request = postCellInfoRequest();
+        List<CellInfo> cellInfos = new ArrayList<>();
+        replyToCellInfoRequest(mCellInfoRequests.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS),
+                cellInfos);
+
+        assertEquals(cellInfos, mPhoneInterfaceManager.waitForResult(request, -1));
+        assertFalse(request.abandoned);
+    }
+
+    @Test
+    public void sendRequestToPhones_gathersAllPhones() {
+        Phone otherPhone = mock(Phone.class);
+        List<CellInfo> cellInfos = List.of(mock(CellInfo.class));
+        List<CellInfo> otherCellInfos = List.of(mock(CellInfo.class));
+        answerCellInfoRequests(mPhone, mTestPhoneId, cellInfos);
+        answerCellInfoRequests(otherPhone, mTestPhoneId + 1, otherCellInfos);
+
+        List<Object> results = mPhoneInterfaceManager.sendRequestToPhones(
+                PhoneInterfaceManager.CMD_GET_ALL_CELL_INFO, null,
+                new Phone[] {mPhone, otherPhone}, null);
+
+        assertEquals(List.of(cellInfos, otherCellInfos), results);
+    }
+
+    @Test
+    public void sendRequestToPhones_deadlinePassed_omitsOnlySlowPhone() {
+        Phone slowPhone = mock(Phone.class);
+        List<CellInfo> cellInfos = List.of(mock(CellInfo.class));
+        answerCellInfoRequests(mPhone, mTestPhoneId, cellInfos);
+        when(slowPhone.getPhoneId()).thenReturn(mTestPhoneId + 1);
+        doAnswer(invocation -> {
+            mCellInfoRequests.add(invocation.getArgument(1));
+            return null;
+        }).when(slowPhone).requestCellInfoUpdate(any(), any());
+
+        List<Object> results = mPhoneInterfaceManager.sendRequestToPhones(
+                PhoneInterfaceManager.CMD_GET_ALL_CELL_INFO, null,
+                new Phone[] {slowPhone, mPhone}, null);
+
+        assertEquals(2, results.size());
+        assertNull(results.get(0));
+        assertEquals(cellInfos, results.get(1));
+    }
+
+    @Test
+    public void postRequest_simIoCommand_runsOnSimIoThread() throws Exception {
+        UiccController uiccController = mock(UiccController.class);
+        UiccPort uiccPort = mock(UiccPort.class);
+        replaceInstance(UiccController.class, "mInstance", null, uiccController);
+        when(mPhone.getPhoneId()).thenReturn(mTestPhoneId);
+        when(uiccController.getUiccPort(mTestPhoneId)).thenReturn(uiccPort);
+        IccIoResult response = new IccIoResult(0x90, 0, (byte[]) null);
+        LinkedBlockingQueue<Looper> loopers = new LinkedBlockingQueue<>();
+        doAnswer(invocation -> {
+            loopers.add(Looper.myLooper());
+            Message onCompleted = invocation.getArgument(1);
+            AsyncResult.forMessage(onCompleted, response, null);
+            onCompleted.sendToTarget();
+            return null;
+        }).when(uiccPort).sendEnvelopeWithStatus(anyString(), any());
+
+        PhoneInterfaceManager.MainThreadRequest request = mPhoneInterfaceManager.postRequest(
+                PhoneInterfaceManager.CMD_SEND_ENVELOPE, "A0C0000000",
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID, mPhone, null);
+
+        assertEquals(response, request.future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        Looper looper = loopers.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotEquals(Looper.getMainLooper(), looper);
+        assertEquals("PhoneInterfaceManagerSimIo", looper.getThread().getName());
+    }
+
+    @Test
+    public void postRequest_modemCommand_runsOnMainThread() throws Exception {
+        LinkedBlockingQueue<Looper> loopers = new LinkedBlockingQueue<>();
+        when(mPhone.getPhoneId()).thenReturn(mTestPhoneId);
+        doAnswer(invocation -> {
+            loopers.add(Looper.myLooper());
+            replyToCellInfoRequest(invocation.getArgument(1), new ArrayList<>());
+            return null;
+        }).when(mPhone).requestCellInfoUpdate(any(), any());
+
+        postCellInfoRequest().future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertEquals(Looper.getMainLooper(), loopers.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void postRequest_identicalRequestInFlight_joinsWithOwnRequest() throws Exception {
+        answerCellInfoRequestsLater();
+        PhoneInterfaceManager.MainThreadRequest owner = mPhoneInterfaceManager.postRequest(
+                PhoneInterfaceManager.CMD_GET_ALL_CELL_INFO, null,
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID, mPhone, new WorkSource(10001));
+        Message onCompleted = mCellInfoRequests.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        PhoneInterfaceManager.MainThreadRequest joiner = mPhoneInterfaceManager.postRequest(
+                PhoneInterfaceManager.CMD_GET_ALL_CELL_INFO, null,
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID, mPhone, new WorkSource(10002));
+
+        assertNotSame(owner, joiner);
+        // The joiner giving up leaves the request it joined alone.
+        assertNull(mPhoneInterfaceManager.waitForResult(joiner, 10));
+        assertTrue(joiner.abandoned);
+        assertFalse(owner.abandoned);
+        List<CellInfo> cellInfos = new ArrayList<>();
+        replyToCellInfoRequest(onCompleted, cellInfos);
+        assertEquals(cellInfos, owner.future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(cellInfos, joiner.future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(mCellInfoRequests.isEmpty());
+    }
+
+    @Test
+    public void postRequest_withinReuseWindow_reusesResult() throws Exception {
+        answerNetworkSelectionModeRequests();
+
+        assertEquals(TelephonyManager.NETWORK_SELECTION_MODE_AUTO,
+                postNetworkSelectionModeRequest().future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        PhoneInterfaceManager.MainThreadRequest request = postNetworkSelectionModeRequest();
+
+        assertTrue(request.future.isDone());
+        assertEquals(TelephonyManager.NETWORK_SELECTION_MODE_AUTO, request.future.get());
+        verify(mPhone, times(1)).getNetworkSelectionMode(any());
+    }
+
+    @Test
+    public void postRequest_reuseWindowPassed_queriesModemAgain() throws Exception {
+        answerNetworkSelectionModeRequests();
+        postNetworkSelectionModeRequest().future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        // The result of CMD_GET_NETWORK_SELECTION_MODE is reused for 500ms.
+        waitForMs(600);
+        postNetworkSelectionModeRequest().future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        verify(mPhone, times(2)).getNetworkSelectionMode(any());
+    }
+
+    @Test
+    public void postRequest_unrelatedReadInBetween_joinsInFlightRequest() throws Exception {
+        answerCellInfoRequestsLater();
+        doAnswer(invocation -> {
+            Message onCompleted = invocation.getArgument(1);
+            AsyncResult.forMessage(onCompleted, null, null);
+            onCompleted.sendToTarget();
+            return null;
+        }).when(mPhone).getCellIdentity(any(), any());
+        PhoneInterfaceManager.MainThreadRequest owner = postCellInfoRequest();
+        Message onCompleted = mCellInfoRequests.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        mPhoneInterfaceManager.postRequest(PhoneInterfaceManager.CMD_GET_CELL_LOCATION, null,
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID, mPhone, null)
+                .future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        PhoneInterfaceManager.MainThreadRequest joiner = postCellInfoRequest();
+
+        List<CellInfo> cellInfos = new ArrayList<>();
+        replyToCellInfoRequest(onCompleted, cellInfos);
+        assertEquals(cellInfos, owner.future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(cellInfos, joiner.future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        verify(mPhone, times(1)).requestCellInfoUpdate(any(), any());
+    }
+
+    @Test
+    public void postRequest_afterStateChange_queriesModemAgain() throws Exception {
+        answerNetworkSelectionModeRequests();
+        answerSetNetworkSelectionModeAutomatic(mPhone);
+        postNetworkSelectionModeRequest().future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        postSetNetworkSelectionModeAutomatic(mPhone);
+        postNetworkSelectionModeRequest().future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        verify(mPhone, times(2)).getNetworkSelectionMode(any());
+    }
+
+    @Test
+    public void postRequest_afterStateChangeOnOtherPhone_reusesResult() throws Exception {
+        answerNetworkSelectionModeRequests();
+        Phone otherPhone = mock(Phone.class);
+        when(otherPhone.getPhoneId()).thenReturn(mTestPhoneId + 1);
+        answerSetNetworkSelectionModeAutomatic(otherPhone);
+        postNetworkSelectionModeRequest().future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        postSetNetworkSelectionModeAutomatic(otherPhone);
+        PhoneInterfaceManager.MainThreadRequest request = postNetworkSelectionModeRequest();
+
+        assertTrue(request.future.isDone());
+        verify(mPhone, times(1)).getNetworkSelectionMode(any());
+    }
+
     @Test
     public void matchLocaleFromSupportedLocaleList_inputLocaleChangeToSupportedLocale_notMatched() {
         Context context = mock(Context.class);
@@ -257,6 +511,71 @@ public class PhoneInterfaceManagerTest extends TelephonyTestBase {
         });
     }
 
+    private void answerCellInfoRequestsLater() {
+        when(mPhone.getPhoneId()).thenReturn(mTestPhoneId);
+        doAnswer(invocation -> {
+            mCellInfoRequests.add(invocation.getArgument(1));
+            return null;
+        }).when(mPhone).requestCellInfoUpdate(any(), any());
+    }
+
+    private static void answerCellInfoRequests(Phone phone, int phoneId,
+            List<CellInfo> cellInfos) {
+        when(phone.getPhoneId()).thenReturn(phoneId);
+        doAnswer(invocation -> {
+            replyToCellInfoRequest(invocation.getArgument(1), cellInfos);
+            return null;
+        }).when(phone).requestCellInfoUpdate(any(), any());
+    }
+
+    private PhoneInterfaceManager.MainThreadRequest postCellInfoRequest() {
+        return mPhoneInterfaceManager.postRequest(PhoneInterfaceManager.CMD_GET_ALL_CELL_INFO,
+                null, SubscriptionManager.INVALID_SUBSCRIPTION_ID, mPhone, null);
+    }
+
+    private void answerNetworkSelectionModeRequests() {
+        when(mPhone.getPhoneId()).thenReturn(mTestPhoneId);
+        doAnswer(invocation -> {
+            Message onCompleted = invocation.getArgument(0);
+            AsyncResult.forMessage(onCompleted, new int[] {0}, null);
+            onCompleted.sendToTarget();
+            return null;
+        }).when(mPhone).getNetworkSelectionMode(any());
+    }
+
+    private PhoneInterfaceManager.MainThreadRequest postNetworkSelectionModeRequest() {
+        return mPhoneInterfaceManager.postRequest(
+                PhoneInterfaceManager.CMD_GET_NETWORK_SELECTION_MODE, null,
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID, mPhone, null);
+    }
+
+    private static void answerSetNetworkSelectionModeAutomatic(Phone phone) {
+        doAnswer(invocation -> {
+            Message onCompleted = invocation.getArgument(0);
+            AsyncResult.forMessage(onCompleted, null, null);
+            onCompleted.sendToTarget();
+            return null;
+        }).when(phone).setNetworkSelectionModeAutomatic(any());
+    }
+
+    private void postSetNetworkSelectionModeAutomatic(Phone phone) throws Exception {
+        mPhoneInterfaceManager.postRequest(
+                PhoneInterfaceManager.CMD_SET_NETWORK_SELECTION_MODE_AUTOMATIC, null,
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID, phone, null)
+                .future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void replyToCellInfoRequest(Message onCompleted, List<CellInfo> cellInfos) {
+        AsyncResult.forMessage(onCompleted, cellInfos, null);
+        onCompleted.sendToTarget();
+    }
+
+    private MainThreadRequestStats.CommandStats getCommandStats(int command) {
+        MainThreadRequestStats.CommandStats stats =
+                mPhoneInterfaceManager.getRequestStats().getStats(command);
+        return stats != null ? stats : new MainThreadRequestStats.CommandStats();
+    }
+
     private void whenModemDoesNotSupportNullCiphers() {
         doReturn(false).when(mPhone).isNullCipherAndIntegritySupported();
         doReturn(mPhone).when(
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static android.provider.Telephony.ServiceStateTable.VOICE_REG_STATE;
+import static android.provider.Telephony.ServiceStateTable.getUriForSubscriptionId;
+import static android.provider.Telephony.ServiceStateTable.getUriForSubscriptionIdAndField;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Looper;
+import android.telephony.ServiceState;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.StringWriter;
+import java.util.Collection;
+
+/**
+ * Unit Test for ServiceStateChangeNotifier.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ServiceStateChangeNotifierTest {
+    private static final int SUB_ID = 1;
+
+    @Mock Context mContext;
+    @Mock ContentResolver mContentResolver;
+
+    private ServiceStateChangeNotifier mNotifier;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        doReturn(mContentResolver).when(mContext).getContentResolver();
+        mNotifier = new ServiceStateChangeNotifier(mContext, Looper.getMainLooper());
+    }
+
+    @Test
+    public void testUpdatesOfWindowSentInOneCall() {
+        ServiceState outOfService = createServiceState(ServiceState.STATE_OUT_OF_SERVICE);
+        ServiceState inService = createServiceState(ServiceState.STATE_IN_SERVICE);
+        ServiceState powerOff = createServiceState(ServiceState.STATE_POWER_OFF);
+
+        mNotifier.onServiceStateChanged(SUB_ID, outOfService, inService);
+        mNotifier.onServiceStateChanged(SUB_ID, inService, powerOff);
+        mNotifier.onServiceStateChanged(SUB_ID + 1, outOfService, inService);
+        mNotifier.flush();
+
+        ArgumentCaptor<Collection<Uri>> uris = ArgumentCaptor.forClass(Collection.class);
+        verify(mContentResolver).notifyChange(uris.capture(), isNull(), anyInt());
+        assertThat(uris.getValue()).containsExactly(
+                getUriForSubscriptionIdAndField(SUB_ID, VOICE_REG_STATE),
+                getUriForSubscriptionId(SUB_ID),
+                getUriForSubscriptionIdAndField(SUB_ID + 1, VOICE_REG_STATE),
+                getUriForSubscriptionId(SUB_ID + 1));
+    }
+
+    @Test
+    public void testFirstUpdateNotifiesAllFields() {
+        mNotifier.onServiceStateChanged(SUB_ID, null,
+                createServiceState(ServiceState.STATE_IN_SERVICE));
+        mNotifier.flush();
+
+        ArgumentCaptor<Collection<Uri>> uris = ArgumentCaptor.forClass(Collection.class);
+        verify(mContentResolver).notifyChange(uris.capture(), isNull(), anyInt());
+        // Five fields and the subscription.
+        assertThat(uris.getValue()).hasSize(6);
+    }
+
+    @Test
+    public void testBounceWithinWindowSuppressed() {
+        ServiceState outOfService = createServiceState(ServiceState.STATE_OUT_OF_SERVICE);
+        ServiceState inService = createServiceState(ServiceState.STATE_IN_SERVICE);
+
+        mNotifier.onServiceStateChanged(SUB_ID, inService, outOfService);
+        mNotifier.onServiceStateChanged(SUB_ID, outOfService, inService);
+        mNotifier.flush();
+
+        verify(mContentResolver, never()).notifyChange(any(Collection.class), any(), anyInt());
+        StringWriter writer = new StringWriter();
+        mNotifier.dump(new IndentingPrintWriter(writer, "  "));
+        assertThat(writer.toString()).contains(": 2, 0, 0, 1");
+    }
+
+    @Test
+    public void testFlushWithoutUpdates() {
+        mNotifier.flush();
+
+        verify(mContentResolver, never()).notifyChange(any(Collection.class), any(), anyInt());
+    }
+
+    private static ServiceState createServiceState(int voiceRegState) {
+        ServiceState ss = new ServiceState();
+        ss.setStateOutOfService();
+        ss.setVoiceRegState(voiceRegState);
+        return ss;
+    }
+}
@@ -42,13 +42,17 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.Manifest;
 import android.app.AppOpsManager;
 import android.compat.testing.PlatformCompatChangeRule;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
@@ -57,6 +61,7 @@ import android.database.Cursor;
 import android.location.LocationManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Process;
 import android.os.UserHandle;
 import android.telephony.AccessNetworkConstants;
 import android.telephony.NetworkRegistrationInfo;
@@ -77,6 +82,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TestRule;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -416,6 +422,49 @@ public class ServiceStateProviderTest {
         verify(mAppOpsManager, never()).noteOpNoThrow(any(), anyInt(), any(), any(), any());
     }
 
+    /**
+     * Verify that the permission decisions for a caller are reused by its next query.
+     */
+    @Test
+    @CoreCompatChangeRule.EnableCompatChanges({ENFORCE_LOCATION_PERMISSION_CHECK})
+    public void testQuery_permissionDecisionsReusedForSameCaller() throws Exception {
+        setTargetSdkVersion(Build.VERSION_CODES.S);
+
+        verifyServiceStateWithPublicColumns(mTestServiceState, null /*projection*/);
+        verifyServiceStateWithPublicColumns(mTestServiceState, null /*projection*/);
+
+        verify(mContext, times(1)).checkCallingOrSelfPermission(
+                Manifest.permission.READ_PRIVILEGED_PHONE_STATE);
+        verify(mPackageManager, times(1)).getApplicationInfoAsUser(anyString(), anyInt(), any());
+    }
+
+    /**
+     * Verify that the permission decisions for a caller are made again once its package is
+     * updated.
+     */
+    @Test
+    @CoreCompatChangeRule.EnableCompatChanges({ENFORCE_LOCATION_PERMISSION_CHECK})
+    public void testQuery_packageReplacedDropsPermissionDecisions() throws Exception {
+        setTargetSdkVersion(Build.VERSION_CODES.S);
+        verifyServiceStateWithPublicColumns(mTestServiceState, null /*projection*/);
+        ArgumentCaptor<String> packageCaptor = ArgumentCaptor.forClass(String.class);
+        verify(mPackageManager).getApplicationInfoAsUser(packageCaptor.capture(), anyInt(),
+                any());
+        ArgumentCaptor<BroadcastReceiver> receiverCaptor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mContext).registerReceiverForAllUsers(receiverCaptor.capture(),
+                any(IntentFilter.class), any(), any());
+
+        Intent intent = new Intent(Intent.ACTION_PACKAGE_REPLACED,
+                Uri.fromParts("package", packageCaptor.getValue(), null));
+        intent.putExtra(Intent.EXTRA_UID, Process.myUid());
+        receiverCaptor.getValue().onReceive(mContext, intent);
+
+        verifyServiceStateWithPublicColumns(mTestServiceState, null /*projection*/);
+
+        verify(mPackageManager, times(2)).getApplicationInfoAsUser(anyString(), anyInt(), any());
+    }
+
     private void verifyServiceStateWithLocationColumns(ServiceState ss) {
         // NETWORK_ID is a location-sensitive column
         try (Cursor cursor = mContentResolver.query(ServiceStateTable.CONTENT_URI,
@@ -35,6 +35,8 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.database.Cursor;
@@ -1093,6 +1095,141 @@ public final class SimPhonebookProviderTest {
                 null));
     }
 
+    @Test
+    public void insertAndQueryItems_loadsElementaryFileOnce() throws Exception {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+        mIccPhoneBook.addAdnRecord(1, "Initial", "8005550101");
+        IIccPhoneBook mockIccPhoneBook = mock(
+                IIccPhoneBook.class, AdditionalAnswers.delegatesTo(mIccPhoneBook));
+        TestableSimPhonebookProvider.setup(mResolver, mMockSubscriptionManager, mockIccPhoneBook);
+
+        ContentValues values = new ContentValues();
+        values.put(SimRecords.NAME, "New");
+        values.put(SimRecords.PHONE_NUMBER, "8005550102");
+        Uri inserted = mResolver.insert(SimRecords.getContentUri(1, EF_ADN), values);
+        try (Cursor first = mResolver.query(SimRecords.getItemUri(1, EF_ADN, 1), null, null,
+                null);
+             Cursor second = mResolver.query(inserted, null, null, null)) {
+            assertThat(first).hasCount(1);
+            assertThat(second).atRow(0).hasRowValues(1, EF_ADN, 2, "New", "8005550102");
+        }
+
+        verify(mockIccPhoneBook, times(1)).getAdnRecordsInEfForSubscriber(
+                1, IccConstants.EF_ADN);
+    }
+
+    @Test
+    public void bulkInsert_loadsOnceAndNotifiesOnce() {
+        // Clear invocations that happened in setUp
+        Mockito.reset(mMockSubscriptionManager);
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+        mIccPhoneBook.addAdnRecord(1, "Existing", "8005550100");
+        SimPhonebookProvider.ContentNotifier mockNotifier = mock(
+                SimPhonebookProvider.ContentNotifier.class);
+        TestableSimPhonebookProvider.setup(
+                mResolver, mMockSubscriptionManager, mIccPhoneBook, mockNotifier);
+        ContentValues[] values = new ContentValues[50];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(SimRecords.NAME, "Name" + i);
+            values[i].put(SimRecords.PHONE_NUMBER, String.valueOf(8005550101L + i));
+        }
+        int loadCalls = mIccPhoneBook.getLoadCalls();
+
+        int result = mResolver.bulkInsert(SimRecords.getContentUri(1, EF_ADN), values);
+
+        assertThat(result).isEqualTo(50);
+        assertThat(mIccPhoneBook.getLoadCalls() - loadCalls).isEqualTo(1);
+        assertThat(mIccPhoneBook.getUpdateCalls()).isEqualTo(50);
+        verify(mockNotifier).notifyChange(eq(SimPhonebookContract.AUTHORITY_URI));
+        assertThat(mIccPhoneBook.getAllValidRecords())
+                .comparingElementsUsing(ADN_RECORD_IS_EQUAL)
+                .containsAtLeast(
+                        new AdnRecord(IccConstants.EF_ADN, 2, "Name0", "8005550101"),
+                        new AdnRecord(IccConstants.EF_ADN, 51, "Name49", "8005550150"));
+    }
+
+    @Test
+    public void bulkInsert_notEnoughEmptyRecords_throwsWithoutWriting() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.setupEfWithSizes(1, IccConstants.EF_ADN, 2, 30);
+        mIccPhoneBook.addRecord(1, IccConstants.EF_ADN, "Existing", "8005550100");
+        ContentValues first = new ContentValues();
+        first.put(SimRecords.NAME, "First");
+        first.put(SimRecords.PHONE_NUMBER, "8005550101");
+        ContentValues second = new ContentValues();
+        second.put(SimRecords.NAME, "Second");
+        second.put(SimRecords.PHONE_NUMBER, "8005550102");
+
+        assertThrows(IllegalStateException.class, () -> mResolver.bulkInsert(
+                SimRecords.getContentUri(1, EF_ADN), new ContentValues[] {first, second}));
+
+        assertThat(mIccPhoneBook.getUpdateCalls()).isEqualTo(0);
+    }
+
+    @Test
+    public void bulkInsert_invalidValues_throwsWithoutWriting() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+        ContentValues valid = new ContentValues();
+        valid.put(SimRecords.NAME, "Valid");
+        valid.put(SimRecords.PHONE_NUMBER, "8005550101");
+        ContentValues invalid = new ContentValues();
+        invalid.put(SimRecords.NAME, "Invalid");
+
+        assertThrows(IllegalArgumentException.class, () -> mResolver.bulkInsert(
+                SimRecords.getContentUri(1, EF_ADN), new ContentValues[] {valid, invalid}));
+
+        assertThat(mIccPhoneBook.getUpdateCalls()).isEqualTo(0);
+        assertThat(mIccPhoneBook.getAllValidRecords()).isEmpty();
+    }
+
+    @Test
+    public void applyBatch_loadsOnceAndNotifiesOnce() throws Exception {
+        // Clear invocations that happened in setUp
+        Mockito.reset(mMockSubscriptionManager);
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+        mIccPhoneBook.addAdnRecord(1, "Initial1", "8005550101");
+        mIccPhoneBook.addAdnRecord(1, "Initial2", "8005550102");
+        SimPhonebookProvider.ContentNotifier mockNotifier = mock(
+                SimPhonebookProvider.ContentNotifier.class);
+        TestableSimPhonebookProvider.setup(
+                mResolver, mMockSubscriptionManager, mIccPhoneBook, mockNotifier);
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            operations.add(ContentProviderOperation.newInsert(SimRecords.getContentUri(1, EF_ADN))
+                    .withValue(SimRecords.NAME, "New" + i)
+                    .withValue(SimRecords.PHONE_NUMBER, "800555020" + i)
+                    .build());
+        }
+        operations.add(ContentProviderOperation.newUpdate(SimRecords.getItemUri(1, EF_ADN, 1))
+                .withValue(SimRecords.NAME, "Updated")
+                .withValue(SimRecords.PHONE_NUMBER, "8005550103")
+                .build());
+        operations.add(ContentProviderOperation.newDelete(SimRecords.getItemUri(1, EF_ADN, 2))
+                .build());
+        int loadCalls = mIccPhoneBook.getLoadCalls();
+
+        ContentProviderResult[] results = mResolver.applyBatch(SimPhonebookContract.AUTHORITY,
+                operations);
+
+        assertThat(results).hasLength(5);
+        assertThat(results[2].uri).isEqualTo(SimRecords.getItemUri(1, EF_ADN, 5));
+        assertThat(mIccPhoneBook.getLoadCalls() - loadCalls).isEqualTo(1);
+        assertThat(mIccPhoneBook.getUpdateCalls()).isEqualTo(5);
+        verify(mockNotifier).notifyChange(eq(SimPhonebookContract.AUTHORITY_URI));
+        assertThat(mIccPhoneBook.getAllValidRecords())
+                .comparingElementsUsing(ADN_RECORD_IS_EQUAL)
+                .containsExactly(
+                        new AdnRecord(IccConstants.EF_ADN, 1, "Updated", "8005550103"),
+                        new AdnRecord(IccConstants.EF_ADN, 3, "New0", "8005550200"),
+                        new AdnRecord(IccConstants.EF_ADN, 4, "New1", "8005550201"),
+                        new AdnRecord(IccConstants.EF_ADN, 5, "New2", "8005550202"));
+    }
+
     @Test
     public void update_nameOrNumberTooLong_throwsCorrectException() {
         setupSimsWithSubscriptionIds(1);
@@ -1356,6 +1493,10 @@ public final class SimPhonebookProviderTest {
         private Map<Pair<Integer, Integer>, int[]> mRecordSizes = new HashMap<>();
 
         private int mDefaultSubscriptionId = 101;
+        // The number of calls that loaded and updated records, used to check the cost of
+        // the provider operations.
+        private int mLoadCalls;
+        private int mUpdateCalls;
 
         private void addRecord(Pair<Integer, Integer> key, AdnRecord record) {
             // Assume that if records are being added then the test wants it to be a valid
@@ -1484,6 +1625,14 @@ public final class SimPhonebookProviderTest {
             mRecordSizes.clear();
         }
 
+        public int getLoadCalls() {
+            return mLoadCalls;
+        }
+
+        public int getUpdateCalls() {
+            return mUpdateCalls;
+        }
+
         @Override
         public List<AdnRecord> getAdnRecordsInEf(int efid) {
             return getAdnRecordsInEfForSubscriber(mDefaultSubscriptionId, efid);
@@ -1491,6 +1640,7 @@ public final class SimPhonebookProviderTest {
 
         @Override
         public List<AdnRecord> getAdnRecordsInEfForSubscriber(int subId, int efid) {
+            mLoadCalls++;
             return Arrays.asList(
                     mRecords.getOrDefault(Pair.create(subId, efid), new AdnRecord[0]));
         }
@@ -1520,6 +1670,7 @@ public final class SimPhonebookProviderTest {
         @Override
         public boolean updateAdnRecordsInEfByIndexForSubscriber(int subId, int efid,
                 ContentValues values, int index, String pin2) {
+            mUpdateCalls++;
             final String newTag = values.getAsString(IccProvider.STR_NEW_TAG);
             final String newPhoneNumber = values.getAsString(IccProvider.STR_NEW_NUMBER);
             return updateAdnRecordsInEfByIndexForSubscriber(subId, efid, newTag, newPhoneNumber,
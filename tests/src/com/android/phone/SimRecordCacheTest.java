@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.telephony.uicc.AdnRecord;
+import com.android.internal.telephony.uicc.IccConstants;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit Test for SimRecordCache.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SimRecordCacheTest {
+    private static final int SUB_ID = 1;
+    private static final int EFID = IccConstants.EF_ADN;
+
+    // The records on the fake SIM, null when they can't be loaded.
+    private List<AdnRecord> mSimRecords = createRecords("Alice", "", "Bob", "");
+    private int mLoads;
+    private long mNowMillis = 1000;
+
+    private final SimRecordCache mCache = new SimRecordCache((subId, efid) -> {
+        mLoads++;
+        return mSimRecords != null ? new ArrayList<>(mSimRecords) : null;
+    }, () -> mNowMillis);
+
+    @Test
+    public void testRecordsLoadedOnce() {
+        assertThat(mCache.getRecord(SUB_ID, EFID, 1).getAlphaTag()).isEqualTo("Alice");
+        assertThat(mCache.getRecord(SUB_ID, EFID, 3).getAlphaTag()).isEqualTo("Bob");
+        assertThat(mCache.getRecords(SUB_ID, EFID)).hasSize(4);
+        assertThat(mCache.findEmptyRecordNumber(SUB_ID, EFID)).isEqualTo(2);
+
+        assertThat(mLoads).isEqualTo(1);
+    }
+
+    @Test
+    public void testRecordNumberOutOfRange() {
+        assertThat(mCache.getRecord(SUB_ID, EFID, 0)).isNull();
+        assertThat(mCache.getRecord(SUB_ID, EFID, 5)).isNull();
+    }
+
+    @Test
+    public void testWritesUpdateEmptyRecords() {
+        AdnRecord empty = mCache.getRecord(SUB_ID, EFID, 2);
+        mCache.onRecordWritten(SUB_ID, EFID, 2, empty, "Carol", "5550102");
+        assertThat(mCache.findEmptyRecordNumber(SUB_ID, EFID)).isEqualTo(4);
+
+        AdnRecord alice = mCache.getRecord(SUB_ID, EFID, 1);
+        mCache.onRecordWritten(SUB_ID, EFID, 1, alice, "", "");
+        assertThat(mCache.findEmptyRecordNumber(SUB_ID, EFID)).isEqualTo(1);
+
+        AdnRecord carol = mCache.getRecord(SUB_ID, EFID, 2);
+        assertThat(carol.getAlphaTag()).isEqualTo("Carol");
+        assertThat(carol.getNumber()).isEqualTo("5550102");
+        assertThat(carol.getRecId()).isEqualTo(empty.getRecId());
+        assertThat(mLoads).isEqualTo(1);
+    }
+
+    @Test
+    public void testFull() {
+        mSimRecords = createRecords("Alice");
+
+        assertThat(mCache.findEmptyRecordNumber(SUB_ID, EFID))
+                .isEqualTo(SimRecordCache.NO_EMPTY_RECORD);
+    }
+
+    @Test
+    public void testLoadFailure_notCached() {
+        mSimRecords = null;
+        assertThat(mCache.getRecords(SUB_ID, EFID)).isNull();
+        assertThat(mCache.findEmptyRecordNumber(SUB_ID, EFID))
+                .isEqualTo(SimRecordCache.LOAD_FAILED);
+
+        mSimRecords = createRecords("Alice");
+        assertThat(mCache.getRecords(SUB_ID, EFID)).hasSize(1);
+        assertThat(mLoads).isEqualTo(3);
+    }
+
+    @Test
+    public void testInvalidate_reloads() {
+        mCache.getRecords(SUB_ID, EFID);
+        mSimRecords = createRecords("Dave");
+
+        mCache.invalidate(SUB_ID, EFID);
+        assertThat(mCache.getRecord(SUB_ID, EFID, 1).getAlphaTag()).isEqualTo("Dave");
+
+        mSimRecords = createRecords("Erin");
+        mCache.invalidateAll();
+        assertThat(mCache.getRecord(SUB_ID, EFID, 1).getAlphaTag()).isEqualTo("Erin");
+        assertThat(mLoads).isEqualTo(3);
+    }
+
+    @Test
+    public void testExpired_reloads() {
+        mCache.getRecords(SUB_ID, EFID);
+        // Changed on the SIM without the cache being told, e.g. by an STK REFRESH.
+        mSimRecords = createRecords("Dave");
+
+        mNowMillis += SimRecordCache.MAX_AGE_MILLIS - 1;
+        assertThat(mCache.getRecord(SUB_ID, EFID, 1).getAlphaTag()).isEqualTo("Alice");
+        mNowMillis += 1;
+        assertThat(mCache.getRecord(SUB_ID, EFID, 1).getAlphaTag()).isEqualTo("Dave");
+        assertThat(mLoads).isEqualTo(2);
+    }
+
+    @Test
+    public void testReturnedRecordsAreCopies() {
+        List<AdnRecord> before = mCache.getRecords(SUB_ID, EFID);
+
+        mCache.onRecordWritten(SUB_ID, EFID, 2, before.get(1), "Carol", "5550102");
+
+        assertThat(before.get(1).isEmpty()).isTrue();
+        assertThat(mCache.getRecords(SUB_ID, EFID).get(1).isEmpty()).isFalse();
+    }
+
+    private static List<AdnRecord> createRecords(String... names) {
+        List<AdnRecord> records = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            String number = names[i].isEmpty() ? "" : "555010" + i;
+            records.add(new AdnRecord(EFID, i + 1, names[i], number));
+        }
+        return records;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.callcomposer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.UUID;
+
+public class PictureCacheTest {
+    private static final int PICTURE_SIZE = 100;
+    private static final long LIFETIME_MILLIS = 1000;
+    private static final String FAKE_URL = "https://www.example.com/AAAAA";
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private long mNowMillis = 0;
+
+    @Test
+    public void testMemoryBudget_dropsLeastRecentlyUsed() {
+        PictureCache cache = createCache(2 * PICTURE_SIZE, 0, null);
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        UUID third = UUID.randomUUID();
+        cache.put(first, createImage(1), FAKE_URL);
+        cache.put(second, createImage(2), null);
+        // Makes the second picture the least recently used one.
+        assertNotNull(cache.getImage(first));
+
+        cache.put(third, createImage(3), null);
+
+        assertEquals(2 * PICTURE_SIZE, cache.getMemoryBytes());
+        assertArrayEquals(createImage(1).getImageBytes(), cache.getImage(first).getImageBytes());
+        assertEquals(FAKE_URL, cache.getServerUrl(first));
+        assertNull(cache.getImage(second));
+        assertNotNull(cache.getImage(third));
+    }
+
+    @Test
+    public void testSpill_readsBackFromFile() throws Exception {
+        File spillDir = new File(mTemporaryFolder.getRoot(), "pictures");
+        PictureCache cache = createCache(PICTURE_SIZE, 2 * PICTURE_SIZE, spillDir);
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        UUID third = UUID.randomUUID();
+        cache.put(first, createImage(1), FAKE_URL);
+        cache.put(second, createImage(2), null);
+        cache.put(third, createImage(3), null);
+
+        assertEquals(PICTURE_SIZE, cache.getMemoryBytes());
+        assertEquals(2 * PICTURE_SIZE, cache.getFileBytes());
+        assertEquals(2, spillDir.listFiles().length);
+        ImageData spilled = cache.getImage(first);
+        assertArrayEquals(createImage(1).getImageBytes(), spilled.getImageBytes());
+        assertEquals("image/png", spilled.getMimeType());
+        assertEquals(first.toString(), spilled.getId());
+        assertEquals(FAKE_URL, cache.getServerUrl(first));
+
+        // The second picture is now the least recently used spilled one.
+        cache.put(UUID.randomUUID(), createImage(4), null);
+        assertNull(cache.getImage(second));
+        assertNotNull(cache.getImage(first));
+        assertNotNull(cache.getImage(third));
+        assertEquals(2, spillDir.listFiles().length);
+
+        cache.clear();
+        assertEquals(0, spillDir.listFiles().length);
+        assertEquals(0, cache.getMemoryBytes());
+        assertEquals(0, cache.getFileBytes());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        File spillDir = new File(mTemporaryFolder.getRoot(), "pictures");
+        PictureCache cache = createCache(PICTURE_SIZE, 2 * PICTURE_SIZE, spillDir);
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        cache.put(first, createImage(1), FAKE_URL);
+        mNowMillis += LIFETIME_MILLIS / 2;
+        cache.put(second, createImage(2), FAKE_URL);
+
+        mNowMillis += LIFETIME_MILLIS / 2;
+        assertNull(cache.getImage(first));
+        assertNull(cache.getServerUrl(first));
+        assertEquals(FAKE_URL, cache.getServerUrl(second));
+
+        // Expired pictures are also dropped when others are cached.
+        mNowMillis += LIFETIME_MILLIS / 2;
+        cache.put(UUID.randomUUID(), createImage(3), null);
+        assertNull(cache.getServerUrl(second));
+        assertEquals(PICTURE_SIZE, cache.getMemoryBytes());
+        assertEquals(0, cache.getFileBytes());
+        assertEquals(0, spillDir.listFiles().length);
+    }
+
+    private PictureCache createCache(long memoryBudgetBytes, long fileBudgetBytes,
+            File spillDir) {
+        return new PictureCache(memoryBudgetBytes, fileBudgetBytes, LIFETIME_MILLIS, spillDir,
+                () -> mNowMillis);
+    }
+
+    private static ImageData createImage(int content) {
+        byte[] bytes = new byte[PICTURE_SIZE];
+        bytes[0] = (byte) content;
+        return new ImageData(bytes, "image/png", null);
+    }
+}
@@ -19,6 +19,7 @@ package com.android.phone.callcomposer;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.nullable;
@@ -201,13 +202,16 @@ public class PictureManagerTest {
         manager.setCallLogProxy(mockCallLogProxy);
 
         CompletableFuture<Uri> callLogUriFuture = new CompletableFuture<>();
-        manager.handleDownloadFromServer(new CallComposerPictureTransfer.Factory() {
+        CallComposerPictureTransfer download = manager.handleDownloadFromServer(
+                new CallComposerPictureTransfer.Factory() {
             @Override
             public CallComposerPictureTransfer create(Context context, int subscriptionId,
                     String url, ExecutorService executorService) {
                 return mockPictureTransfer;
             }
         }, FAKE_URL, (p) -> callLogUriFuture.complete(p.first));
+        // The caller gets the transfer to cancel it.
+        assertSame(mockPictureTransfer, download);
 
         // Get the callback for later manipulation
         ArgumentCaptor<CallComposerPictureTransfer.PictureCallback> callbackCaptor =
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.callcomposer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkRequest;
+import android.telephony.TelephonyManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class PictureTransferTest {
+    private static final String FAKE_UPLOAD_URL = "https://www.example.com/upload";
+    private static final String FAKE_IMAGE_URL = "https://www.example.com/AAAAA";
+    private static final long TIMEOUT_MILLIS = 1000;
+    private static final String CHALLENGE = "Digest realm=\"test@test.com\", "
+            + "nonce=\"aaaabbbbcccc\", qop=\"auth\", opaque=\"ddddeeee\"";
+    private static final String STALE_CHALLENGE = "Digest realm=\"test@test.com\", "
+            + "nonce=\"ffffgggghhhh\", qop=\"auth\", opaque=\"ddddeeee\", stale=true";
+    private static final String UPLOAD_RESPONSE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<file xmlns=\"urn:gsma:params:xml:ns:rcs:rcs:fthttp\">"
+            + "<file-info type=\"file\"><data url=\"" + FAKE_IMAGE_URL + "\"/></file-info>"
+            + "</file>";
+
+    @Mock Context context;
+    @Mock TelephonyManager telephonyManager;
+    @Mock ConnectivityManager connectivityManager;
+    @Mock Network network;
+
+    private ExecutorService mExecutorService;
+    private final DigestChallengeCache mChallengeCache = new DigestChallengeCache();
+    private final GbaCredentialsSupplier mCredentialsSupplier = (realm, executor) ->
+            CompletableFuture.completedFuture(new GbaCredentials("tid", new byte[] {1, 2, 3}));
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mExecutorService = Executors.newSingleThreadExecutor();
+        when(context.getSystemService(Context.TELEPHONY_SERVICE)).thenReturn(telephonyManager);
+        when(context.getSystemServiceName(TelephonyManager.class))
+                .thenReturn(Context.TELEPHONY_SERVICE);
+        when(context.getSystemService(Context.CONNECTIVITY_SERVICE))
+                .thenReturn(connectivityManager);
+        when(context.getSystemServiceName(ConnectivityManager.class))
+                .thenReturn(Context.CONNECTIVITY_SERVICE);
+        when(telephonyManager.createForSubscriptionId(anyInt())).thenReturn(telephonyManager);
+        when(telephonyManager.getSimOperatorName()).thenReturn("carrier");
+        doAnswer(invocation -> {
+            ConnectivityManager.NetworkCallback callback = invocation.getArgument(1);
+            callback.onAvailable(network);
+            return null;
+        }).when(connectivityManager).requestNetwork(any(NetworkRequest.class),
+                any(ConnectivityManager.NetworkCallback.class));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mExecutorService.shutdown();
+    }
+
+    @Test
+    public void testUploadWithCachedChallenge_oneRoundTrip() throws Exception {
+        HttpURLConnection challengeConnection = createChallengeConnection(CHALLENGE);
+        HttpURLConnection firstUpload = createUploadConnection(200, null);
+        HttpURLConnection secondUpload = createUploadConnection(200, null);
+        when(network.openConnection(any(URL.class)))
+                .thenReturn(challengeConnection, firstUpload, secondUpload);
+
+        assertEquals(FAKE_IMAGE_URL, upload());
+        verify(network, times(2)).openConnection(any(URL.class));
+        assertTrue(getAuthorization(firstUpload).contains("nc=00000001"));
+
+        // The second upload is authorized up front with the cached challenge.
+        assertEquals(FAKE_IMAGE_URL, upload());
+        verify(network, times(3)).openConnection(any(URL.class));
+        String authorization = getAuthorization(secondUpload);
+        assertTrue(authorization.contains("nonce=\"aaaabbbbcccc\""));
+        assertTrue(authorization.contains("nc=00000002"));
+    }
+
+    @Test
+    public void testUploadWithStaleChallenge_retriesWithNewChallenge() throws Exception {
+        HttpURLConnection challengeConnection = createChallengeConnection(CHALLENGE);
+        HttpURLConnection firstUpload = createUploadConnection(200, null);
+        HttpURLConnection rejectedUpload = createUploadConnection(401, STALE_CHALLENGE);
+        HttpURLConnection retriedUpload = createUploadConnection(200, null);
+        when(network.openConnection(any(URL.class)))
+                .thenReturn(challengeConnection, firstUpload, rejectedUpload, retriedUpload);
+
+        assertEquals(FAKE_IMAGE_URL, upload());
+        assertEquals(FAKE_IMAGE_URL, upload());
+
+        // No unauthenticated request is needed to get the new challenge.
+        verify(network, times(4)).openConnection(any(URL.class));
+        String authorization = getAuthorization(retriedUpload);
+        assertTrue(authorization.contains("nonce=\"ffffgggghhhh\""));
+        assertTrue(authorization.contains("nc=00000001"));
+    }
+
+    @Test
+    public void testUploadRejectedTwice_fails() throws Exception {
+        HttpURLConnection challengeConnection = createChallengeConnection(CHALLENGE);
+        HttpURLConnection firstUpload = createUploadConnection(200, null);
+        HttpURLConnection rejectedUpload = createUploadConnection(401, STALE_CHALLENGE);
+        HttpURLConnection rejectedRetry = createUploadConnection(401, STALE_CHALLENGE);
+        when(network.openConnection(any(URL.class)))
+                .thenReturn(challengeConnection, firstUpload, rejectedUpload, rejectedRetry);
+        assertEquals(FAKE_IMAGE_URL, upload());
+
+        CompletableFuture<Integer> errorFuture = new CompletableFuture<>();
+        CallComposerPictureTransfer transfer = createTransfer();
+        transfer.setCallback(new CallComposerPictureTransfer.PictureCallback() {
+            @Override
+            public void onError(int error) {
+                errorFuture.complete(error);
+            }
+        });
+        transfer.uploadPicture(createImage(), mCredentialsSupplier);
+
+        assertEquals(TelephonyManager.CallComposerException.ERROR_AUTHENTICATION_FAILED,
+                (int) errorFuture.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        verify(network, times(4)).openConnection(any(URL.class));
+    }
+
+    @Test
+    public void testDownload_knownLength() throws Exception {
+        byte[] picture = createPicture(50000);
+        when(network.openConnection(any(URL.class)))
+                .thenReturn(createDownloadConnection(picture, picture.length));
+
+        ImageData image = download(createTransfer()).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+        assertArrayEquals(picture, image.getImageBytes());
+        assertEquals("image/png", image.getMimeType());
+    }
+
+    @Test
+    public void testDownload_unknownLength() throws Exception {
+        byte[] picture = createPicture(50000);
+        when(network.openConnection(any(URL.class)))
+                .thenReturn(createDownloadConnection(picture, -1));
+
+        ImageData image = download(createTransfer()).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+        assertArrayEquals(picture, image.getImageBytes());
+    }
+
+    @Test
+    public void testDownload_lengthTooLarge_notRead() throws Exception {
+        byte[] picture = createPicture(
+                (int) TelephonyManager.getMaximumCallComposerPictureSize() + 1);
+        HttpURLConnection connection = createDownloadConnection(picture, picture.length);
+        when(network.openConnection(any(URL.class))).thenReturn(connection);
+
+        assertEquals(TelephonyManager.CallComposerException.ERROR_FILE_TOO_LARGE,
+                (int) downloadError(createTransfer()).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        verify(connection, never()).getInputStream();
+    }
+
+    @Test
+    public void testDownload_bodyTooLarge() throws Exception {
+        byte[] picture = createPicture(
+                (int) TelephonyManager.getMaximumCallComposerPictureSize() + 1);
+        when(network.openConnection(any(URL.class)))
+                .thenReturn(createDownloadConnection(picture, -1));
+
+        assertEquals(TelephonyManager.CallComposerException.ERROR_FILE_TOO_LARGE,
+                (int) downloadError(createTransfer()).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testDownload_cancelled() throws Exception {
+        CallComposerPictureTransfer transfer = createTransfer();
+        HttpURLConnection connection = createDownloadConnection(new byte[0], -1);
+        // Cancels the transfer once the first chunk of the picture is read.
+        when(connection.getInputStream()).thenReturn(
+                new ByteArrayInputStream(createPicture(50000)) {
+                    @Override
+                    public synchronized int read(byte[] b, int off, int len) {
+                        transfer.cancel();
+                        return super.read(b, off, len);
+                    }
+                });
+        when(network.openConnection(any(URL.class))).thenReturn(connection);
+
+        CompletableFuture<ImageData> imageFuture = download(transfer);
+
+        verify(connection, timeout(TIMEOUT_MILLIS)).disconnect();
+        // Let the executor finish the download before checking that nothing was delivered.
+        mExecutorService.submit(() -> {}).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertFalse(imageFuture.isDone());
+    }
+
+    @Test
+    public void testDownload_cancelledBeforeRetry() throws Exception {
+        CallComposerPictureTransfer transfer = createTransfer();
+        transfer.cancel();
+
+        CompletableFuture<ImageData> imageFuture = download(transfer);
+
+        mExecutorService.submit(() -> {}).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        verify(network, never()).openConnection(any(URL.class));
+        assertFalse(imageFuture.isDone());
+    }
+
+    private CompletableFuture<ImageData> download(CallComposerPictureTransfer transfer) {
+        CompletableFuture<ImageData> imageFuture = new CompletableFuture<>();
+        transfer.setCallback(new CallComposerPictureTransfer.PictureCallback() {
+            @Override
+            public void onDownloadSuccessful(ImageData data) {
+                imageFuture.complete(data);
+            }
+        });
+        transfer.downloadPicture(mCredentialsSupplier);
+        return imageFuture;
+    }
+
+    private CompletableFuture<Integer> downloadError(CallComposerPictureTransfer transfer) {
+        CompletableFuture<Integer> errorFuture = new CompletableFuture<>();
+        transfer.setCallback(new CallComposerPictureTransfer.PictureCallback() {
+            @Override
+            public void onError(int error) {
+                errorFuture.complete(error);
+            }
+        });
+        transfer.downloadPicture(mCredentialsSupplier);
+        return errorFuture;
+    }
+
+    private String upload() throws Exception {
+        CompletableFuture<String> urlFuture = new CompletableFuture<>();
+        CallComposerPictureTransfer transfer = createTransfer();
+        transfer.setCallback(new CallComposerPictureTransfer.PictureCallback() {
+            @Override
+            public void onUploadSuccessful(String serverUrl) {
+                urlFuture.complete(serverUrl);
+            }
+        });
+        transfer.uploadPicture(createImage(), mCredentialsSupplier);
+        return urlFuture.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private CallComposerPictureTransfer createTransfer() {
+        CallComposerPictureTransfer transfer = new CallComposerPictureTransfer.Factory() {}
+                .create(context, 1, FAKE_UPLOAD_URL, mExecutorService);
+        transfer.setChallengeCache(mChallengeCache);
+        return transfer;
+    }
+
+    private static byte[] createPicture(int size) {
+        byte[] picture = new byte[size];
+        for (int i = 0; i < size; i++) {
+            picture[i] = (byte) i;
+        }
+        return picture;
+    }
+
+    private static HttpURLConnection createDownloadConnection(byte[] picture,
+            long contentLength) throws Exception {
+        HttpURLConnection connection = mock(HttpURLConnection.class);
+        when(connection.getResponseCode()).thenReturn(200);
+        when(connection.getContentType()).thenReturn("image/png");
+        when(connection.getContentLengthLong()).thenReturn(contentLength);
+        when(connection.getInputStream()).thenReturn(new ByteArrayInputStream(picture));
+        return connection;
+    }
+
+    private static ImageData createImage() {
+        return new ImageData(new byte[] {1, 2, 3, 4}, "image/png", "id");
+    }
+
+    private static HttpURLConnection createChallengeConnection(String challenge)
+            throws Exception {
+        HttpURLConnection connection = mock(HttpURLConnection.class);
+        when(connection.getResponseCode()).thenReturn(401);
+        when(connection.getHeaderField(DigestAuthUtils.WWW_AUTHENTICATE)).thenReturn(challenge);
+        when(connection.getErrorStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        return connection;
+    }
+
+    private static HttpURLConnection createUploadConnection(int responseCode, String challenge)
+            throws Exception {
+        HttpURLConnection connection = mock(HttpURLConnection.class);
+        when(connection.getResponseCode()).thenReturn(responseCode);
+        when(connection.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        when(connection.getContentType()).thenReturn("application/xml; charset=utf-8");
+        when(connection.getInputStream())
+                .thenReturn(new ByteArrayInputStream(UPLOAD_RESPONSE.getBytes()));
+        when(connection.getErrorStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(connection.getHeaderField(DigestAuthUtils.WWW_AUTHENTICATE)).thenReturn(challenge);
+        return connection;
+    }
+
+    private static String getAuthorization(HttpURLConnection connection) {
+        ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        verify(connection).addRequestProperty(eq("Authorization"), captor.capture());
+        return captor.getValue();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.Signature;
+import android.net.Uri;
+
+import com.android.internal.telephony.uicc.IccUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.security.MessageDigest;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class CarrierAllowListInfoTest {
+    private static final String PACKAGE = "com.example.carrier";
+    private static final int CARRIER_ID = 10000;
+    private static final Signature ALLOWED_SIGNATURE = new Signature(new byte[] {1, 2, 3});
+    private static final Signature OTHER_SIGNATURE = new Signature(new byte[] {4, 5, 6});
+
+    @Mock private Context mContext;
+    @Mock private PackageManager mPackageManager;
+
+    private CarrierAllowListInfo mAllowList;
+    private BroadcastReceiver mPackageChangedReceiver;
+    private PackageInfo mPackageInfo;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(mContext.getPackageManager()).thenReturn(mPackageManager);
+        mPackageInfo = new PackageInfo();
+        mPackageInfo.packageName = PACKAGE;
+        mPackageInfo.setLongVersionCode(1);
+        mPackageInfo.lastUpdateTime = 1000;
+        mPackageInfo.signatures = new Signature[] {ALLOWED_SIGNATURE};
+        when(mPackageManager.getPackageInfo(eq(PACKAGE), anyInt())).thenReturn(mPackageInfo);
+
+        mAllowList = new CarrierAllowListInfo(mContext);
+        ArgumentCaptor<BroadcastReceiver> receiverCaptor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mContext).registerReceiver(receiverCaptor.capture(), any(IntentFilter.class));
+        mPackageChangedReceiver = receiverCaptor.getValue();
+        mAllowList.updateJsonForTest("{\"" + PACKAGE + "\":{\"carrierId\":\"" + CARRIER_ID
+                + "\",\"callerSHA1Id\":[\"" + sha1(ALLOWED_SIGNATURE) + "\"]},"
+                + "\"com.example.malformed\":{\"carrierId\":\"10001\"}}");
+    }
+
+    @Test
+    public void testParseJson_indexesCallers() throws Exception {
+        List<String> shaIds = mAllowList.getShaIdList(PACKAGE, CARRIER_ID);
+
+        assertEquals(List.of(sha1(ALLOWED_SIGNATURE)), shaIds);
+        assertTrue(mAllowList.getShaIdList(PACKAGE, CARRIER_ID + 1).isEmpty());
+        // The malformed entry is skipped without dropping the others.
+        assertEquals(CarrierAllowListInfo.INVALID_CARRIER_ID,
+                mAllowList.validateCallerAndGetCarrierId("com.example.malformed"));
+        assertEquals(CarrierAllowListInfo.INVALID_CARRIER_ID,
+                mAllowList.validateCallerAndGetCarrierId("com.example.unknown"));
+    }
+
+    @Test
+    public void testValidateCaller_cachesSignatureCheck() throws Exception {
+        assertEquals(CARRIER_ID, mAllowList.validateCallerAndGetCarrierId(PACKAGE));
+        assertEquals(CARRIER_ID, mAllowList.validateCallerAndGetCarrierId(PACKAGE));
+
+        verify(mPackageManager, times(1)).getPackageInfo(PACKAGE, PackageManager.GET_SIGNATURES);
+    }
+
+    @Test
+    public void testValidateCaller_updatedPackageIsCheckedAgain() throws Exception {
+        assertEquals(CARRIER_ID, mAllowList.validateCallerAndGetCarrierId(PACKAGE));
+
+        // Reinstalled with another signer, before the broadcast is received.
+        mPackageInfo.lastUpdateTime = 2000;
+        mPackageInfo.signatures = new Signature[] {OTHER_SIGNATURE};
+
+        assertEquals(CarrierAllowListInfo.INVALID_CARRIER_ID,
+                mAllowList.validateCallerAndGetCarrierId(PACKAGE));
+        verify(mPackageManager, times(2)).getPackageInfo(PACKAGE, PackageManager.GET_SIGNATURES);
+    }
+
+    @Test
+    public void testValidateCaller_packageChangeDropsResult() throws Exception {
+        assertEquals(CARRIER_ID, mAllowList.validateCallerAndGetCarrierId(PACKAGE));
+
+        mPackageChangedReceiver.onReceive(mContext, new Intent(Intent.ACTION_PACKAGE_CHANGED,
+                Uri.fromParts("package", PACKAGE, null)));
+        assertEquals(CARRIER_ID, mAllowList.validateCallerAndGetCarrierId(PACKAGE));
+
+        verify(mPackageManager, times(2)).getPackageInfo(PACKAGE, PackageManager.GET_SIGNATURES);
+    }
+
+    @Test
+    public void testValidateCaller_removedPackageIsInvalid() throws Exception {
+        assertEquals(CARRIER_ID, mAllowList.validateCallerAndGetCarrierId(PACKAGE));
+
+        when(mPackageManager.getPackageInfo(eq(PACKAGE), anyInt()))
+                .thenThrow(new PackageManager.NameNotFoundException());
+
+        assertEquals(CarrierAllowListInfo.INVALID_CARRIER_ID,
+                mAllowList.validateCallerAndGetCarrierId(PACKAGE));
+    }
+
+    private static String sha1(Signature signature) throws Exception {
+        return IccUtils.bytesToHexString(
+                MessageDigest.getInstance("SHA1").digest(signature.toByteArray()));
+    }
+}
@@ -61,6 +61,7 @@ public class TelephonyRcsServiceTest extends TelephonyTestBase {
     @Mock RcsFeatureController.RegistrationHelperFactory mRegistrationFactory;
     @Mock RcsFeatureController.FeatureConnectorFactory<RcsFeatureManager> mFeatureConnectorFactory;
     @Mock FeatureConnector<RcsFeatureManager> mFeatureConnector;
+    @Mock TelephonyRcsService.FeatureControllersChangedListener mFeatureControllersChangedListener;
 
     @Mock
     private ISub mISub;
@@ -346,6 +347,27 @@ public class TelephonyRcsServiceTest extends TelephonyTestBase {
         verify(mFeatureControllerSlot0).updateAssociatedSubscription(1);
     }
 
+    @Test
+    public void testCarrierConfigChangedNotifiesListener() {
+        TelephonyRcsService service = createRcsService(1 /*numSlots*/);
+        service.addFeatureControllersChangedListener(mFeatureControllersChangedListener);
+
+        sendCarrierConfigChanged(0 /*slotId*/, 1 /*subId*/);
+
+        verify(mFeatureControllersChangedListener).onFeatureControllersChanged();
+    }
+
+    @Test
+    public void testSlotUpdateNotifiesListener() {
+        TelephonyRcsService service = createRcsService(1 /*numSlots*/);
+        service.addFeatureControllersChangedListener(mFeatureControllersChangedListener);
+
+        service.updateFeatureControllerSize(1 /*newNumSlots*/);
+        verify(mFeatureControllersChangedListener, never()).onFeatureControllersChanged();
+        service.updateFeatureControllerSize(2 /*newNumSlots*/);
+        verify(mFeatureControllersChangedListener).onFeatureControllersChanged();
+    }
+
     private void sendCarrierConfigChanged(int slotId, int subId) {
         Intent intent = new Intent(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
         intent.putExtra(CarrierConfigManager.EXTRA_SLOT_INDEX, slotId);